@@ -20,6 +20,7 @@ import java.util.List;
 
 import org.openapplication.store.ByteArrayComparator;
 import org.openapplication.store.Definition;
+import org.openapplication.store.DefinitionIndex;
 import org.openapplication.store.Entries;
 import org.openapplication.store.Entry;
 
@@ -91,15 +92,8 @@ public final class BerkeleyDBJEIterable implements Entries {
 			public Entry next() {
 				checked = false;
 				hasNext = false;
-				byte[] data;
-				for (Definition definition : definitions)
-					if (definition.matchesValue(data = value.getData()))
-						return new Entry(new Entry(key.getData(),
-								definition.getKeyFields()), new Entry(data,
-								definition.getValueFields()));
-
-				return new Entry(key.getData(), definitions.get(0)
-						.getKeyFields());
+				return DefinitionIndex.decode(definitions, key.getData(),
+						value.getData());
 			}
 
 			@Override
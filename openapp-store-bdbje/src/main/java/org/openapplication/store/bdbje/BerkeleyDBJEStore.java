@@ -18,7 +18,10 @@ package org.openapplication.store.bdbje;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,11 +29,16 @@ import java.util.UUID;
 
 import org.openapplication.store.Blob;
 import org.openapplication.store.Definition;
+import org.openapplication.store.DefinitionIndex;
 import org.openapplication.store.Entries;
 import org.openapplication.store.Entry;
 import org.openapplication.store.Field;
 import org.openapplication.store.Key;
 import org.openapplication.store.MapKeyValue;
+import org.openapplication.store.MultiGet;
+import org.openapplication.store.MultipartUpload;
+import org.openapplication.store.PreparedFields;
+import org.openapplication.store.PreparedQuery;
 import org.openapplication.store.StoreImpl;
 import org.openapplication.store.StoreServer;
 import org.openapplication.store.StreamEncoding;
@@ -45,9 +53,7 @@ import com.sleepycat.je.OperationStatus;
 
 public class BerkeleyDBJEStore implements StoreServer, Closeable {
 
-	private final List<Definition> definitionList;
-
-	private final Map<UUID, List<Definition>> definitionMap;
+	private final DefinitionIndex definitionIndex;
 
 	private final Environment environment;
 
@@ -56,22 +62,13 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 	private final StoreServer memoryStore;
 
 	public BerkeleyDBJEStore(Environment environment, Definition... definitions) {
-		definitionList = new ArrayList<Definition>();
-		definitionMap = new HashMap<UUID, List<Definition>>();
+		definitionIndex = new DefinitionIndex(Arrays.asList(definitions));
 		this.environment = environment;
 		storageMap = new HashMap<UUID, Database>();
 
 		memoryStore = new StoreImpl();
 
-		for (Definition definition : definitions) {
-			UUID keyUuid = definition.toKeyUuid();
-
-			definitionList.add(definition);
-
-			if (!definitionMap.containsKey(keyUuid))
-				definitionMap.put(keyUuid, new ArrayList<Definition>());
-			definitionMap.get(keyUuid).add(definition);
-
+		for (UUID keyUuid : definitionIndex.getKeyUuids()) {
 			DatabaseConfig dbConfig = new DatabaseConfig();
 			dbConfig.setAllowCreate(true);
 
@@ -89,15 +86,8 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 
 	@Override
 	public List<MapKeyValue> put(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFieldValues(definition.getKeyFields())
-					&& entry.containsFieldValues(definition.getValueFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), entry
-								.getBytes(definition.getValueFields())));
+		List<MapKeyValue> ops = definitionIndex.putOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			storageMap.get(operation.map).put(null,
@@ -111,13 +101,8 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 
 	@Override
 	public List<MapKeyValue> remove(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFields(definition.getKeyFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), null));
+		List<MapKeyValue> ops = definitionIndex.removeOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			storageMap.get(operation.map).delete(null,
@@ -128,6 +113,63 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 		return ops;
 	}
 
+	@Override
+	public List<MapKeyValue> putAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.putOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			// A cursor keeps its position between the sorted keys, so the
+			// group is written in one ordered pass over the B-tree
+			Cursor cursor = storageMap.get(group.get(0).map).openCursor(null,
+					null);
+			try {
+				for (MapKeyValue operation : group)
+					cursor.put(new DatabaseEntry(operation.key),
+							new DatabaseEntry(operation.value));
+			} finally {
+				cursor.close();
+			}
+			applied.addAll(group);
+		}
+
+		environment.sync();
+
+		return applied;
+	}
+
+	@Override
+	public List<MapKeyValue> removeAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.removeOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			Cursor cursor = storageMap.get(group.get(0).map).openCursor(null,
+					null);
+			try {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				for (MapKeyValue operation : group) {
+					key.setData(operation.key);
+					if (cursor.getSearchKey(key, value,
+							LockMode.RMW) == OperationStatus.SUCCESS)
+						cursor.delete();
+				}
+			} finally {
+				cursor.close();
+			}
+			applied.addAll(group);
+		}
+
+		environment.sync();
+
+		return applied;
+	}
+
 	@Override
 	public Entry get(Field<?>... fields) {
 		UUID keyUuid = Key.asUuid(fields);
@@ -141,12 +183,37 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 				value, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS)
 			return null;
 		byte[] data = value.getData();
-		for (Definition definition : definitionMap.get(keyUuid))
-			if (definition.matchesValue(data))
-				return new Entry(keyEntry, new Entry(data,
-						definition.getValueFields()));
+		return DefinitionIndex.decode(definitionIndex.get(keyUuid), keyEntry,
+				data);
+	}
 
-		return keyEntry;
+	@Override
+	public List<Entry> getAll(List<Field<?>[]> keys) {
+		MultiGet lookup = new MultiGet(keys);
+		for (Map.Entry<UUID, int[]> group : lookup.groupByMap().entrySet()) {
+			Database storage = storageMap.get(group.getKey());
+			if (storage == null)
+				continue;
+			List<Definition> definitions = definitionIndex.get(group.getKey());
+
+			Cursor cursor = storage.openCursor(null, null);
+			try {
+				DatabaseEntry value = new DatabaseEntry();
+				for (int index : group.getValue())
+					if (cursor.getSearchKey(
+							new DatabaseEntry(lookup.getKey(index)), value,
+							LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+						lookup.set(index, definitions, value.getData());
+			} finally {
+				cursor.close();
+			}
+		}
+		return lookup.getEntries();
+	}
+
+	@Override
+	public PreparedQuery prepare(Field<?>... fields) {
+		return new PreparedFields(this, fields);
 	}
 
 	@Override
@@ -180,7 +247,7 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 			return Entries.EMPTY;
 
 		return new BerkeleyDBJEIterable(cursor, key, value, startRow, stopRow,
-				definitionMap.get(keyUuid));
+				definitionIndex.get(keyUuid));
 	}
 
 	@Override
@@ -195,6 +262,24 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 		return memoryStore.read(blob);
 	}
 
+	@Override
+	public InputStream read(Blob blob, long offset, long length) {
+		// TODO Implement persistence
+		return memoryStore.read(blob, offset, length);
+	}
+
+	@Override
+	public long read(Blob blob, WritableByteChannel channel) {
+		// TODO Implement persistence
+		return memoryStore.read(blob, channel);
+	}
+
+	@Override
+	public ByteBuffer[] readBuffers(Blob blob) {
+		// TODO Implement persistence
+		return memoryStore.readBuffers(blob);
+	}
+
 	@Override
 	public Blob write(InputStream stream, StreamEncoding inEncoding,
 			StreamEncoding outEncoding) {
@@ -202,4 +287,17 @@ public class BerkeleyDBJEStore implements StoreServer, Closeable {
 		return memoryStore.write(stream, inEncoding, outEncoding);
 	}
 
+	@Override
+	public Blob append(Blob blob, InputStream stream) {
+		// TODO Implement persistence
+		return memoryStore.append(blob, stream);
+	}
+
+	@Override
+	public MultipartUpload beginUpload(StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		// TODO Implement persistence
+		return memoryStore.beginUpload(inEncoding, outEncoding);
+	}
+
 }
@@ -20,6 +20,7 @@ import java.util.List;
 
 import org.apache.hadoop.hbase.client.Result;
 import org.openapplication.store.Definition;
+import org.openapplication.store.DefinitionIndex;
 import org.openapplication.store.Entries;
 import org.openapplication.store.Entry;
 
@@ -64,15 +65,8 @@ public final class HBaseIterable implements Entries {
 			public Entry next() {
 				Result keyValue = results.next();
 
-				byte[] value;
-				for (Definition definition : definitions)
-					if (definition.matchesValue(value = keyValue.value()))
-						return new Entry(new Entry(keyValue.getRow(),
-								definition.getKeyFields()), new Entry(value,
-								definition.getValueFields()));
-
-				return new Entry(keyValue.getRow(), definitions.get(0)
-						.getKeyFields());
+				return DefinitionIndex.decode(definitions, keyValue.getRow(),
+						keyValue.value());
 			}
 
 			@Override
@@ -18,7 +18,10 @@ package org.openapplication.store.hbase;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,20 +40,23 @@ import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.openapplication.store.Blob;
 import org.openapplication.store.Definition;
+import org.openapplication.store.DefinitionIndex;
 import org.openapplication.store.Entries;
 import org.openapplication.store.Entry;
 import org.openapplication.store.Field;
 import org.openapplication.store.Key;
 import org.openapplication.store.MapKeyValue;
+import org.openapplication.store.MultiGet;
+import org.openapplication.store.MultipartUpload;
+import org.openapplication.store.PreparedFields;
+import org.openapplication.store.PreparedQuery;
 import org.openapplication.store.StoreImpl;
 import org.openapplication.store.StoreServer;
 import org.openapplication.store.StreamEncoding;
 
 public final class HBaseStore implements StoreServer, Closeable {
 
-	private final List<Definition> definitionList;
-
-	private final Map<UUID, List<Definition>> definitionMap;
+	private final DefinitionIndex definitionIndex;
 
 	private final Map<UUID, HTableInterface> storageMap;
 
@@ -58,21 +64,12 @@ public final class HBaseStore implements StoreServer, Closeable {
 
 	public HBaseStore(HTablePool hTablePool, HBaseAdmin hAdmin,
 			Definition... definitions) {
-		definitionList = new ArrayList<Definition>();
-		definitionMap = new HashMap<UUID, List<Definition>>();
+		definitionIndex = new DefinitionIndex(Arrays.asList(definitions));
 		storageMap = new HashMap<UUID, HTableInterface>();
 
 		memoryStore = new StoreImpl();
 
-		for (Definition definition : definitions) {
-			UUID keyUuid = definition.toKeyUuid();
-
-			definitionList.add(definition);
-
-			if (!definitionMap.containsKey(keyUuid))
-				definitionMap.put(keyUuid, new ArrayList<Definition>());
-			definitionMap.get(keyUuid).add(definition);
-
+		for (UUID keyUuid : definitionIndex.getKeyUuids())
 			try {
 				if (!hAdmin.tableExists(keyUuid.toString())) {
 					HTableDescriptor hDescr = new HTableDescriptor(
@@ -85,7 +82,6 @@ public final class HBaseStore implements StoreServer, Closeable {
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
-		}
 	}
 
 	@Override
@@ -96,15 +92,8 @@ public final class HBaseStore implements StoreServer, Closeable {
 
 	@Override
 	public List<MapKeyValue> put(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFieldValues(definition.getKeyFields())
-					&& entry.containsFieldValues(definition.getValueFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), entry
-								.getBytes(definition.getValueFields())));
+		List<MapKeyValue> ops = definitionIndex.putOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			try {
@@ -120,13 +109,8 @@ public final class HBaseStore implements StoreServer, Closeable {
 
 	@Override
 	public List<MapKeyValue> remove(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFields(definition.getKeyFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), null));
+		List<MapKeyValue> ops = definitionIndex.removeOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			try {
@@ -139,6 +123,53 @@ public final class HBaseStore implements StoreServer, Closeable {
 		return ops;
 	}
 
+	@Override
+	public List<MapKeyValue> putAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.putOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			List<Put> puts = new ArrayList<Put>(group.size());
+			for (MapKeyValue operation : group) {
+				Put put = new Put(operation.key);
+				put.add(new byte[] { 'o' }, new byte[] { 'a' }, operation.value);
+				puts.add(put);
+			}
+			try {
+				storageMap.get(group.get(0).map).put(puts);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			applied.addAll(group);
+		}
+
+		return applied;
+	}
+
+	@Override
+	public List<MapKeyValue> removeAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.removeOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			List<Delete> deletes = new ArrayList<Delete>(group.size());
+			for (MapKeyValue operation : group)
+				deletes.add(new Delete(operation.key));
+			try {
+				storageMap.get(group.get(0).map).delete(deletes);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			applied.addAll(group);
+		}
+
+		return applied;
+	}
+
 	@Override
 	public Entry get(Field<?>... fields) {
 		UUID keyUuid = Key.asUuid(fields);
@@ -160,12 +191,43 @@ public final class HBaseStore implements StoreServer, Closeable {
 		byte[] value = result.getValue(new byte[] { 'o' }, new byte[] { 'a' });
 		if (value == null)
 			return null;
-		for (Definition definition : definitionMap.get(keyUuid))
-			if (definition.matchesValue(value))
-				return new Entry(keyEntry, new Entry(value,
-						definition.getValueFields()));
+		return DefinitionIndex.decode(definitionIndex.get(keyUuid), keyEntry,
+				value);
+	}
 
-		return keyEntry;
+	@Override
+	public List<Entry> getAll(List<Field<?>[]> keys) {
+		MultiGet lookup = new MultiGet(keys);
+		for (Map.Entry<UUID, int[]> group : lookup.groupByMap().entrySet()) {
+			HTableInterface storage = storageMap.get(group.getKey());
+			if (storage == null)
+				continue;
+			List<Definition> definitions = definitionIndex.get(group.getKey());
+
+			int[] indexes = group.getValue();
+			List<Get> gets = new ArrayList<Get>(indexes.length);
+			for (int index : indexes) {
+				Get get = new Get(lookup.getKey(index));
+				get.addColumn(new byte[] { 'o' }, new byte[] { 'a' });
+				gets.add(get);
+			}
+			Result[] results;
+			try {
+				results = storage.get(gets);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			for (int i = 0; i < indexes.length; i++)
+				if (results[i] != null)
+					lookup.set(indexes[i], definitions, results[i].getValue(
+							new byte[] { 'o' }, new byte[] { 'a' }));
+		}
+		return lookup.getEntries();
+	}
+
+	@Override
+	public PreparedQuery prepare(Field<?>... fields) {
+		return new PreparedFields(this, fields);
 	}
 
 	@Override
@@ -201,7 +263,7 @@ public final class HBaseStore implements StoreServer, Closeable {
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		List<Definition> definitions = definitionMap.get(keyUuid);
+		List<Definition> definitions = definitionIndex.get(keyUuid);
 
 		return new HBaseIterable(scanner, startRow, stopRow, definitions);
 	}
@@ -218,6 +280,24 @@ public final class HBaseStore implements StoreServer, Closeable {
 		return memoryStore.read(blob);
 	}
 
+	@Override
+	public InputStream read(Blob blob, long offset, long length) {
+		// TODO Implement persistence
+		return memoryStore.read(blob, offset, length);
+	}
+
+	@Override
+	public long read(Blob blob, WritableByteChannel channel) {
+		// TODO Implement persistence
+		return memoryStore.read(blob, channel);
+	}
+
+	@Override
+	public ByteBuffer[] readBuffers(Blob blob) {
+		// TODO Implement persistence
+		return memoryStore.readBuffers(blob);
+	}
+
 	@Override
 	public Blob write(InputStream stream, StreamEncoding inEncoding,
 			StreamEncoding outEncoding) {
@@ -225,4 +305,17 @@ public final class HBaseStore implements StoreServer, Closeable {
 		return memoryStore.write(stream, inEncoding, outEncoding);
 	}
 
+	@Override
+	public Blob append(Blob blob, InputStream stream) {
+		// TODO Implement persistence
+		return memoryStore.append(blob, stream);
+	}
+
+	@Override
+	public MultipartUpload beginUpload(StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		// TODO Implement persistence
+		return memoryStore.beginUpload(inEncoding, outEncoding);
+	}
+
 }
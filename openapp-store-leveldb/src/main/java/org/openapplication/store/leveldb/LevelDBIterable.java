@@ -22,6 +22,7 @@ import java.util.Map;
 import org.iq80.leveldb.DBIterator;
 import org.openapplication.store.ByteArrayComparator;
 import org.openapplication.store.Definition;
+import org.openapplication.store.DefinitionIndex;
 import org.openapplication.store.Entries;
 import org.openapplication.store.Entry;
 
@@ -80,15 +81,8 @@ public final class LevelDBIterable implements Entries {
 				checked = false;
 				hasNext = false;
 				Map.Entry<byte[], byte[]> next = source.next();
-				byte[] value = next.getValue();
-				for (Definition definition : definitions)
-					if (definition.matchesValue(value))
-						return new Entry(new Entry(next.getKey(),
-								definition.getKeyFields()), new Entry(value,
-								definition.getValueFields()));
-
-				return new Entry(next.getKey(), definitions.get(0)
-						.getKeyFields());
+				return DefinitionIndex.decode(definitions, next.getKey(),
+						next.getValue());
 			}
 
 			@Override
@@ -19,7 +19,10 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,13 +33,19 @@ import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Logger;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
 import org.openapplication.store.Blob;
 import org.openapplication.store.Definition;
+import org.openapplication.store.DefinitionIndex;
 import org.openapplication.store.Entries;
 import org.openapplication.store.Entry;
 import org.openapplication.store.Field;
 import org.openapplication.store.Key;
 import org.openapplication.store.MapKeyValue;
+import org.openapplication.store.MultiGet;
+import org.openapplication.store.MultipartUpload;
+import org.openapplication.store.PreparedFields;
+import org.openapplication.store.PreparedQuery;
 import org.openapplication.store.StoreImpl;
 import org.openapplication.store.StoreServer;
 import org.openapplication.store.StreamEncoding;
@@ -45,17 +54,14 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 public class LevelDBStore implements StoreServer, Closeable {
 
-	private final List<Definition> definitionList;
-
-	private final Map<UUID, List<Definition>> definitionMap;
+	private final DefinitionIndex definitionIndex;
 
 	private final Map<UUID, DB> storageMap;
 
 	private final StoreServer memoryStore;
 
 	public LevelDBStore(File directory, Definition... definitions) {
-		definitionList = new ArrayList<Definition>();
-		definitionMap = new HashMap<UUID, List<Definition>>();
+		definitionIndex = new DefinitionIndex(Arrays.asList(definitions));
 		storageMap = new HashMap<UUID, DB>();
 
 		memoryStore = new StoreImpl();
@@ -75,24 +81,14 @@ public class LevelDBStore implements StoreServer, Closeable {
 
 		System.out.println("Opening LevelDB databases");
 
-		for (Definition definition : definitions) {
-			UUID keyUuid = definition.toKeyUuid();
-
-			definitionList.add(definition);
-
-			if (!definitionMap.containsKey(keyUuid))
-				definitionMap.put(keyUuid, new ArrayList<Definition>());
-			definitionMap.get(keyUuid).add(definition);
-
-			if (!storageMap.containsKey(keyUuid))
-				try {
-					DB db = factory.open(
-							new File(directory, keyUuid.toString()), options);
-					storageMap.put(keyUuid, db);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-		}
+		for (UUID keyUuid : definitionIndex.getKeyUuids())
+			try {
+				DB db = factory.open(new File(directory, keyUuid.toString()),
+						options);
+				storageMap.put(keyUuid, db);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 
 		System.out.println("Opening LevelDB databases done");
 	}
@@ -103,17 +99,18 @@ public class LevelDBStore implements StoreServer, Closeable {
 			db.close();
 	}
 
+	private static void close(WriteBatch batch) {
+		try {
+			batch.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Override
 	public List<MapKeyValue> put(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFieldValues(definition.getKeyFields())
-					&& entry.containsFieldValues(definition.getValueFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), entry
-								.getBytes(definition.getValueFields())));
+		List<MapKeyValue> ops = definitionIndex.putOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			storageMap.get(operation.map).put(operation.key, operation.value);
@@ -123,13 +120,8 @@ public class LevelDBStore implements StoreServer, Closeable {
 
 	@Override
 	public List<MapKeyValue> remove(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFields(definition.getKeyFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), null));
+		List<MapKeyValue> ops = definitionIndex.removeOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			storageMap.get(operation.map).delete(operation.key);
@@ -137,6 +129,52 @@ public class LevelDBStore implements StoreServer, Closeable {
 		return ops;
 	}
 
+	@Override
+	public List<MapKeyValue> putAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.putOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			DB storage = storageMap.get(group.get(0).map);
+			WriteBatch batch = storage.createWriteBatch();
+			try {
+				for (MapKeyValue operation : group)
+					batch.put(operation.key, operation.value);
+				storage.write(batch);
+			} finally {
+				close(batch);
+			}
+			applied.addAll(group);
+		}
+
+		return applied;
+	}
+
+	@Override
+	public List<MapKeyValue> removeAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.removeOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			DB storage = storageMap.get(group.get(0).map);
+			WriteBatch batch = storage.createWriteBatch();
+			try {
+				for (MapKeyValue operation : group)
+					batch.delete(operation.key);
+				storage.write(batch);
+			} finally {
+				close(batch);
+			}
+			applied.addAll(group);
+		}
+
+		return applied;
+	}
+
 	@Override
 	public Entry get(Field<?>... fields) {
 		UUID keyUuid = Key.asUuid(fields);
@@ -148,12 +186,49 @@ public class LevelDBStore implements StoreServer, Closeable {
 		byte[] value = storage.get(keyEntry.getBytes(fields));
 		if (value == null)
 			return null;
-		for (Definition definition : definitionMap.get(keyUuid))
-			if (definition.matchesValue(value))
-				return new Entry(keyEntry, new Entry(value,
-						definition.getValueFields()));
+		return DefinitionIndex.decode(definitionIndex.get(keyUuid), keyEntry,
+				value);
+	}
 
-		return keyEntry;
+	@Override
+	public List<Entry> getAll(List<Field<?>[]> keys) {
+		MultiGet lookup = new MultiGet(keys);
+		for (Map.Entry<UUID, int[]> group : lookup.groupByMap().entrySet()) {
+			DB storage = storageMap.get(group.getKey());
+			if (storage == null)
+				continue;
+			List<Definition> definitions = definitionIndex.get(group.getKey());
+
+			// The keys are sorted, so each seek only moves the iterator forward
+			DBIterator iterator = storage.iterator();
+			try {
+				for (int index : group.getValue()) {
+					byte[] key = lookup.getKey(index);
+					iterator.seek(key);
+					if (iterator.hasNext()) {
+						Map.Entry<byte[], byte[]> next = iterator.peekNext();
+						if (Arrays.equals(key, next.getKey()))
+							lookup.set(index, definitions, next.getValue());
+					}
+				}
+			} finally {
+				close(iterator);
+			}
+		}
+		return lookup.getEntries();
+	}
+
+	private static void close(DBIterator iterator) {
+		try {
+			iterator.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public PreparedQuery prepare(Field<?>... fields) {
+		return new PreparedFields(this, fields);
 	}
 
 	@Override
@@ -184,7 +259,7 @@ public class LevelDBStore implements StoreServer, Closeable {
 		iterator.seek(startRow);
 
 		return new LevelDBIterable(iterator, startRow, stopRow,
-				definitionMap.get(keyUuid));
+				definitionIndex.get(keyUuid));
 	}
 
 	@Override
@@ -199,6 +274,24 @@ public class LevelDBStore implements StoreServer, Closeable {
 		return memoryStore.read(blob);
 	}
 
+	@Override
+	public InputStream read(Blob blob, long offset, long length) {
+		// TODO Implement persistence
+		return memoryStore.read(blob, offset, length);
+	}
+
+	@Override
+	public long read(Blob blob, WritableByteChannel channel) {
+		// TODO Implement persistence
+		return memoryStore.read(blob, channel);
+	}
+
+	@Override
+	public ByteBuffer[] readBuffers(Blob blob) {
+		// TODO Implement persistence
+		return memoryStore.readBuffers(blob);
+	}
+
 	@Override
 	public Blob write(InputStream stream, StreamEncoding inEncoding,
 			StreamEncoding outEncoding) {
@@ -206,4 +299,17 @@ public class LevelDBStore implements StoreServer, Closeable {
 		return memoryStore.write(stream, inEncoding, outEncoding);
 	}
 
+	@Override
+	public Blob append(Blob blob, InputStream stream) {
+		// TODO Implement persistence
+		return memoryStore.append(blob, stream);
+	}
+
+	@Override
+	public MultipartUpload beginUpload(StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		// TODO Implement persistence
+		return memoryStore.beginUpload(inEncoding, outEncoding);
+	}
+
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Tells whether a key may be present, with about one percent of false
+// positives at the expected number of keys; bit positions are derived
+// from two halves of one 64-bit hash of the key
+final class BloomFilter {
+
+	private static final int BITS_PER_KEY = 10;
+
+	private static final int HASHES = 7;
+
+	private final long[] bits;
+
+	BloomFilter(int expectedKeys) {
+		bits = new long[Math.max(1,
+				(int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64))];
+	}
+
+	private BloomFilter(long[] bits) {
+		this.bits = bits;
+	}
+
+	static long hash(byte[] key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	void add(byte[] key) {
+		add(hash(key));
+	}
+
+	void add(long hash) {
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			int bit = bit(h1, h2, i);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	boolean mightContain(byte[] key) {
+		long hash = hash(key);
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			int bit = bit(h1, h2, i);
+			if ((bits[bit >>> 6] & 1L << bit) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// The position of the i-th bit of a key
+	private int bit(int h1, int h2, int i) {
+		return (int) (((h1 + i * h2) & 0xffffffffL) % (bits.length * 64L));
+	}
+
+	int size() {
+		return 4 + bits.length * 8;
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(bits.length);
+		for (long word : bits)
+			out.writeLong(word);
+	}
+
+	static BloomFilter read(DataInput in) throws IOException {
+		int words = in.readInt();
+		if (words < 1)
+			throw new IOException("Invalid filter size: " + words);
+		long[] bits = new long[words];
+		for (int i = 0; i < words; i++)
+			bits[i] = in.readLong();
+		return new BloomFilter(bits);
+	}
+
+}
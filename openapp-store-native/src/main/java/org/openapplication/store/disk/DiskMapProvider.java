@@ -15,58 +15,95 @@
  */
 package org.openapplication.store.disk;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.openapplication.encoding.Binary;
 import org.openapplication.store.ByteArrayComparator;
+import org.openapplication.store.MapKeyValue;
 import org.openapplication.store.MapProvider;
 
+// Each map is split into regions by key range, each region logged to a
+// file of its own (named by the first key of the range) and read into
+// memory only when its range is accessed. Regions whose files grow past
+// the region size are split in two (or only rewritten, if the file is
+// mostly overwritten entries), and the least recently used regions are
+// dropped from memory when too many are resident. A Bloom filter of the
+// keys of each dropped region is kept, and saved next to the map
+// directory, so that looking up absent keys doesn't read the region.
 public class DiskMapProvider implements MapProvider {
 
-	private final Map<UUID, SortedMap<byte[], ConcurrentNavigableMap<byte[], byte[]>>> storageMap;
+	public static final long DEFAULT_REGION_SIZE = 8 * 1024 * 1024;
 
-	private final Map<UUID, SortedMap<byte[], File>> fileMap;
+	public static final int DEFAULT_MAX_RESIDENT_REGIONS = 64;
 
-	private final Map<UUID, SortedMap<byte[], RandomAccessFile>> accessMap;
+	private final Map<UUID, NavigableMap<byte[], Region>> regionMap;
+
+	// Loaded regions, least recently used first
+	private final Map<Region, Boolean> resident;
+
+	// Held shared by writers from applying operations until they are
+	// logged, and exclusively while regions are split or dropped
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
 	private final File directory;
 
+	private volatile long regionSize = DEFAULT_REGION_SIZE;
+
+	private volatile int maxResidentRegions = DEFAULT_MAX_RESIDENT_REGIONS;
+
+	private DiskVolumeProvider volumeProvider;
+
 	public DiskMapProvider(File directory) {
-		storageMap = new HashMap<UUID, SortedMap<byte[], ConcurrentNavigableMap<byte[], byte[]>>>();
-		fileMap = new HashMap<UUID, SortedMap<byte[], File>>();
-		accessMap = new HashMap<UUID, SortedMap<byte[], RandomAccessFile>>();
+		regionMap = new HashMap<UUID, NavigableMap<byte[], Region>>();
+		resident = new LinkedHashMap<Region, Boolean>(16, 0.75f, true);
 		this.directory = directory;
 	}
 
+	public void setRegionSize(long regionSize) {
+		this.regionSize = regionSize;
+	}
+
+	public void setMaxResidentRegions(int maxResidentRegions) {
+		if (maxResidentRegions < 1)
+			throw new IllegalArgumentException();
+		this.maxResidentRegions = maxResidentRegions;
+	}
+
 	public ConcurrentNavigableMap<byte[], byte[]> instantiate() {
 		return new ConcurrentSkipListMap<byte[], byte[]>(
 				ByteArrayComparator.INSTANCE);
 	}
 
 	@Override
-	public final void prepare(UUID keyUuid) {
-		if (!storageMap.containsKey(keyUuid)) {
-			storageMap
-					.put(keyUuid,
-							new TreeMap<byte[], ConcurrentNavigableMap<byte[], byte[]>>(
-									ByteArrayComparator.INSTANCE));
-
-			accessMap.put(keyUuid, new TreeMap<byte[], RandomAccessFile>(
-					ByteArrayComparator.INSTANCE));
-
-			SortedMap<byte[], File> files = new TreeMap<byte[], File>(
+	public final synchronized void prepare(UUID keyUuid) {
+		if (!regionMap.containsKey(keyUuid)) {
+			NavigableMap<byte[], Region> regions = new TreeMap<byte[], Region>(
 					ByteArrayComparator.INSTANCE);
-			fileMap.put(keyUuid, files);
+			regionMap.put(keyUuid, regions);
 
 			File mapDir = new File(directory, keyUuid.toString());
 			if (!mapDir.exists()) {
@@ -79,69 +116,301 @@ public class DiskMapProvider implements MapProvider {
 				}
 			}
 
-			for (File mapFile : mapDir.listFiles())
-				files.put(Binary.asByteArray(mapFile.getName()), mapFile);
+			for (File mapFile : mapDir.listFiles()) {
+				byte[] start = Binary.asByteArray(mapFile.getName());
+				Region region = new Region(regions, start, mapFile);
+				region.filter = readFilter(region);
+				regions.put(start, region);
+			}
 		}
 	}
 
+	// With wantSubsequentUntil, the first non-empty region after the one
+	// holding the key, if it starts before wantSubsequentUntil
 	@Override
 	public final ConcurrentNavigableMap<byte[], byte[]> get(UUID keyUuid,
 			byte[] key, byte[] wantSubsequentUntil) {
-		SortedMap<byte[], ConcurrentNavigableMap<byte[], byte[]>> maps = storageMap
-				.get(keyUuid);
-		if (maps == null)
-			return null;
+		ConcurrentNavigableMap<byte[], byte[]> map;
+		synchronized (this) {
+			NavigableMap<byte[], Region> regions = regionMap.get(keyUuid);
+			if (regions == null)
+				return null;
 
-		// TODO: Handling for multiple regions
-		if (wantSubsequentUntil != null)
-			return null;
-		byte[] mapKey = new byte[] { 0 };
+			Region region = region(regions, key);
+			if (wantSubsequentUntil == null)
+				map = load(region);
+			else
+				do {
+					Map.Entry<byte[], Region> next = regions
+							.higherEntry(region.start);
+					if (next == null
+							|| ByteArrayComparator.INSTANCE.compare(
+									next.getKey(), wantSubsequentUntil) >= 0)
+						return null;
+					region = next.getValue();
+				} while ((map = load(region)).isEmpty());
+		}
+
+		// Writers hold the lock shared until they are done, so regions are
+		// dropped here only when called outside of a write
+		if (residentExcess() && lock.writeLock().tryLock())
+			try {
+				synchronized (this) {
+					evict();
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		return map;
+	}
 
-		ConcurrentNavigableMap<byte[], byte[]> map = maps.get(mapKey);
-		if (map == null) {
-			System.out.println("Reading map");
+	// False only if the key is known to be absent without reading it
+	public synchronized boolean mightContain(UUID keyUuid, byte[] key) {
+		NavigableMap<byte[], Region> regions = regionMap.get(keyUuid);
+		if (regions == null)
+			return true;
+		Region region = region(regions, key);
+		return region.map != null || region.filter == null
+				|| region.filter.mightContain(key);
+	}
+
+	public synchronized DiskVolumeProvider getVolumeProvider() {
+		if (volumeProvider == null)
+			volumeProvider = new DiskVolumeProvider(new File(directory,
+					"blobs"));
+		return volumeProvider;
+	}
 
-			File file = fileMap.get(keyUuid).get(mapKey);
+	// Null unless getVolumeProvider() was called
+	synchronized DiskVolumeProvider volumeProvider() {
+		return volumeProvider;
+	}
+
+	public synchronized RandomAccessFile getFile(UUID keyUuid, byte[] key) {
+		Region region = region(regionMap.get(keyUuid), key);
+		load(region);
+		return region.access;
+	}
 
-			RandomAccessFile access;
+	Lock sharedLock() {
+		return lock.readLock();
+	}
+
+	Lock exclusiveLock() {
+		return lock.writeLock();
+	}
+
+	// The DiskStore's write-ahead log
+	File logFile() {
+		return new File(directory, "wal");
+	}
+
+	// Splits or rewrites the regions the operations were logged to, if
+	// their files have grown too large, and drops regions from memory if
+	// too many are resident; called by writers after releasing the lock
+	void maintain(List<MapKeyValue> ops) {
+		Set<Region> oversize = new HashSet<Region>();
+		synchronized (this) {
 			try {
-				access = new RandomAccessFile(file, "rw");
-			} catch (FileNotFoundException e) {
+				for (MapKeyValue op : ops) {
+					Region region = region(regionMap.get(op.map), op.key);
+					if (region.access != null
+							&& region.access.length() > regionSize)
+						oversize.add(region);
+				}
+			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
-			accessMap.get(keyUuid).put(mapKey, access);
+		}
+		if (oversize.isEmpty() && !residentExcess())
+			return;
+
+		lock.writeLock().lock();
+		try {
+			synchronized (this) {
+				for (Region region : oversize)
+					if (region.map != null
+							&& region.regions.get(region.start) == region)
+						reorganize(region);
+				evict();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private synchronized boolean residentExcess() {
+		return resident.size() > maxResidentRegions;
+	}
 
-			map = instantiate();
-			maps.put(mapKey, map);
+	private static Region region(NavigableMap<byte[], Region> regions,
+			byte[] key) {
+		Map.Entry<byte[], Region> floor = regions.floorEntry(key);
+		return (floor != null ? floor : regions.firstEntry()).getValue();
+	}
+
+	private ConcurrentNavigableMap<byte[], byte[]> load(Region region) {
+		if (region.map != null) {
+			resident.get(region);
+			return region.map;
+		}
+
+		ConcurrentNavigableMap<byte[], byte[]> map = instantiate();
+		region.access = WriteAheadLog.replay(region.file, map);
+
+		// A crash while splitting may leave entries behind in the region
+		// that they were moved out of
+		byte[] next = region.regions.higherKey(region.start);
+		if (next != null)
+			map.tailMap(next).clear();
+		if (region.regions.firstEntry().getValue() != region)
+			map.headMap(region.start).clear();
+
+		// The filter is rebuilt once the region is dropped again
+		region.filter = null;
+		filterFile(region).delete();
 
+		region.map = map;
+		resident.put(region, Boolean.TRUE);
+		return map;
+	}
+
+	private void evict() {
+		Iterator<Region> leastRecent = resident.keySet().iterator();
+		while (resident.size() > maxResidentRegions && leastRecent.hasNext()) {
+			Region region = leastRecent.next();
 			try {
-				while (access.getFilePointer() < access.length()) {
-					int readLength = access.readShort();
-					byte[] readKey = new byte[readLength];
-					access.readFully(readKey);
-
-					readLength = access.readShort();
-					byte[] readValue = new byte[readLength];
-					access.readFully(readValue);
-
-					if (readKey.length > 0)
-						map.put(readKey, readValue);
-					else
-						map.remove(readValue);
-				}
+				// Forced, as the log only holds operations since the last
+				// checkpoint
+				region.access.getChannel().force(false);
+				region.access.close();
+				writeFilter(region);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
+			region.access = null;
+			region.map = null;
+			leastRecent.remove();
+		}
+	}
+
+	private static File filterFile(Region region) {
+		return new File(region.file.getParentFile().getPath() + ".bloom",
+				region.file.getName());
+	}
 
-			System.out.println("Reading map done");
+	// Saved along with the length of the region file, and not used if the
+	// file has changed since
+	private static void writeFilter(Region region) throws IOException {
+		BloomFilter filter = new BloomFilter(region.map.size());
+		for (byte[] key : region.map.keySet())
+			filter.add(key);
+
+		File file = filterFile(region);
+		file.getParentFile().mkdirs();
+		File temporary = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temporary)));
+		try {
+			out.writeLong(region.file.length());
+			filter.write(out);
+		} finally {
+			out.close();
 		}
+		if (!temporary.renameTo(file))
+			throw new IOException("Cannot create " + file);
+		region.filter = filter;
+	}
 
-		return map;
+	private static BloomFilter readFilter(Region region) {
+		File file = filterFile(region);
+		if (!file.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readLong() != region.file.length())
+					return null;
+				return BloomFilter.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
 	}
 
-	public RandomAccessFile getFile(UUID keyUuid, byte[] key) {
-		// TODO: Handling for multiple regions
-		return accessMap.get(keyUuid).get(new byte[] { 0 });
+	private void reorganize(Region region) throws IOException {
+		ConcurrentNavigableMap<byte[], byte[]> map = region.map;
+		long live = 0;
+		for (Map.Entry<byte[], byte[]> entry : map.entrySet())
+			live += 4 + entry.getKey().length + entry.getValue().length;
+
+		if (live > regionSize / 2 && map.size() > 1) {
+			// The shortest key separating the lower half from the upper
+			byte[] previous = null, middle = null;
+			Iterator<byte[]> keys = map.keySet().iterator();
+			for (int i = 0; i <= map.size() / 2 && keys.hasNext(); i++) {
+				previous = middle;
+				middle = keys.next();
+			}
+			if (previous != null) {
+				byte[] start = separator(previous, middle);
+				ConcurrentNavigableMap<byte[], byte[]> upper = instantiate();
+				upper.putAll(map.tailMap(start));
+
+				// Written before the lower half is rewritten, so that a crash
+				// in between loses nothing
+				Region added = new Region(region.regions, start, new File(
+						region.file.getParentFile(), Binary.asString(start)));
+				added.access = WriteAheadLog.rewrite(added.file, upper);
+				added.map = upper;
+				region.regions.put(start, added);
+				resident.put(added, Boolean.TRUE);
+
+				// Readers still holding the whole map keep seeing all of it
+				ConcurrentNavigableMap<byte[], byte[]> lower = instantiate();
+				lower.putAll(map.headMap(start));
+				region.map = map = lower;
+			}
+		}
+
+		region.access.close();
+		region.access = WriteAheadLog.rewrite(region.file, map);
+	}
+
+	private static byte[] separator(byte[] lower, byte[] upper) {
+		int i = 0;
+		while (i < lower.length && i < upper.length && lower[i] == upper[i])
+			i++;
+		return Arrays.copyOf(upper, Math.min(i + 1, upper.length));
+	}
+
+	private static final class Region {
+
+		final NavigableMap<byte[], Region> regions;
+
+		final byte[] start;
+
+		final File file;
+
+		// Null while not loaded
+		ConcurrentNavigableMap<byte[], byte[]> map;
+
+		RandomAccessFile access;
+
+		// Of the keys in the file while not loaded; null if not known
+		BloomFilter filter;
+
+		Region(NavigableMap<byte[], Region> regions, byte[] start, File file) {
+			this.regions = regions;
+			this.start = start;
+			this.file = file;
+		}
+
 	}
 
 }
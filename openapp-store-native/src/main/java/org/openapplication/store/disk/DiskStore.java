@@ -15,16 +15,28 @@
  */
 package org.openapplication.store.disk;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.openapplication.store.Blob;
+import org.openapplication.store.CompactionGuard;
 import org.openapplication.store.Entries;
 import org.openapplication.store.Entry;
 import org.openapplication.store.Field;
+import org.openapplication.store.Key;
 import org.openapplication.store.MapKeyValue;
+import org.openapplication.store.MultipartUpload;
+import org.openapplication.store.PreparedQuery;
+import org.openapplication.store.StoreImpl;
 import org.openapplication.store.StoreServer;
 import org.openapplication.store.StreamEncoding;
 
@@ -34,59 +46,229 @@ public final class DiskStore implements StoreServer {
 
 	private final StoreServer storeImpl;
 
+	private final WriteAheadLog log;
+
+	private final Lock order = new ReentrantLock();
+
 	public DiskStore(DiskMapProvider mapProvider, StoreServer storeImpl) {
 		this.mapProvider = mapProvider;
 		this.storeImpl = storeImpl;
+		log = new WriteAheadLog(mapProvider);
 	}
 
-	@Override
-	public List<MapKeyValue> put(Field<?>... fields) {
-		List<MapKeyValue> ops = storeImpl.put(fields);
+	// Defaults to BATCH
+	public void setDurability(Durability durability) {
+		log.setDurability(durability);
+	}
 
-		for (MapKeyValue op : ops) {
-			RandomAccessFile file = mapProvider.getFile(op.map, op.key);
-			try {
-				file.seek(file.length());
+	// The size the log grows to before the map files are forced and the log
+	// starts over; defaults to 64 MB
+	public void setCheckpointSize(long checkpointSize) {
+		log.setCheckpointSize(checkpointSize);
+	}
 
-				file.writeShort(op.key.length);
-				file.write(op.key);
+	// Waits for the writes in progress, forces everything written and stops
+	// the log; writing afterwards fails
+	public void close() {
+		Lock lock = mapProvider.exclusiveLock();
+		lock.lock();
+		try {
+			log.close();
+		} finally {
+			lock.unlock();
+		}
+	}
 
-				file.writeShort(op.value.length);
-				file.write(op.value);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+	@Override
+	public List<MapKeyValue> put(final Field<?>... fields) {
+		return write(new Write() {
+			@Override
+			List<MapKeyValue> apply() {
+				return storeImpl.put(fields);
 			}
-		}
+		});
+	}
 
-		return ops;
+	@Override
+	public List<MapKeyValue> remove(final Field<?>... fields) {
+		return write(new Write() {
+			@Override
+			List<MapKeyValue> apply() {
+				return storeImpl.remove(fields);
+			}
+		});
 	}
 
 	@Override
-	public List<MapKeyValue> remove(Field<?>... fields) {
-		List<MapKeyValue> ops = storeImpl.remove(fields);
+	public List<MapKeyValue> putAll(final List<Field<?>[]> entries) {
+		return write(new Write() {
+			@Override
+			List<MapKeyValue> apply() {
+				return storeImpl.putAll(entries);
+			}
+		});
+	}
 
-		for (MapKeyValue op : ops) {
-			RandomAccessFile file = mapProvider.getFile(op.map, op.key);
-			try {
-				file.seek(file.length());
+	@Override
+	public List<MapKeyValue> removeAll(final List<Field<?>[]> entries) {
+		return write(new Write() {
+			@Override
+			List<MapKeyValue> apply() {
+				return storeImpl.removeAll(entries);
+			}
+		});
+	}
 
-				file.writeShort(0);
+	// Moves live blobs out of mostly garbage volumes (see StoreImpl.compact)
+	// and logs the rewritten entries; the lock is held for one region at a
+	// time, so that regions can be dropped from memory in between
+	public List<MapKeyValue> compact() {
+		if (!(storeImpl instanceof StoreImpl))
+			throw new UnsupportedOperationException();
+		final Lock lock = mapProvider.sharedLock();
+		return ((StoreImpl) storeImpl).compact(new CompactionGuard() {
+			@Override
+			public void enter() {
+				lock.lock();
+				order.lock();
+			}
 
-				file.writeShort(op.key.length);
-				file.write(op.key);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+			@Override
+			public void exit(List<MapKeyValue> ops) {
+				try {
+					WriteAheadLog.Commit commit;
+					try {
+						commit = log.enqueue(ops);
+					} finally {
+						order.unlock();
+					}
+					log.await(commit);
+				} finally {
+					lock.unlock();
+				}
+				mapProvider.maintain(ops);
+				checkpoint();
 			}
-		}
+		});
+	}
 
+	// Operations are queued to the log in the order they are applied, so
+	// that concurrent writes to a key are replayed in the same order
+	private List<MapKeyValue> write(Write write) {
+		List<MapKeyValue> ops;
+		Lock lock = mapProvider.sharedLock();
+		lock.lock();
+		try {
+			WriteAheadLog.Commit commit;
+			order.lock();
+			try {
+				ops = write.apply();
+				commit = log.enqueue(ops);
+			} finally {
+				order.unlock();
+			}
+			log.await(commit);
+		} finally {
+			lock.unlock();
+		}
+		mapProvider.maintain(ops);
+		checkpoint();
 		return ops;
 	}
 
+	// Once the log has grown large enough; writers hold the lock shared
+	// until their operations are logged, so none are in progress meanwhile
+	private void checkpoint() {
+		if (!log.isCheckpointDue())
+			return;
+		Lock lock = mapProvider.exclusiveLock();
+		lock.lock();
+		try {
+			if (log.isCheckpointDue())
+				log.checkpoint();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Runs compact() periodically, so that the rewritten entries are logged
+	public ScheduledFuture<?> scheduleCompaction(
+			ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		}, period, period, unit);
+	}
+
+	// Keys known to be absent are answered without reading their regions
 	@Override
 	public Entry get(Field<?>... fields) {
+		if (!mightContain(fields))
+			return null;
 		return storeImpl.get(fields);
 	}
 
+	@Override
+	public List<Entry> getAll(List<Field<?>[]> keys) {
+		boolean[] absent = new boolean[keys.size()];
+		List<Field<?>[]> present = new ArrayList<Field<?>[]>(keys.size());
+		for (int i = 0; i < absent.length; i++) {
+			absent[i] = !mightContain(keys.get(i));
+			if (!absent[i])
+				present.add(keys.get(i));
+		}
+		if (present.size() == keys.size())
+			return storeImpl.getAll(keys);
+
+		Iterator<Entry> found = storeImpl.getAll(present).iterator();
+		List<Entry> entries = new ArrayList<Entry>(keys.size());
+		for (boolean skipped : absent)
+			entries.add(skipped ? null : found.next());
+		return entries;
+	}
+
+	private boolean mightContain(Field<?>... fields) {
+		return mapProvider.mightContain(Key.asUuid(fields),
+				new Entry(fields).getBytes(fields));
+	}
+
+	// Prepared gets of keys known to be absent are answered the same way
+	@Override
+	public PreparedQuery prepare(final Field<?>... fields) {
+		final PreparedQuery prepared = storeImpl.prepare(fields);
+		return new PreparedQuery() {
+			@Override
+			public Entry get(Object... values) {
+				if (values.length <= fields.length
+						&& !mightContain(bind(fields, values)))
+					return null;
+				return prepared.get(values);
+			}
+
+			@Override
+			public Entries iterate(Entry first, Entry last, Object... values) {
+				return prepared.iterate(first, last, values);
+			}
+
+			@Override
+			public Entries iterateNext(byte[] subsequent, Entry first,
+					Entry last, Object... values) {
+				return prepared.iterateNext(subsequent, first, last, values);
+			}
+		};
+	}
+
+	// The prepared fields with the given values in place of the first ones
+	@SuppressWarnings("unchecked")
+	private static Field<?>[] bind(Field<?>[] fields, Object[] values) {
+		Field<?>[] bound = fields.clone();
+		for (int i = 0; i < values.length; i++)
+			bound[i] = ((Field<Object>) fields[i].toField()).value(values[i]);
+		return bound;
+	}
+
 	@Override
 	public Entries iterate(Entry first, Entry last, Field<?>... fields) {
 		return storeImpl.iterate(first, last, fields);
@@ -100,15 +282,45 @@ public final class DiskStore implements StoreServer {
 
 	@Override
 	public InputStream read(Blob blob) {
-		// TODO Implement persistence
 		return storeImpl.read(blob);
 	}
 
+	@Override
+	public InputStream read(Blob blob, long offset, long length) {
+		return storeImpl.read(blob, offset, length);
+	}
+
+	@Override
+	public long read(Blob blob, WritableByteChannel channel) {
+		return storeImpl.read(blob, channel);
+	}
+
+	@Override
+	public ByteBuffer[] readBuffers(Blob blob) {
+		return storeImpl.readBuffers(blob);
+	}
+
 	@Override
 	public Blob write(InputStream stream, StreamEncoding inEncoding,
 			StreamEncoding outEncoding) {
-		// TODO Implement persistence
 		return storeImpl.write(stream, inEncoding, outEncoding);
 	}
 
+	@Override
+	public Blob append(Blob blob, InputStream stream) {
+		return storeImpl.append(blob, stream);
+	}
+
+	@Override
+	public MultipartUpload beginUpload(StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		return storeImpl.beginUpload(inEncoding, outEncoding);
+	}
+
+	private abstract static class Write {
+
+		abstract List<MapKeyValue> apply();
+
+	}
+
 }
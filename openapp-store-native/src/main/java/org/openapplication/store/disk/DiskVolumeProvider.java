@@ -0,0 +1,141 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.openapplication.store.VolumeProvider;
+
+public class DiskVolumeProvider implements VolumeProvider {
+
+	public static final int DEFAULT_VOLUME_SIZE = 64 * 1024 * 1024;
+
+	// Each volume file starts with its allocation point, padded to keep
+	// block offsets 16 byte aligned
+	private static final int HEADER_SIZE = 16;
+
+	private final File directory;
+
+	private final int volumeSize;
+
+	private final List<MappedByteBuffer> volumes;
+
+	// Volumes written to since they were last forced
+	private final Set<Integer> dirty = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	public DiskVolumeProvider(File directory) {
+		this(directory, DEFAULT_VOLUME_SIZE);
+	}
+
+	public DiskVolumeProvider(File directory, int volumeSize) {
+		this.directory = directory;
+		this.volumeSize = volumeSize;
+		volumes = new CopyOnWriteArrayList<MappedByteBuffer>();
+
+		if (!directory.exists())
+			directory.mkdirs();
+		for (int node = 0; new File(directory, Integer.toString(node))
+				.exists(); node++) {
+			MappedByteBuffer volume = map(node, false);
+			volume.position(Math.max(HEADER_SIZE, volume.getInt(0)));
+			volumes.add(volume);
+		}
+	}
+
+	private MappedByteBuffer map(int node, boolean create) {
+		try {
+			RandomAccessFile access = new RandomAccessFile(new File(
+					directory, Integer.toString(node)), "rw");
+			try {
+				if (create)
+					access.setLength(volumeSize);
+				// The mapping stays valid after the file is closed
+				return access.getChannel().map(MapMode.READ_WRITE, 0,
+						access.length());
+			} finally {
+				access.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int count() {
+		return volumes.size();
+	}
+
+	@Override
+	public ByteBuffer get(int node) {
+		return volumes.get(node);
+	}
+
+	@Override
+	public int used(int node) {
+		return volumes.get(node).position();
+	}
+
+	@Override
+	public synchronized int create() {
+		int node = volumes.size();
+		MappedByteBuffer volume = map(node, true);
+		volume.putInt(0, HEADER_SIZE);
+		volume.position(HEADER_SIZE);
+		volumes.add(volume);
+		dirty.add(node);
+		return node;
+	}
+
+	@Override
+	public void acquire(int node) {
+	}
+
+	@Override
+	public void release(int node) {
+		ByteBuffer volume = volumes.get(node);
+		volume.putInt(0, volume.position());
+		dirty.add(node);
+	}
+
+	@Override
+	public void clear(int node) {
+		ByteBuffer volume = volumes.get(node);
+		volume.position(HEADER_SIZE);
+		volume.putInt(0, HEADER_SIZE);
+		dirty.add(node);
+	}
+
+	// Forces the volumes written to since they were last forced; blocks
+	// are written before their volume is released
+	public void flush() {
+		for (Integer node : dirty.toArray(new Integer[0])) {
+			dirty.remove(node);
+			volumes.get(node).force();
+		}
+	}
+
+}
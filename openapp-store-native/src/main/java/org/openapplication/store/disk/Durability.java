@@ -0,0 +1,33 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+// When writes to a DiskStore return, relative to its log reaching the disk;
+// forcing the log first forces the blob volumes written to meanwhile, if
+// they are those of the DiskMapProvider's getVolumeProvider()
+public enum Durability {
+
+	// Written to the log, but not forced to the disk; survives the
+	// process crashing, but not the system
+	NONE,
+
+	// Forced to the disk together with the writes of concurrent writers
+	BATCH,
+
+	// Forced to the disk on its own
+	SYNC
+
+}
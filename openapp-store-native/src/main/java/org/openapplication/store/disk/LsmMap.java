@@ -0,0 +1,889 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.openapplication.store.ByteArrayComparator;
+import org.openapplication.store.NavigableByteMap;
+
+// A log-structured merge tree in a directory of its own. Writes go to a
+// log and a sorted in-memory table, which is flushed to an immutable
+// Segment once large enough; segments of similar size are merged in the
+// background. Removals are written as tombstones, which are dropped once
+// merged into the oldest segment. Puts and removals are blind writes that
+// return null instead of the previous value; only putIfAbsent, replace and
+// the conditional remove look it up.
+public final class LsmMap extends NavigableByteMap {
+
+	public static final int DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+
+	// Segments of similar size merged at once
+	private static final int COMPACTION_THRESHOLD = 4;
+
+	// Memtables waiting to be flushed before writers wait for them
+	private static final int MAX_IMMUTABLE = 4;
+
+	// Per-entry overhead counted towards the memtable size
+	private static final int ENTRY_OVERHEAD = 64;
+
+	// Log records buffered before being written out
+	private static final int LOG_BUFFER = 64 * 1024;
+
+	private final File directory;
+
+	private final int memtableSize;
+
+	// Runs flushes and merges, one at a time
+	private final ExecutorService background;
+
+	// Whether the executor is this map's own, shut down on close
+	private final boolean ownExecutor;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	// Serializes appends to the log and memtable, and conditional writers
+	// while they read the previous value
+	private final Lock writeLock = new ReentrantLock();
+
+	private volatile State state;
+
+	// Snapshots of unfinished iterators, and those of iterators dropped
+	private final Set<Snapshot> snapshots = Collections
+			.newSetFromMap(new ConcurrentHashMap<Snapshot, Boolean>());
+
+	private final ReferenceQueue<Object> abandoned = new ReferenceQueue<Object>();
+
+	public LsmMap(File directory) {
+		this(directory, DEFAULT_MEMTABLE_SIZE);
+	}
+
+	public LsmMap(File directory, int memtableSize) {
+		this(directory, memtableSize, null);
+	}
+
+	// The executor must run its tasks one at a time; if null, the map
+	// starts a thread of its own
+	LsmMap(File directory, int memtableSize, ExecutorService executor) {
+		this.directory = directory;
+		this.memtableSize = memtableSize;
+		ownExecutor = executor == null;
+		background = ownExecutor ? newExecutor() : executor;
+		directory.mkdirs();
+
+		// Segments are named after the range of memtables they hold, and
+		// replace any segments within that range
+		List<long[]> ranges = new ArrayList<long[]>();
+		List<File> logs = new ArrayList<File>();
+		for (File file : directory.listFiles()) {
+			String name = file.getName();
+			if (name.endsWith(".seg"))
+				ranges.add(range(file));
+			else if (name.endsWith(".log"))
+				logs.add(file);
+			else if (name.endsWith(".tmp"))
+				file.delete();
+		}
+		long flushed = 0;
+		List<Segment> segments = new ArrayList<Segment>();
+		for (long[] range : ranges) {
+			boolean replaced = false;
+			for (long[] other : ranges)
+				replaced |= other[0] >= range[0] && other[1] <= range[1]
+						&& other[0] - other[1] > range[0] - range[1];
+			File file = segmentFile(range[0], range[1]);
+			if (replaced)
+				file.delete();
+			else
+				segments.add(Segment.open(file));
+			flushed = Math.max(flushed, range[0]);
+		}
+		Collections.sort(segments, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment o1, Segment o2) {
+				long s1 = range(o1.file())[0], s2 = range(o2.file())[0];
+				return s1 < s2 ? 1 : s1 > s2 ? -1 : 0;
+			}
+		});
+
+		// Logs of memtables not yet flushed are replayed into one
+		Collections.sort(logs, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long s1 = sequenceOf(o1), s2 = sequenceOf(o2);
+				return s1 < s2 ? -1 : s1 > s2 ? 1 : 0;
+			}
+		});
+		long last = flushed;
+		for (File log : logs)
+			last = Math.max(last, sequenceOf(log));
+		sequence.set(last);
+		Memtable memtable = new Memtable(sequence.incrementAndGet());
+		for (File log : logs)
+			if (sequenceOf(log) <= flushed)
+				log.delete();
+			else
+				memtable.replay(log);
+
+		state = new State(memtable, Collections.<Memtable> emptyList(),
+				segments);
+	}
+
+	static ExecutorService newExecutor() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "LsmMap");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getSegmentCount() {
+		return state.segments.size();
+	}
+
+	// Writes the memtable to a segment and waits for it
+	public void flush() {
+		Future<?> flushed;
+		writeLock.lock();
+		try {
+			flushed = rotate();
+		} finally {
+			writeLock.unlock();
+		}
+		await(flushed);
+	}
+
+	// Merges all segments into one and waits for it
+	public void compact() {
+		await(background.submit(new Runnable() {
+			@Override
+			public void run() {
+				merge(state.segments);
+			}
+		}));
+	}
+
+	public void close() {
+		expunge();
+		await(background.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}));
+		State current = state;
+		current.memtable.close();
+		for (Memtable memtable : current.immutable)
+			memtable.close();
+		for (Segment segment : current.segments)
+			segment.release();
+		if (ownExecutor)
+			background.shutdown();
+	}
+
+	private static void await(Future<?> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private File segmentFile(long newest, long oldest) {
+		return new File(directory, newest + "-" + oldest + ".seg");
+	}
+
+	private static long sequenceOf(File log) {
+		String name = log.getName();
+		return Long.parseLong(name.substring(0, name.length() - 4));
+	}
+
+	// The latest value, TOMBSTONE, or null
+	private static byte[] lookup(State current, byte[] key) {
+		byte[] value = current.memtable.map.get(key);
+		if (value != null)
+			return value;
+		for (Memtable memtable : current.immutable)
+			if ((value = memtable.map.get(key)) != null)
+				return value;
+		for (Segment segment : current.segments)
+			if ((value = segment.get(key)) != null)
+				return value;
+		return null;
+	}
+
+	private static byte[] live(byte[] value) {
+		return value != Segment.TOMBSTONE ? value : null;
+	}
+
+	// Must be called with the write lock held; the memtable is rotated
+	// once full, and the writer waits if flushing falls behind
+	private void write(byte[] key, byte[] value) {
+		Future<?> flushed = null;
+		State current = state;
+		current.memtable.write(key, value);
+		if (current.memtable.bytes.get() >= memtableSize) {
+			flushed = rotate();
+			if (state.immutable.size() < MAX_IMMUTABLE)
+				flushed = null;
+		}
+		if (flushed != null) {
+			writeLock.unlock();
+			try {
+				await(flushed);
+			} finally {
+				writeLock.lock();
+			}
+		}
+	}
+
+	private Future<?> rotate() {
+		final State current = state;
+		if (current.memtable.map.isEmpty())
+			return background.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+
+		current.memtable.drain();
+		List<Memtable> immutable = new ArrayList<Memtable>();
+		immutable.add(current.memtable);
+		immutable.addAll(current.immutable);
+		state = new State(new Memtable(sequence.incrementAndGet()),
+				immutable, current.segments);
+		return background.submit(new Runnable() {
+			@Override
+			public void run() {
+				flushOldest();
+				List<Segment> run = compactionRun(state.segments);
+				if (run != null)
+					merge(run);
+			}
+		});
+	}
+
+	private void flushOldest() {
+		List<Memtable> immutable = state.immutable;
+		Memtable memtable = immutable.get(immutable.size() - 1);
+		Segment segment = Segment.write(
+				segmentFile(memtable.sequence, memtable.sequence), memtable.map
+						.entrySet().iterator());
+
+		writeLock.lock();
+		try {
+			State current = state;
+			List<Memtable> remaining = new ArrayList<Memtable>(
+					current.immutable);
+			remaining.remove(memtable);
+			List<Segment> segments = new ArrayList<Segment>();
+			segments.add(segment);
+			segments.addAll(current.segments);
+			state = new State(current.memtable, remaining, segments);
+		} finally {
+			writeLock.unlock();
+		}
+		memtable.close();
+		memtable.delete();
+	}
+
+	// The newest segments, as long as each next one is at most twice their
+	// total size, if there are enough of them
+	private static List<Segment> compactionRun(List<Segment> segments) {
+		long total = 0;
+		int end = 0;
+		while (end < segments.size()
+				&& (end == 0 || segments.get(end).length() <= 2 * total))
+			total += segments.get(end++).length();
+		return end >= COMPACTION_THRESHOLD ? segments.subList(0, end) : null;
+	}
+
+	private void merge(List<Segment> run) {
+		if (run.size() < 2)
+			return;
+
+		List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<Iterator<Map.Entry<byte[], byte[]>>>();
+		for (Segment segment : run)
+			sources.add(segment.iterator(null, false, null, false, false));
+		List<Segment> segments = state.segments;
+		boolean oldest = run.get(run.size() - 1) == segments
+				.get(segments.size() - 1);
+		Segment merged = Segment.write(
+				segmentFile(newest(run), oldest(run)),
+				new MergingIterator(sources, false, !oldest));
+
+		Set<Segment> replaced = new HashSet<Segment>(run);
+		writeLock.lock();
+		try {
+			State current = state;
+			List<Segment> remaining = new ArrayList<Segment>();
+			for (Segment segment : current.segments)
+				if (!replaced.contains(segment))
+					remaining.add(segment);
+				else if (!remaining.contains(merged))
+					remaining.add(merged);
+			state = new State(current.memtable, current.immutable, remaining);
+		} finally {
+			writeLock.unlock();
+		}
+		for (Segment segment : run) {
+			segment.delete();
+			segment.release();
+		}
+	}
+
+	private static long newest(List<Segment> run) {
+		return range(run.get(0).file())[0];
+	}
+
+	private static long oldest(List<Segment> run) {
+		return range(run.get(run.size() - 1).file())[1];
+	}
+
+	// The newest and oldest memtable held by a segment file
+	private static long[] range(File file) {
+		String name = file.getName();
+		String[] range = name.substring(0, name.length() - 4).split("-");
+		return new long[] { Long.parseLong(range[0]), Long.parseLong(range[1]) };
+	}
+
+	// Takes a snapshot of the current state, whose segments stay open
+	// until it is released
+	private State retain() {
+		for (;;) {
+			State current = state;
+			if (current.retain())
+				return current;
+		}
+	}
+
+	// Releases snapshots of iterators dropped before their end
+	private void expunge() {
+		Reference<?> reference;
+		while ((reference = abandoned.poll()) != null)
+			((Snapshot) reference).release();
+	}
+
+	@Override
+	protected byte[] getValue(byte[] key) {
+		State current = retain();
+		try {
+			return live(lookup(current, key));
+		} finally {
+			current.release();
+		}
+	}
+
+	@Override
+	protected byte[] putValue(byte[] key, byte[] value, boolean onlyIfAbsent) {
+		writeLock.lock();
+		try {
+			byte[] previous = onlyIfAbsent ? live(lookup(state, key)) : null;
+			if (previous == null)
+				write(key, value);
+			return previous;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	protected byte[] replaceValue(byte[] key, byte[] value) {
+		writeLock.lock();
+		try {
+			byte[] previous = live(lookup(state, key));
+			if (previous != null)
+				write(key, value);
+			return previous;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	protected boolean replaceValue(byte[] key, byte[] expect, byte[] value) {
+		writeLock.lock();
+		try {
+			if (!Arrays.equals(expect, live(lookup(state, key))))
+				return false;
+			write(key, value);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	protected byte[] removeValue(byte[] key) {
+		writeLock.lock();
+		try {
+			write(key, Segment.TOMBSTONE);
+			return null;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	protected boolean removeValue(byte[] key, byte[] expect) {
+		writeLock.lock();
+		try {
+			byte[] previous = live(lookup(state, key));
+			if (previous == null || !Arrays.equals(expect, previous))
+				return false;
+			write(key, Segment.TOMBSTONE);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	protected Map.Entry<byte[], byte[]> findEntry(byte[] key, int relation) {
+		State current = retain();
+		try {
+			Iterator<Map.Entry<byte[], byte[]>> entries;
+			if (relation == GE || relation == GT)
+				entries = entries(current, key, relation == GE, null, false,
+						false);
+			else
+				entries = entries(current, null, false, key, relation == LE,
+						true);
+			return entries.hasNext() ? entries.next() : null;
+		} finally {
+			current.release();
+		}
+	}
+
+	@Override
+	protected Iterator<Map.Entry<byte[], byte[]>> entryIterator(byte[] lo,
+			boolean loInclusive, byte[] hi, boolean hiInclusive,
+			boolean descending) {
+		expunge();
+		State current = retain();
+		Iterator<Map.Entry<byte[], byte[]>> entries;
+		try {
+			entries = entries(current, lo, loInclusive, hi, hiInclusive,
+					descending);
+		} catch (RuntimeException e) {
+			current.release();
+			throw e;
+		}
+
+		SnapshotIterator iterator = new SnapshotIterator(entries);
+		iterator.snapshot = new Snapshot(iterator, current);
+		return iterator;
+	}
+
+	private static Iterator<Map.Entry<byte[], byte[]>> entries(State current,
+			byte[] lo, boolean loInclusive, byte[] hi, boolean hiInclusive,
+			boolean descending) {
+		List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<Iterator<Map.Entry<byte[], byte[]>>>();
+		sources.add(range(current.memtable.map, lo, loInclusive, hi,
+				hiInclusive, descending));
+		for (Memtable memtable : current.immutable)
+			sources.add(range(memtable.map, lo, loInclusive, hi, hiInclusive,
+					descending));
+		for (Segment segment : current.segments)
+			sources.add(segment.iterator(lo, loInclusive, hi, hiInclusive,
+					descending));
+		return new MergingIterator(sources, descending, false);
+	}
+
+	private static Iterator<Map.Entry<byte[], byte[]>> range(
+			ConcurrentNavigableMap<byte[], byte[]> map, byte[] lo,
+			boolean loInclusive, byte[] hi, boolean hiInclusive,
+			boolean descending) {
+		if (lo != null && hi != null)
+			map = map.subMap(lo, loInclusive, hi, hiInclusive);
+		else if (lo != null)
+			map = map.tailMap(lo, loInclusive);
+		else if (hi != null)
+			map = map.headMap(hi, hiInclusive);
+		if (descending)
+			map = map.descendingMap();
+		return map.entrySet().iterator();
+	}
+
+	@Override
+	protected int count() {
+		int count = 0;
+		for (Iterator<Map.Entry<byte[], byte[]>> entries = entryIterator(null,
+				false, null, false, false); entries.hasNext(); entries.next())
+			count++;
+		return count;
+	}
+
+	private static final class State {
+
+		final Memtable memtable;
+
+		// Newest first, as are the segments
+		final List<Memtable> immutable;
+
+		final List<Segment> segments;
+
+		State(Memtable memtable, List<Memtable> immutable,
+				List<Segment> segments) {
+			this.memtable = memtable;
+			this.immutable = Collections.unmodifiableList(immutable);
+			this.segments = Collections.unmodifiableList(segments);
+		}
+
+		// Fails if a segment was closed meanwhile, in which case the state
+		// has been replaced
+		boolean retain() {
+			for (int i = 0; i < segments.size(); i++)
+				if (!segments.get(i).retain()) {
+					while (--i >= 0)
+						segments.get(i).release();
+					return false;
+				}
+			return true;
+		}
+
+		void release() {
+			for (Segment segment : segments)
+				segment.release();
+		}
+
+	}
+
+	// Records in the log are laid out as payload length, CRC-32 of the
+	// payload, and the payload: key length, key, and value length (-1 for
+	// a tombstone) and value. Records are buffered, and written out when
+	// the buffer fills or the memtable is rotated or closed.
+	private final class Memtable {
+
+		final long sequence;
+
+		final ConcurrentSkipListMap<byte[], byte[]> map = new ConcurrentSkipListMap<byte[], byte[]>(
+				ByteArrayComparator.INSTANCE);
+
+		final AtomicLong bytes = new AtomicLong();
+
+		private final File log;
+
+		private final FileChannel channel;
+
+		// Logs of an earlier run, deleted along with this one
+		private final List<File> replayed = new ArrayList<File>();
+
+		private final CRC32 crc = new CRC32();
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(LOG_BUFFER);
+
+		Memtable(long sequence) {
+			this.sequence = sequence;
+			log = new File(directory, sequence + ".log");
+			try {
+				channel = new RandomAccessFile(log, "rw").getChannel();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void write(byte[] key, byte[] value) {
+			int length = 8 + key.length
+					+ (value != Segment.TOMBSTONE ? value.length : 0);
+			if (buffer.remaining() < 8 + length)
+				drain();
+			ByteBuffer record = buffer.remaining() >= 8 + length ? buffer
+					: ByteBuffer.allocate(8 + length);
+			int start = record.position();
+			record.position(start + 8);
+			record.putInt(key.length).put(key);
+			if (value != Segment.TOMBSTONE)
+				record.putInt(value.length).put(value);
+			else
+				record.putInt(-1);
+			crc.reset();
+			crc.update(record.array(), start + 8, length);
+			record.putInt(start, length).putInt(start + 4,
+					(int) crc.getValue());
+			if (record != buffer) {
+				record.flip();
+				writeFully(record);
+			}
+			put(key, value);
+		}
+
+		// Writes out the buffered records
+		void drain() {
+			buffer.flip();
+			writeFully(buffer);
+			buffer.clear();
+		}
+
+		private void writeFully(ByteBuffer records) {
+			try {
+				while (records.hasRemaining())
+					channel.write(records);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void put(byte[] key, byte[] value) {
+			byte[] previous = map.put(key, value);
+			bytes.addAndGet(key.length + value.length + ENTRY_OVERHEAD
+					- (previous != null ? key.length + previous.length
+							+ ENTRY_OVERHEAD : 0));
+		}
+
+		// Reads the records up to the first torn one; the log is kept until
+		// this memtable is flushed
+		void replay(File file) {
+			replayed.add(file);
+			try {
+				RandomAccessFile access = new RandomAccessFile(file, "r");
+				try {
+					long end = 0;
+					while (access.length() - end >= 8) {
+						int length = access.readInt();
+						int checksum = access.readInt();
+						if (length < 8 || length > access.length() - end - 8)
+							break;
+						byte[] payload = new byte[length];
+						access.readFully(payload);
+						crc.reset();
+						crc.update(payload);
+						if ((int) crc.getValue() != checksum)
+							break;
+
+						ByteBuffer record = ByteBuffer.wrap(payload);
+						byte[] key = new byte[record.getInt()];
+						record.get(key);
+						int valueLength = record.getInt();
+						byte[] value = Segment.TOMBSTONE;
+						if (valueLength >= 0)
+							record.get(value = new byte[valueLength]);
+						put(key, value);
+						end += 8 + length;
+					}
+				} finally {
+					access.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void close() {
+			drain();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void delete() {
+			log.delete();
+			for (File file : replayed)
+				file.delete();
+		}
+
+	}
+
+	// Released at the end of the iteration, or once the iterator is
+	// unreachable
+	private final class Snapshot extends PhantomReference<Object> {
+
+		private State state;
+
+		Snapshot(Object iterator, State state) {
+			super(iterator, abandoned);
+			this.state = state;
+			snapshots.add(this);
+		}
+
+		void release() {
+			State released;
+			synchronized (this) {
+				released = state;
+				state = null;
+			}
+			if (released != null) {
+				snapshots.remove(this);
+				released.release();
+			}
+		}
+
+	}
+
+	private static final class SnapshotIterator implements
+			Iterator<Map.Entry<byte[], byte[]>> {
+
+		private final Iterator<Map.Entry<byte[], byte[]>> entries;
+
+		Snapshot snapshot;
+
+		SnapshotIterator(Iterator<Map.Entry<byte[], byte[]>> entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (entries.hasNext())
+				return true;
+			snapshot.release();
+			return false;
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			return entries.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	// Merges sorted sources, the newest first; of equal keys, only the
+	// newest entry is returned
+	private static final class MergingIterator implements
+			Iterator<Map.Entry<byte[], byte[]>> {
+
+		private final PriorityQueue<Head> heads;
+
+		private final boolean keepTombstones;
+
+		private Map.Entry<byte[], byte[]> next;
+
+		MergingIterator(List<Iterator<Map.Entry<byte[], byte[]>>> sources,
+				final boolean descending, boolean keepTombstones) {
+			this.keepTombstones = keepTombstones;
+			heads = new PriorityQueue<Head>(Math.max(1, sources.size()),
+					new Comparator<Head>() {
+						@Override
+						public int compare(Head o1, Head o2) {
+							int c = ByteArrayComparator.INSTANCE.compare(
+									o1.entry.getKey(), o2.entry.getKey());
+							if (c != 0)
+								return descending ? -c : c;
+							return o1.source - o2.source;
+						}
+					});
+			for (int i = 0; i < sources.size(); i++) {
+				Head head = new Head(i, sources.get(i));
+				if (head.advance())
+					heads.add(head);
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && !heads.isEmpty()) {
+				Head head = heads.poll();
+				Map.Entry<byte[], byte[]> entry = head.entry;
+				if (head.advance())
+					heads.add(head);
+				while (!heads.isEmpty()
+						&& Arrays.equals(heads.peek().entry.getKey(),
+								entry.getKey())) {
+					Head older = heads.poll();
+					if (older.advance())
+						heads.add(older);
+				}
+				if (keepTombstones || entry.getValue() != Segment.TOMBSTONE)
+					next = entry;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			Map.Entry<byte[], byte[]> entry = next;
+			advance();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	private static final class Head {
+
+		final int source;
+
+		final Iterator<Map.Entry<byte[], byte[]>> entries;
+
+		Map.Entry<byte[], byte[]> entry;
+
+		Head(int source, Iterator<Map.Entry<byte[], byte[]>> entries) {
+			this.source = source;
+			this.entries = entries;
+		}
+
+		boolean advance() {
+			if (!entries.hasNext())
+				return false;
+			entry = entries.next();
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+import java.io.File;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ExecutorService;
+
+import org.openapplication.store.MapProviderImpl;
+
+public class LsmMapProvider extends MapProviderImpl {
+
+	private final File directory;
+
+	private final Map<UUID, LsmMap> maps;
+
+	private int memtableSize = LsmMap.DEFAULT_MEMTABLE_SIZE;
+
+	// Flushes and merges of this provider's maps
+	private final ExecutorService executor = LsmMap.newExecutor();
+
+	public LsmMapProvider(File directory) {
+		this.directory = directory;
+		maps = new ConcurrentHashMap<UUID, LsmMap>();
+	}
+
+	public void setMemtableSize(int memtableSize) {
+		this.memtableSize = memtableSize;
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> instantiate(UUID keyUuid) {
+		LsmMap map = new LsmMap(new File(directory, keyUuid.toString()),
+				memtableSize, executor);
+		maps.put(keyUuid, map);
+		return map;
+	}
+
+	public LsmMap getMap(UUID keyUuid) {
+		return maps.get(keyUuid);
+	}
+
+	public void flush() {
+		for (LsmMap map : maps.values())
+			map.flush();
+	}
+
+	public void close() {
+		for (LsmMap map : maps.values())
+			map.close();
+		maps.clear();
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,452 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.openapplication.store.ByteArrayComparator;
+
+// An immutable sorted run of entries, in deflated blocks of about
+// BLOCK_SIZE bytes, followed by a sparse index holding the first key of
+// each block, a Bloom filter of all keys, and a footer locating the index
+// and the filter. Removed entries are kept as tombstones until compaction
+// has nothing older to hide.
+final class Segment {
+
+	// Value of a removed entry, compared by identity
+	static final byte[] TOMBSTONE = new byte[0];
+
+	private static final long MAGIC = 0x4f414c534d000001L;
+
+	private static final int BLOCK_SIZE = 4 * 1024;
+
+	// Index offset and length, filter length, and the magic
+	private static final int FOOTER_SIZE = 8 + 4 + 4 + 8;
+
+	// Decoded blocks kept per segment
+	private static final int CACHED_BLOCKS = 16;
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private final long length;
+
+	private final byte[][] firstKeys;
+
+	private final long[] offsets;
+
+	private final int[] sizes;
+
+	private final BloomFilter filter;
+
+	// Held by the map while the segment is current, and by each snapshot
+	// reading it
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	private final Map<Integer, Block> cache = new LinkedHashMap<Integer, Block>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+			return size() > CACHED_BLOCKS;
+		}
+	};
+
+	private Segment(File file) throws IOException {
+		this.file = file;
+		channel = new RandomAccessFile(file, "r").getChannel();
+		length = channel.size();
+
+		ByteBuffer footer = read(length - FOOTER_SIZE, FOOTER_SIZE);
+		long indexOffset = footer.getLong();
+		int indexLength = footer.getInt();
+		int filterLength = footer.getInt();
+		if (footer.getLong() != MAGIC)
+			throw new IOException("Not a segment: " + file);
+
+		ByteBuffer index = read(indexOffset, indexLength);
+		int count = index.getInt();
+		firstKeys = new byte[count][];
+		offsets = new long[count];
+		sizes = new int[count];
+		for (int i = 0; i < count; i++) {
+			firstKeys[i] = new byte[index.getInt()];
+			index.get(firstKeys[i]);
+			offsets[i] = index.getLong();
+			sizes[i] = index.getInt();
+		}
+
+		filter = BloomFilter.read(new DataInputStream(new ByteArrayInputStream(
+				read(indexOffset + indexLength, filterLength).array())));
+	}
+
+	static Segment open(File file) {
+		try {
+			return new Segment(file);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Writes the entries, in ascending key order, to a temporary file which
+	// is renamed to the given one once complete
+	static Segment write(File file, Iterator<Map.Entry<byte[], byte[]>> entries) {
+		File temporary = new File(file.getPath() + ".tmp");
+		try {
+			RandomAccessFile access = new RandomAccessFile(temporary, "rw");
+			try {
+				access.setLength(0);
+				ByteArrayOutputStream index = new ByteArrayOutputStream();
+				DataOutputStream indexOut = new DataOutputStream(index);
+				ByteArrayOutputStream block = new ByteArrayOutputStream();
+				DataOutputStream blockOut = new DataOutputStream(block);
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				byte[] firstKey = null;
+				int count = 0;
+				long[] hashes = new long[1024];
+				int keys = 0;
+				try {
+					while (entries.hasNext()) {
+						Map.Entry<byte[], byte[]> entry = entries.next();
+						if (firstKey == null)
+							firstKey = entry.getKey();
+						if (keys == hashes.length)
+							hashes = Arrays.copyOf(hashes, keys * 2);
+						hashes[keys++] = BloomFilter.hash(entry.getKey());
+						blockOut.writeInt(entry.getKey().length);
+						blockOut.write(entry.getKey());
+						if (entry.getValue() == TOMBSTONE)
+							blockOut.writeInt(-1);
+						else {
+							blockOut.writeInt(entry.getValue().length);
+							blockOut.write(entry.getValue());
+						}
+						if (block.size() >= BLOCK_SIZE || !entries.hasNext()) {
+							long offset = access.getFilePointer();
+							byte[] compressed = deflate(deflater,
+									block.toByteArray());
+							access.write(compressed);
+							indexOut.writeInt(firstKey.length);
+							indexOut.write(firstKey);
+							indexOut.writeLong(offset);
+							indexOut.writeInt(compressed.length);
+							count++;
+							block.reset();
+							firstKey = null;
+						}
+					}
+				} finally {
+					deflater.end();
+				}
+
+				long indexOffset = access.getFilePointer();
+				access.writeInt(count);
+				access.write(index.toByteArray());
+				BloomFilter filter = new BloomFilter(keys);
+				for (int i = 0; i < keys; i++)
+					filter.add(hashes[i]);
+				ByteArrayOutputStream filterBytes = new ByteArrayOutputStream(
+						filter.size());
+				filter.write(new DataOutputStream(filterBytes));
+				access.write(filterBytes.toByteArray());
+				access.writeLong(indexOffset);
+				access.writeInt(4 + index.size());
+				access.writeInt(filter.size());
+				access.writeLong(MAGIC);
+				access.getChannel().force(false);
+			} finally {
+				access.close();
+			}
+			if (!temporary.renameTo(file))
+				throw new IOException("Cannot create " + file);
+			return new Segment(file);
+		} catch (IOException e) {
+			temporary.delete();
+			throw new RuntimeException(e);
+		}
+	}
+
+	File file() {
+		return file;
+	}
+
+	long length() {
+		return length;
+	}
+
+	// The value, TOMBSTONE, or null if the segment doesn't hold the key
+	byte[] get(byte[] key) {
+		if (!filter.mightContain(key))
+			return null;
+		int index = blockOf(key);
+		if (index < 0)
+			return null;
+		Block block = block(index);
+		int i = block.search(key);
+		return i >= 0 ? block.values[i] : null;
+	}
+
+	// Entries, including tombstones, within the bounds (null for none)
+	Iterator<Map.Entry<byte[], byte[]>> iterator(final byte[] lo,
+			final boolean loInclusive, final byte[] hi,
+			final boolean hiInclusive, final boolean descending) {
+		return new Iterator<Map.Entry<byte[], byte[]>>() {
+			int blockIndex;
+
+			Block block;
+
+			int i;
+
+			Map.Entry<byte[], byte[]> next;
+
+			{
+				if (firstKeys.length > 0)
+					if (!descending) {
+						blockIndex = lo == null ? 0 : Math.max(0, blockOf(lo));
+						block = block(blockIndex);
+						i = lo == null ? 0 : block.ceiling(lo, loInclusive);
+					} else {
+						blockIndex = hi == null ? firstKeys.length - 1
+								: blockOf(hi);
+						if (blockIndex >= 0) {
+							block = block(blockIndex);
+							i = hi == null ? block.keys.length - 1 : block
+									.floor(hi, hiInclusive);
+						}
+					}
+				advance();
+			}
+
+			private void advance() {
+				next = null;
+				while (block != null) {
+					if (i < 0 || i >= block.keys.length) {
+						blockIndex += descending ? -1 : 1;
+						if (blockIndex < 0 || blockIndex >= firstKeys.length) {
+							block = null;
+							return;
+						}
+						block = block(blockIndex);
+						i = descending ? block.keys.length - 1 : 0;
+						continue;
+					}
+					byte[] key = block.keys[i];
+					int c;
+					if (descending ? lo != null
+							&& ((c = compare(key, lo)) < 0 || c == 0
+									&& !loInclusive) : hi != null
+							&& ((c = compare(key, hi)) > 0 || c == 0
+									&& !hiInclusive)) {
+						block = null;
+						return;
+					}
+					next = new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(
+							key, block.values[i]);
+					i += descending ? -1 : 1;
+					return;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				Map.Entry<byte[], byte[]> entry = next;
+				advance();
+				return entry;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	// Takes a reference, unless the segment is already closed
+	boolean retain() {
+		for (;;) {
+			int count = references.get();
+			if (count == 0)
+				return false;
+			if (references.compareAndSet(count, count + 1))
+				return true;
+		}
+	}
+
+	// Closes the segment once the last reference is released
+	void release() {
+		if (references.decrementAndGet() == 0)
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+	}
+
+	// Deleted once replaced; its space is freed once the last snapshot
+	// still reading it is released
+	void delete() {
+		file.delete();
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		return ByteArrayComparator.INSTANCE.compare(a, b);
+	}
+
+	// The last block starting at or before the key, or -1
+	private int blockOf(byte[] key) {
+		int index = Arrays.binarySearch(firstKeys, key,
+				ByteArrayComparator.INSTANCE);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	private Block block(int index) {
+		synchronized (cache) {
+			Block block = cache.get(index);
+			if (block != null)
+				return block;
+		}
+		Block block;
+		try {
+			block = new Block(inflate(read(offsets[index], sizes[index])));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		synchronized (cache) {
+			cache.put(index, block);
+		}
+		return block;
+	}
+
+	private ByteBuffer read(long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) == -1)
+				throw new IOException("Truncated segment: " + file);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] deflate(Deflater deflater, byte[] bytes) {
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				bytes.length / 2 + 16);
+		byte[] buffer = new byte[BLOCK_SIZE];
+		while (!deflater.finished())
+			out.write(buffer, 0, deflater.deflate(buffer));
+		return out.toByteArray();
+	}
+
+	private static ByteBuffer inflate(ByteBuffer compressed) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed.array(), 0, compressed.limit());
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					2 * BLOCK_SIZE);
+			byte[] buffer = new byte[BLOCK_SIZE];
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+				if (inflated == 0 && inflater.needsInput())
+					throw new IOException("Truncated block");
+				out.write(buffer, 0, inflated);
+			}
+			return ByteBuffer.wrap(out.toByteArray());
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static final class Block {
+
+		final byte[][] keys;
+
+		final byte[][] values;
+
+		Block(ByteBuffer bytes) {
+			int count = 0;
+			while (bytes.hasRemaining()) {
+				int length = bytes.getInt();
+				bytes.position(bytes.position() + length);
+				length = bytes.getInt();
+				if (length > 0)
+					bytes.position(bytes.position() + length);
+				count++;
+			}
+			bytes.rewind();
+			keys = new byte[count][];
+			values = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				keys[i] = new byte[bytes.getInt()];
+				bytes.get(keys[i]);
+				int length = bytes.getInt();
+				if (length < 0)
+					values[i] = TOMBSTONE;
+				else {
+					values[i] = new byte[length];
+					bytes.get(values[i]);
+				}
+			}
+		}
+
+		int search(byte[] key) {
+			return Arrays.binarySearch(keys, key, ByteArrayComparator.INSTANCE);
+		}
+
+		// Index of the first key above (or at) the given one
+		int ceiling(byte[] key, boolean inclusive) {
+			int i = search(key);
+			return i >= 0 ? (inclusive ? i : i + 1) : -i - 1;
+		}
+
+		// Index of the last key below (or at) the given one
+		int floor(byte[] key, boolean inclusive) {
+			int i = search(key);
+			return i >= 0 ? (inclusive ? i : i - 1) : -i - 2;
+		}
+
+	}
+
+}
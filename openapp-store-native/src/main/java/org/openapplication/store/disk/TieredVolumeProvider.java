@@ -0,0 +1,330 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openapplication.store.VolumeProvider;
+
+// Keeps at most a given number of volumes in direct memory and the rest in
+// files (laid out as by DiskVolumeProvider), evicting with the clock
+// algorithm and reading evicted volumes back in when they are asked for.
+// Resident volumes are looked up without locking; reading a volume in or
+// writing it out only locks that volume.
+public class TieredVolumeProvider implements VolumeProvider {
+
+	public static final int DEFAULT_VOLUME_SIZE = 1024 * 1024;
+
+	private static final int HEADER_SIZE = 16;
+
+	private final File directory;
+
+	private final int volumeSize;
+
+	private final int maxResident;
+
+	private final ConcurrentMap<Integer, Volume> volumes;
+
+	// Volumes are added to the map before they are counted
+	private final AtomicInteger count = new AtomicInteger();
+
+	private final AtomicInteger resident = new AtomicInteger();
+
+	// Clock hand
+	private final AtomicInteger hand = new AtomicInteger();
+
+	public TieredVolumeProvider(File directory, int maxResident) {
+		this(directory, DEFAULT_VOLUME_SIZE, maxResident);
+	}
+
+	public TieredVolumeProvider(File directory, int volumeSize,
+			int maxResident) {
+		if (maxResident < 1)
+			throw new IllegalArgumentException();
+		this.directory = directory;
+		this.volumeSize = volumeSize;
+		this.maxResident = maxResident;
+		volumes = new ConcurrentHashMap<Integer, Volume>();
+
+		if (!directory.exists())
+			directory.mkdirs();
+		for (int node = 0; file(node).exists(); node++)
+			volumes.put(node, new Volume(node));
+		count.set(volumes.size());
+	}
+
+	@Override
+	public int count() {
+		return count.get();
+	}
+
+	@Override
+	public ByteBuffer get(int node) {
+		Volume volume = volumes.get(node);
+		ByteBuffer buffer = volume.buffer;
+		if (buffer == null) {
+			makeRoom();
+			synchronized (volume) {
+				buffer = volume.load();
+			}
+		}
+		volume.referenced = true;
+		return buffer;
+	}
+
+	// Evicted volumes have their allocation point read from the header of
+	// the file, once
+	@Override
+	public int used(int node) {
+		Volume volume = volumes.get(node);
+		ByteBuffer buffer = volume.buffer;
+		if (buffer != null)
+			return buffer.position();
+		synchronized (volume) {
+			if (volume.buffer != null)
+				return volume.buffer.position();
+			if (volume.used < 0) {
+				ByteBuffer header = ByteBuffer.allocate(4);
+				try {
+					RandomAccessFile access = new RandomAccessFile(file(node),
+							"r");
+					try {
+						FileChannel channel = access.getChannel();
+						while (header.hasRemaining()
+								&& channel.read(header) != -1)
+							;
+					} finally {
+						access.close();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				volume.used = header.hasRemaining() ? HEADER_SIZE : Math.max(
+						HEADER_SIZE, header.getInt(0));
+			}
+			return volume.used;
+		}
+	}
+
+	@Override
+	public int create() {
+		makeRoom();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(volumeSize);
+		buffer.putInt(0, HEADER_SIZE);
+		buffer.position(HEADER_SIZE);
+		synchronized (volumes) {
+			int node = count.get();
+			Volume volume = new Volume(node);
+			volume.pins = 1;
+			volume.dirty = true;
+			volume.referenced = true;
+			volume.buffer = buffer;
+			resident.incrementAndGet();
+			volumes.put(node, volume);
+			count.set(node + 1);
+			return node;
+		}
+	}
+
+	@Override
+	public void acquire(int node) {
+		Volume volume = volumes.get(node);
+		if (volume.buffer == null)
+			makeRoom();
+		synchronized (volume) {
+			volume.load();
+			volume.referenced = true;
+			volume.pins++;
+		}
+	}
+
+	@Override
+	public void release(int node) {
+		Volume volume = volumes.get(node);
+		synchronized (volume) {
+			volume.buffer.putInt(0, volume.buffer.position());
+			volume.dirty = true;
+			volume.pins--;
+		}
+	}
+
+	@Override
+	public void clear(int node) {
+		Volume volume = volumes.get(node);
+		if (volume.buffer == null)
+			makeRoom();
+		synchronized (volume) {
+			ByteBuffer buffer = volume.load();
+			buffer.position(HEADER_SIZE);
+			buffer.putInt(0, HEADER_SIZE);
+			volume.dirty = true;
+		}
+	}
+
+	public int getResidentCount() {
+		return resident.get();
+	}
+
+	// Writes resident volumes changed since they were loaded to their files,
+	// and forces the files written since they were last forced. Volumes
+	// still being written to are saved as of their writers' last release,
+	// which their header records.
+	public void flush() {
+		for (int node = 0; node < count.get(); node++) {
+			Volume volume = volumes.get(node);
+			synchronized (volume) {
+				if (volume.buffer != null && volume.dirty)
+					volume.save(true);
+				else if (volume.unforced)
+					volume.force();
+			}
+		}
+	}
+
+	// Evicts volumes until another one fits; the buffer of an evicted
+	// volume remains valid for whoever still holds it. Must be called
+	// without holding the lock of any volume.
+	private void makeRoom() {
+		int scanned = 0;
+		while (resident.get() >= maxResident) {
+			int total = count.get();
+			if (total == 0 || scanned++ > 2 * total)
+				// Everything is pinned
+				return;
+			int next = hand.getAndIncrement() & Integer.MAX_VALUE;
+			Volume volume = volumes.get(next % total);
+			if (volume.buffer != null && volume.pins == 0) {
+				if (volume.referenced)
+					volume.referenced = false;
+				else
+					synchronized (volume) {
+						volume.evict();
+					}
+			}
+		}
+	}
+
+	private File file(int node) {
+		return new File(directory, Integer.toString(node));
+	}
+
+	// Fields are changed with the volume locked; the buffer, the pins and
+	// the reference bit are also read without locking
+	private final class Volume {
+
+		final int node;
+
+		// Null while evicted
+		volatile ByteBuffer buffer;
+
+		volatile boolean referenced;
+
+		boolean dirty;
+
+		// Written to its file but not forced since
+		boolean unforced;
+
+		// Writers that have acquired the volume
+		volatile int pins;
+
+		// Allocation point while evicted, or -1 if not known yet
+		int used = -1;
+
+		Volume(int node) {
+			this.node = node;
+		}
+
+		// Reads the volume in unless resident
+		ByteBuffer load() {
+			if (buffer != null)
+				return buffer;
+			ByteBuffer loaded = ByteBuffer.allocateDirect(volumeSize);
+			try {
+				RandomAccessFile access = new RandomAccessFile(file(node), "r");
+				try {
+					FileChannel channel = access.getChannel();
+					while (loaded.hasRemaining() && channel.read(loaded) != -1)
+						;
+				} finally {
+					access.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			loaded.clear();
+			loaded.position(Math.max(HEADER_SIZE, loaded.getInt(0)));
+			dirty = false;
+			resident.incrementAndGet();
+			return buffer = loaded;
+		}
+
+		// Unless it was acquired or evicted meanwhile
+		void evict() {
+			if (buffer == null || pins > 0)
+				return;
+			if (dirty)
+				save(false);
+			used = buffer.position();
+			buffer = null;
+			resident.decrementAndGet();
+		}
+
+		void save(boolean force) {
+			// Only the allocated part holds anything
+			ByteBuffer saved = buffer.duplicate();
+			saved.flip();
+			dirty = false;
+			try {
+				RandomAccessFile access = new RandomAccessFile(file(node), "rw");
+				try {
+					FileChannel channel = access.getChannel();
+					while (saved.hasRemaining())
+						channel.write(saved);
+					if (force)
+						channel.force(false);
+				} finally {
+					access.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			unforced = !force;
+		}
+
+		void force() {
+			try {
+				RandomAccessFile access = new RandomAccessFile(file(node), "rw");
+				try {
+					access.getChannel().force(false);
+				} finally {
+					access.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			unforced = false;
+		}
+
+	}
+
+}
@@ -0,0 +1,569 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.openapplication.store.MapKeyValue;
+
+// Logs the operations of a DiskStore to a single file, as one CRC-framed
+// record per write, so that a write touching several maps is replayed all
+// or not at all. A single thread writes the records of all writers waiting
+// at the time and forces the log once for all of them (group commit). The
+// operations are then appended to the map files, which are forced only at
+// checkpoints, after which the log starts over.
+final class WriteAheadLog implements Runnable {
+
+	// Map files and the log start with this
+	private static final long MAGIC = 0x4f4157414c000001L;
+
+	private static final int HEADER_SIZE = 8;
+
+	// Length and CRC-32 of the payload
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	// Largest payload written when rewriting a map file
+	private static final int SNAPSHOT_RECORD_SIZE = 64 * 1024;
+
+	// Most writers committed at once
+	private static final int MAX_BATCH = 1024;
+
+	private static final long DEFAULT_CHECKPOINT_SIZE = 64 * 1024 * 1024;
+
+	private final DiskMapProvider mapProvider;
+
+	private final FileChannel log;
+
+	private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<Commit>();
+
+	private final Thread thread;
+
+	// Map files written to since the last checkpoint
+	private final Set<FileChannel> written = Collections
+			.newSetFromMap(new ConcurrentHashMap<FileChannel, Boolean>());
+
+	private volatile long logSize;
+
+	private volatile long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+
+	private volatile Durability durability = Durability.BATCH;
+
+	private volatile boolean closed;
+
+	// Writes left in the log by a crash are redone before anything else
+	WriteAheadLog(DiskMapProvider mapProvider) {
+		this.mapProvider = mapProvider;
+		try {
+			log = recover(mapProvider.logFile());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		thread = new Thread(this, "WriteAheadLog");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void setDurability(Durability durability) {
+		this.durability = durability;
+	}
+
+	void setCheckpointSize(long checkpointSize) {
+		this.checkpointSize = checkpointSize;
+	}
+
+	// Queues the operations to be written in the order queued, which has
+	// to be the order they were applied in. Returns null if there is
+	// nothing to write.
+	Commit enqueue(List<MapKeyValue> ops) {
+		if (closed)
+			throw new IllegalStateException("Closed");
+		if (ops.isEmpty())
+			return null;
+
+		Commit commit;
+		try {
+			commit = new Commit(durability, frame(batch(ops)), records(ops));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		queue.add(commit);
+		return commit;
+	}
+
+	// Returns once the operations are as durable as was required when they
+	// were queued
+	void await(Commit commit) {
+		if (commit == null)
+			return;
+		try {
+			commit.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		Throwable failure = commit.failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	boolean isCheckpointDue() {
+		return logSize > checkpointSize;
+	}
+
+	// Forces the map files written to since the last checkpoint, and the
+	// blob volumes their entries refer to, after which the log no longer
+	// needs their records; called with no writes in progress
+	void checkpoint() {
+		try {
+			forceWritten();
+			log.truncate(HEADER_SIZE);
+			log.position(HEADER_SIZE);
+			log.force(false);
+			logSize = HEADER_SIZE;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void forceWritten() throws IOException {
+		DiskVolumeProvider volumes = mapProvider.volumeProvider();
+		if (volumes != null)
+			volumes.flush();
+		// Files closed since were forced before they were closed
+		for (FileChannel channel : written)
+			if (channel.isOpen())
+				channel.force(false);
+		written.clear();
+	}
+
+	// Writes and forces what is queued, checkpoints and stops the commit
+	// thread; called with no writes in progress
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		Commit last = new Commit(Durability.SYNC, null,
+				Collections.<FileChannel, ByteBuffer> emptyMap());
+		queue.add(last);
+		await(last);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		checkpoint();
+		try {
+			log.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void run() {
+		List<Commit> batch = new ArrayList<Commit>();
+		boolean stopped = false;
+		while (!stopped) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+
+			// A failure of the commit thread itself is reported to the
+			// writers of the batch, and the thread goes on with the next
+			try {
+				stopped = commit(batch);
+			} catch (RuntimeException e) {
+				complete(batch, e);
+			} catch (Error e) {
+				complete(batch, e);
+			}
+			batch.clear();
+		}
+	}
+
+	// Written in queue order; a synchronous commit is forced along with the
+	// commits queued before it, the rest together. Returns whether the log
+	// was closed.
+	private boolean commit(List<Commit> batch) {
+		List<Commit> group = new ArrayList<Commit>();
+		boolean force = false;
+		for (Commit commit : batch) {
+			group.add(commit);
+			force |= commit.durability != Durability.NONE;
+			if (commit.durability == Durability.SYNC) {
+				commit(group, true);
+				group = new ArrayList<Commit>();
+				force = false;
+			}
+			if (commit.record == null) {
+				// Nothing is queued after the last commit
+				complete(batch, new IllegalStateException("Closed"));
+				return true;
+			}
+		}
+		if (!group.isEmpty())
+			commit(group, force);
+		return false;
+	}
+
+	// Commits already completed are left as they are
+	private static void complete(List<Commit> commits, Throwable failure) {
+		for (Commit commit : commits)
+			commit.complete(failure);
+	}
+
+	private void commit(List<Commit> commits, boolean force) {
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		Map<FileChannel, List<ByteBuffer>> writes = new LinkedHashMap<FileChannel, List<ByteBuffer>>();
+		for (Commit commit : commits) {
+			if (commit.record != null)
+				records.add(commit.record);
+			for (Map.Entry<FileChannel, ByteBuffer> record : commit.records
+					.entrySet()) {
+				List<ByteBuffer> buffers = writes.get(record.getKey());
+				if (buffers == null) {
+					buffers = new ArrayList<ByteBuffer>();
+					writes.put(record.getKey(), buffers);
+				}
+				buffers.add(record.getValue());
+			}
+		}
+
+		IOException failure = null;
+		try {
+			if (!records.isEmpty())
+				logSize += write(log, records);
+
+			// Blobs are forced before the entries referring to them, and
+			// the log before the map files, so that these never hold
+			// operations the log has lost
+			if (force) {
+				DiskVolumeProvider volumes = mapProvider.volumeProvider();
+				if (volumes != null)
+					volumes.flush();
+				log.force(false);
+			}
+
+			for (Map.Entry<FileChannel, List<ByteBuffer>> write : writes
+					.entrySet()) {
+				FileChannel channel = write.getKey();
+				channel.position(channel.size());
+				write(channel, write.getValue());
+				written.add(channel);
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+		complete(commits, failure);
+	}
+
+	private static long write(FileChannel channel, List<ByteBuffer> records)
+			throws IOException {
+		ByteBuffer[] buffers = records.toArray(new ByteBuffer[records.size()]);
+		long length = 0;
+		while (buffers[buffers.length - 1].hasRemaining())
+			length += channel.write(buffers);
+		return length;
+	}
+
+	// The operations as a log record payload, each prefixed by its map
+	private static byte[] batch(List<MapKeyValue> ops) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		for (MapKeyValue op : ops) {
+			out.writeLong(op.map.getMostSignificantBits());
+			out.writeLong(op.map.getLeastSignificantBits());
+			writeOp(out, op.key, op.value);
+		}
+		return payload.toByteArray();
+	}
+
+	private static List<MapKeyValue> readBatch(byte[] payload)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		while (in.available() > 0) {
+			UUID map = new UUID(in.readLong(), in.readLong());
+			byte[] key = new byte[in.readShort()];
+			in.readFully(key);
+			byte[] value = new byte[in.readShort()];
+			in.readFully(value);
+			ops.add(key.length > 0 ? new MapKeyValue(map, null, key, value)
+					: new MapKeyValue(map, null, value, null));
+		}
+		return ops;
+	}
+
+	// The operations of each map file, as one record per file
+	private Map<FileChannel, ByteBuffer> records(List<MapKeyValue> ops)
+			throws IOException {
+		Map<RandomAccessFile, ByteArrayOutputStream> payloads = new LinkedHashMap<RandomAccessFile, ByteArrayOutputStream>();
+		for (MapKeyValue op : ops) {
+			RandomAccessFile file = mapProvider.getFile(op.map, op.key);
+			ByteArrayOutputStream payload = payloads.get(file);
+			if (payload == null) {
+				payload = new ByteArrayOutputStream();
+				payloads.put(file, payload);
+			}
+			writeOp(new DataOutputStream(payload), op.key, op.value);
+		}
+
+		Map<FileChannel, ByteBuffer> records = new LinkedHashMap<FileChannel, ByteBuffer>();
+		for (Map.Entry<RandomAccessFile, ByteArrayOutputStream> payload : payloads
+				.entrySet())
+			records.put(payload.getKey().getChannel(), frame(payload.getValue()
+					.toByteArray()));
+		return records;
+	}
+
+	// Redoes the writes of the log's records, up to the first torn one, and
+	// checkpoints them; returns the log, emptied
+	private FileChannel recover(File file) throws IOException {
+		file.getParentFile().mkdirs();
+		RandomAccessFile access = new RandomAccessFile(file, "rw");
+		FileChannel channel = access.getChannel();
+		if (access.length() >= HEADER_SIZE && access.readLong() == MAGIC) {
+			CRC32 crc = new CRC32();
+			byte[] payload;
+			while ((payload = readRecord(access, crc)) != null)
+				redo(readBatch(payload));
+			forceWritten();
+		}
+		access.setLength(0);
+		access.writeLong(MAGIC);
+		channel.force(false);
+		logSize = HEADER_SIZE;
+		return channel;
+	}
+
+	// Appends the operations to the map files before applying them to the
+	// maps, so that a region dropped from memory in between keeps them
+	private void redo(List<MapKeyValue> ops) throws IOException {
+		for (MapKeyValue op : ops)
+			mapProvider.prepare(op.map);
+		for (Map.Entry<FileChannel, ByteBuffer> record : records(ops)
+				.entrySet()) {
+			FileChannel channel = record.getKey();
+			channel.position(channel.size());
+			write(channel, Collections.singletonList(record.getValue()));
+			written.add(channel);
+		}
+		for (MapKeyValue op : ops) {
+			ConcurrentNavigableMap<byte[], byte[]> map = mapProvider.get(
+					op.map, op.key, null);
+			if (op.value != null)
+				map.put(op.key, op.value);
+			else
+				map.remove(op.key);
+		}
+	}
+
+	// The payload of the record at the file's position, or null if the
+	// record was cut short by a crash
+	private static byte[] readRecord(RandomAccessFile access, CRC32 crc)
+			throws IOException {
+		long remaining = access.length() - access.getFilePointer();
+		if (remaining < RECORD_HEADER_SIZE)
+			return null;
+		int length = access.readInt();
+		int checksum = access.readInt();
+		if (length < 0 || length > remaining - RECORD_HEADER_SIZE)
+			return null;
+		byte[] payload = new byte[length];
+		access.readFully(payload);
+		crc.reset();
+		crc.update(payload);
+		return (int) crc.getValue() == checksum ? payload : null;
+	}
+
+	private static ByteBuffer frame(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE
+				+ payload.length);
+		record.putInt(payload.length);
+		record.putInt((int) crc.getValue());
+		record.put(payload);
+		record.flip();
+		return record;
+	}
+
+	// A removal is an empty key followed by the key
+	private static void writeOp(DataOutputStream out, byte[] key, byte[] value)
+			throws IOException {
+		if (value != null) {
+			out.writeShort(key.length);
+			out.write(key);
+			out.writeShort(value.length);
+			out.write(value);
+		} else {
+			out.writeShort(0);
+			out.writeShort(key.length);
+			out.write(key);
+		}
+	}
+
+	// Reads a map file into the map, and returns the file opened for
+	// appending. A record cut short by a crash, and anything after it, is
+	// truncated; the log still holds its operations unless they were
+	// written before the last checkpoint. Files written before records were
+	// framed are rewritten in the log format.
+	static RandomAccessFile replay(File file,
+			ConcurrentNavigableMap<byte[], byte[]> map) {
+		try {
+			RandomAccessFile access = new RandomAccessFile(file, "rw");
+			if (access.length() == 0) {
+				access.writeLong(MAGIC);
+				return access;
+			}
+			if (access.length() < HEADER_SIZE || access.readLong() != MAGIC) {
+				access.seek(0);
+				readOps(access, access.length(), map);
+				access.close();
+				return rewrite(file, map);
+			}
+
+			long end = HEADER_SIZE;
+			CRC32 crc = new CRC32();
+			byte[] payload;
+			while ((payload = readRecord(access, crc)) != null) {
+				readOps(new DataInputStream(new ByteArrayInputStream(payload)),
+						payload.length, map);
+				end += RECORD_HEADER_SIZE + payload.length;
+			}
+			if (end < access.length())
+				access.setLength(end);
+			access.seek(end);
+			return access;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	private static void readOps(DataInput in, long length,
+			ConcurrentNavigableMap<byte[], byte[]> map) throws IOException {
+		for (long read = 0; read < length;) {
+			byte[] key = new byte[in.readShort()];
+			in.readFully(key);
+			byte[] value = new byte[in.readShort()];
+			in.readFully(value);
+			read += 4 + key.length + value.length;
+
+			if (key.length > 0)
+				map.put(key, value);
+			else
+				map.remove(value);
+		}
+	}
+
+	// Replaces the file with one holding the map's entries, written in
+	// records of limited size
+	static RandomAccessFile rewrite(File file,
+			ConcurrentNavigableMap<byte[], byte[]> map) throws IOException {
+		// Next to the map directory, where it isn't taken for a region
+		File mapDir = file.getParentFile();
+		File temporary = new File(mapDir.getParentFile(), mapDir.getName()
+				+ "-" + file.getName() + ".tmp");
+		RandomAccessFile access = new RandomAccessFile(temporary, "rw");
+		try {
+			access.setLength(0);
+			access.writeLong(MAGIC);
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(payload);
+			for (Map.Entry<byte[], byte[]> entry : map.entrySet()) {
+				writeOp(out, entry.getKey(), entry.getValue());
+				if (payload.size() >= SNAPSHOT_RECORD_SIZE) {
+					access.write(frame(payload.toByteArray()).array());
+					payload.reset();
+				}
+			}
+			if (payload.size() > 0)
+				access.write(frame(payload.toByteArray()).array());
+			access.getChannel().force(false);
+		} finally {
+			access.close();
+		}
+
+		if (!temporary.renameTo(file)
+				&& !(file.delete() && temporary.renameTo(file)))
+			throw new IOException("Cannot replace " + file);
+		access = new RandomAccessFile(file, "rw");
+		access.seek(access.length());
+		return access;
+	}
+
+	static final class Commit {
+
+		final Durability durability;
+
+		// In the log; null for the last commit, queued by close()
+		final ByteBuffer record;
+
+		// In the map files
+		final Map<FileChannel, ByteBuffer> records;
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		volatile Throwable failure;
+
+		Commit(Durability durability, ByteBuffer record,
+				Map<FileChannel, ByteBuffer> records) {
+			this.durability = durability;
+			this.record = record;
+			this.records = records;
+		}
+
+		// Only the first outcome counts
+		void complete(Throwable failure) {
+			if (done.getCount() == 0)
+				return;
+			this.failure = failure;
+			done.countDown();
+		}
+
+	}
+
+}
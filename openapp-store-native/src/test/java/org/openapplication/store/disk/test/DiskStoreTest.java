@@ -15,16 +15,38 @@
  */
 package org.openapplication.store.disk.test;
 
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openapplication.store.Blob;
 import org.openapplication.store.Definition;
+import org.openapplication.store.Entry;
+import org.openapplication.store.Field;
+import org.openapplication.store.MapProviderImpl;
+import org.openapplication.store.PreparedQuery;
 import org.openapplication.store.Store;
 import org.openapplication.store.StoreClient;
 import org.openapplication.store.StoreImpl;
+import org.openapplication.store.StreamEncoding;
 import org.openapplication.store.disk.DiskMapProvider;
 import org.openapplication.store.disk.DiskStore;
+import org.openapplication.store.disk.DiskVolumeProvider;
+import org.openapplication.store.disk.Durability;
+import org.openapplication.store.disk.TieredVolumeProvider;
 import org.openapplication.store.test.StoreImplTest;
 
 public class DiskStoreTest extends StoreImplTest {
@@ -37,8 +59,8 @@ public class DiskStoreTest extends StoreImplTest {
 	public static void setUpBeforeClass() throws Exception {
 		DiskMapProvider mapProvider = new DiskMapProvider(testDir);
 		diskStore = new StoreClient(new DiskStore(mapProvider, new StoreImpl(
-				mapProvider, new Definition[] { PERSON, COMPANY, MEMBER,
-						MEMBER_OF })));
+				mapProvider, mapProvider.getVolumeProvider(), new Definition[] {
+						PERSON, COMPANY, MEMBER, MEMBER_OF })));
 
 		diskStore.get(Id.PERSON.value(1));
 		diskStore.get(Id.COMPANY.value(1));
@@ -51,4 +73,373 @@ public class DiskStoreTest extends StoreImplTest {
 		store = diskStore;
 	}
 
+	@Test
+	public void testReopenBlobs() throws IOException {
+		byte[] content = new byte[200 * 1024];
+		new Random(1).nextBytes(content);
+		Blob blob = store.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+
+		// A second store over the same volume files sees the blob without
+		// reloading anything
+		StoreImpl reopened = new StoreImpl(new MapProviderImpl(),
+				new DiskVolumeProvider(new File(testDir, "blobs")));
+		assertArrayEquals(content, readFully(reopened.read(blob)));
+	}
+
+	@Test
+	public void testTieredVolumes() throws Exception {
+		File tierDir = new File(testDir, "tiered");
+		TieredVolumeProvider volumes = new TieredVolumeProvider(tierDir,
+				64 * 1024, 2);
+		StoreImpl tiered = new StoreImpl(new MapProviderImpl(), volumes);
+
+		Random random = new Random(2);
+		byte[][] contents = new byte[8][];
+		Blob[] blobs = new Blob[contents.length];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = new byte[50 * 1024 + random.nextInt(100 * 1024)];
+			random.nextBytes(contents[i]);
+			blobs[i] = tiered.write(new ByteArrayInputStream(contents[i]),
+					StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		}
+		assertTrue(volumes.count() > 2);
+		assertTrue(volumes.getResidentCount() <= 2);
+
+		// Sizes are known without reading evicted volumes in
+		int resident = volumes.getResidentCount();
+		for (int node = 0; node < volumes.count(); node++)
+			assertTrue(volumes.used(node) > 16);
+		assertEquals(resident, volumes.getResidentCount());
+
+		// Evicted volumes are read back in, in any order
+		for (int i = contents.length - 1; i >= 0; i--)
+			assertArrayEquals(contents[i], readFully(tiered.read(blobs[i])));
+		for (int i = 0; i < contents.length; i++)
+			assertArrayEquals(contents[i], readFully(tiered.read(blobs[i])));
+
+		// Concurrent readers fault volumes in and out under each other
+		final StoreImpl shared = tiered;
+		final byte[][] expected = contents;
+		final Blob[] written = blobs;
+		final boolean[] failed = new boolean[1];
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++) {
+			final int offset = i;
+			readers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int round = 0; round < 4; round++)
+							for (int j = 0; j < written.length; j++) {
+								int k = (j + offset) % written.length;
+								if (!Arrays.equals(expected[k],
+										readFully(shared.read(written[k]))))
+									failed[0] = true;
+							}
+					} catch (Exception e) {
+						failed[0] = true;
+					}
+				}
+			};
+			readers[i].start();
+		}
+		for (Thread thread : readers)
+			thread.join();
+		assertFalse(failed[0]);
+		assertTrue(volumes.getResidentCount() <= 2 + readers.length);
+
+		// The files alone hold everything once flushed
+		volumes.flush();
+		TieredVolumeProvider reopenedVolumes = new TieredVolumeProvider(
+				tierDir, 64 * 1024, 1);
+		for (int node = 0; node < volumes.count(); node++)
+			assertEquals(volumes.used(node), reopenedVolumes.used(node));
+		assertEquals(0, reopenedVolumes.getResidentCount());
+		StoreImpl reopened = new StoreImpl(new MapProviderImpl(),
+				reopenedVolumes);
+		for (int i = 0; i < contents.length; i++)
+			assertArrayEquals(contents[i], readFully(reopened.read(blobs[i])));
+	}
+
+	@Test
+	public void testWriteAheadLog() throws Exception {
+		File logDir = new File(testDir, "log");
+		DiskMapProvider mapProvider = new DiskMapProvider(logDir);
+		DiskStore logged = new DiskStore(mapProvider, new StoreImpl(
+				mapProvider, new Definition[] { PERSON }));
+		final Store writer = new StoreClient(logged);
+
+		// Concurrent writers are committed together
+		Thread[] writers = new Thread[8];
+		for (int i = 0; i < writers.length; i++) {
+			final int first = i * 100;
+			writers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int id = first; id < first + 100; id++)
+						writer.put(Id.PERSON.value(id),
+								Name.PERSON.value("Person " + id));
+				}
+			};
+			writers[i].start();
+		}
+		for (Thread thread : writers)
+			thread.join();
+		logged.setDurability(Durability.SYNC);
+		writer.remove(Id.PERSON.value(0));
+		logged.setDurability(Durability.NONE);
+		writer.put(Id.PERSON.value(1), Name.PERSON.value("Renamed"));
+
+		// The map file lost what was last written to it, and a record torn
+		// by a crash follows the log
+		File mapFile = new File(logDir, PERSON.toKeyUuid().toString())
+				.listFiles()[0];
+		RandomAccessFile access = new RandomAccessFile(mapFile, "rw");
+		access.setLength(access.length() / 2);
+		access.close();
+		access = new RandomAccessFile(new File(logDir, "wal"), "rw");
+		access.seek(access.length());
+		access.writeInt(1000);
+		access.writeInt(0);
+		access.write(new byte[10]);
+		access.close();
+
+		DiskMapProvider reopenedProvider = new DiskMapProvider(logDir);
+		Store reopened = new StoreClient(new DiskStore(reopenedProvider,
+				new StoreImpl(reopenedProvider, new Definition[] { PERSON })));
+		assertNull(reopened.get(Id.PERSON.value(0)));
+		assertEquals("Renamed",
+				reopened.get(Id.PERSON.value(1)).get(Name.PERSON));
+		for (int id = 2; id < writers.length * 100; id++)
+			assertEquals("Person " + id, reopened.get(Id.PERSON.value(id))
+					.get(Name.PERSON));
+
+		// Redone writes were checkpointed
+		assertEquals(8, new File(logDir, "wal").length());
+	}
+
+	@Test
+	public void testLogAtomicity() throws Exception {
+		File logDir = new File(testDir, "atomic");
+		DiskMapProvider mapProvider = new DiskMapProvider(logDir);
+		DiskStore logged = new DiskStore(mapProvider, new StoreImpl(
+				mapProvider, new Definition[] { MEMBER, MEMBER_OF }));
+		Store writer = new StoreClient(logged);
+		for (int id = 0; id < 100; id++)
+			writer.put(Id.COMPANY.value(id % 3), Id.PERSON.value(id));
+
+		// A crash left the writes in one map but not in the other
+		File mapFile = new File(logDir, MEMBER_OF.toKeyUuid().toString())
+				.listFiles()[0];
+		RandomAccessFile access = new RandomAccessFile(mapFile, "rw");
+		access.setLength(8);
+		access.close();
+
+		DiskMapProvider reopenedProvider = new DiskMapProvider(logDir);
+		DiskStore reopenedStore = new DiskStore(reopenedProvider,
+				new StoreImpl(reopenedProvider, new Definition[] { MEMBER,
+						MEMBER_OF }));
+		Store reopened = new StoreClient(reopenedStore);
+		for (int id = 0; id < 100; id++) {
+			assertNotNull(reopened.get(Id.COMPANY.value(id % 3),
+					Id.PERSON.value(id)));
+			assertNotNull(reopened.get(Id.PERSON.value(id),
+					Id.COMPANY.value(id % 3)));
+		}
+
+		// Closing checkpoints, after which writes fail
+		reopenedStore.setCheckpointSize(Long.MAX_VALUE);
+		reopened.remove(Id.COMPANY.value(0), Id.PERSON.value(0));
+		assertTrue(new File(logDir, "wal").length() > 8);
+		reopenedStore.close();
+		assertEquals(8, new File(logDir, "wal").length());
+		try {
+			reopened.put(Id.COMPANY.value(0), Id.PERSON.value(0));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testLogOrder() throws Exception {
+		File logDir = new File(testDir, "order");
+		DiskMapProvider mapProvider = new DiskMapProvider(logDir);
+		DiskStore logged = new DiskStore(mapProvider, new StoreImpl(
+				mapProvider, new Definition[] { PERSON }));
+		logged.setDurability(Durability.NONE);
+		final Store writer = new StoreClient(logged);
+
+		// Writers racing on the same keys are replayed as they were applied
+		Thread[] writers = new Thread[8];
+		for (int i = 0; i < writers.length; i++) {
+			final int name = i;
+			writers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int n = 0; n < 200; n++)
+						writer.put(Id.PERSON.value(n % 4),
+								Name.PERSON.value("Writer " + name));
+				}
+			};
+			writers[i].start();
+		}
+		for (Thread thread : writers)
+			thread.join();
+
+		DiskMapProvider reopenedProvider = new DiskMapProvider(logDir);
+		Store reopened = new StoreClient(new DiskStore(reopenedProvider,
+				new StoreImpl(reopenedProvider, new Definition[] { PERSON })));
+		for (int id = 0; id < 4; id++)
+			assertEquals(writer.get(Id.PERSON.value(id)).get(Name.PERSON),
+					reopened.get(Id.PERSON.value(id)).get(Name.PERSON));
+	}
+
+	@Test
+	public void testRegions() {
+		File regionDir = new File(testDir, "regions");
+		DiskMapProvider mapProvider = new DiskMapProvider(regionDir);
+		mapProvider.setRegionSize(4 * 1024);
+		mapProvider.setMaxResidentRegions(2);
+		Store regions = new StoreClient(new DiskStore(mapProvider,
+				new StoreImpl(mapProvider, new Definition[] { MEMBER })));
+
+		int count = 2000;
+		for (int id = 0; id < count; id++)
+			regions.put(Id.COMPANY.value(1), Id.PERSON.value(id));
+		regions.put(Id.COMPANY.value(2), Id.PERSON.value(0));
+		for (int id = 0; id < count; id += 10)
+			regions.remove(Id.COMPANY.value(1), Id.PERSON.value(id));
+		assertTrue(new File(regionDir, MEMBER.toKeyUuid().toString())
+				.listFiles().length > 2);
+
+		// Iterated region by region, with at most two of them in memory
+		assertMembers(regions, count);
+
+		DiskMapProvider reopenedProvider = new DiskMapProvider(regionDir);
+		reopenedProvider.setMaxResidentRegions(2);
+		Store reopened = new StoreClient(new DiskStore(reopenedProvider,
+				new StoreImpl(reopenedProvider, new Definition[] { MEMBER })));
+		assertMembers(reopened, count);
+		assertNull(reopened.get(Id.COMPANY.value(1), Id.PERSON.value(10)));
+		assertNotNull(reopened.get(Id.COMPANY.value(1), Id.PERSON.value(11)));
+		assertNotNull(reopened.get(Id.COMPANY.value(2), Id.PERSON.value(0)));
+	}
+
+	@Test
+	public void testSplitKeepsHeldMap() {
+		File splitDir = new File(testDir, "split");
+		DiskMapProvider mapProvider = new DiskMapProvider(splitDir);
+		mapProvider.setRegionSize(4 * 1024);
+		Store split = new StoreClient(new DiskStore(mapProvider,
+				new StoreImpl(mapProvider, new Definition[] { PERSON })));
+
+		byte[] first = new Entry(Id.PERSON.value(0)).getBytes(Id.PERSON);
+		split.put(Id.PERSON.value(0), Name.PERSON.value("Person 0"));
+		ConcurrentNavigableMap<byte[], byte[]> held = mapProvider.get(
+				PERSON.toKeyUuid(), first, null);
+		int id = 1;
+		while (id < 1000
+				&& mapProvider.get(PERSON.toKeyUuid(), first, null) == held)
+			split.put(Id.PERSON.value(id), Name.PERSON.value("Person " + id++));
+
+		// The map held by a reader during the split is left whole
+		assertTrue(id < 1000);
+		assertEquals(id, held.size());
+		assertTrue(mapProvider.get(PERSON.toKeyUuid(), first, null).size() < id);
+	}
+
+	@Test
+	public void testCompactRegions() throws IOException {
+		File compactDir = new File(testDir, "compact");
+		Definition document = new Definition(new Field<?>[] { Id.PERSON },
+				new Field<?>[] { Blob.BLOB });
+		DiskMapProvider mapProvider = new DiskMapProvider(compactDir);
+		mapProvider.setRegionSize(4 * 1024);
+		mapProvider.setMaxResidentRegions(1);
+		StoreImpl storeImpl = new StoreImpl(mapProvider,
+				new DiskVolumeProvider(new File(compactDir, "blobs"),
+						256 * 1024), new Definition[] { document });
+		storeImpl.setCompactionGracePeriod(0, TimeUnit.MILLISECONDS);
+		DiskStore diskStore = new DiskStore(mapProvider, storeImpl);
+		Store compacted = new StoreClient(diskStore);
+
+		int count = 400;
+		byte[][] contents = new byte[count][];
+		Random random = new Random(3);
+		for (int id = 0; id < count; id++) {
+			contents[id] = new byte[1024];
+			random.nextBytes(contents[id]);
+			compacted.put(Id.PERSON.value(id), Blob.BLOB.value(compacted
+					.write(new ByteArrayInputStream(contents[id]),
+							StreamEncoding.IDENTITY, StreamEncoding.IDENTITY)));
+		}
+		for (int id = 0; id < count; id++)
+			if (id % 4 != 0)
+				compacted.remove(Id.PERSON.value(id));
+
+		// Rewritten region by region, and logged
+		assertFalse(diskStore.compact().isEmpty());
+		DiskMapProvider reopenedProvider = new DiskMapProvider(compactDir);
+		Store reopened = new StoreClient(new DiskStore(reopenedProvider,
+				new StoreImpl(reopenedProvider, new DiskVolumeProvider(
+						new File(compactDir, "blobs"), 256 * 1024),
+						new Definition[] { document })));
+		for (int id = 0; id < count; id += 4)
+			assertArrayEquals(contents[id], readFully(reopened.read(reopened
+					.get(Id.PERSON.value(id)).get(Blob.BLOB))));
+	}
+
+	@Test
+	public void testBloomFilters() {
+		File filterDir = new File(testDir, "filters");
+		DiskMapProvider mapProvider = new DiskMapProvider(filterDir);
+		mapProvider.setRegionSize(4 * 1024);
+		mapProvider.setMaxResidentRegions(1);
+		Store filtered = new StoreClient(new DiskStore(mapProvider,
+				new StoreImpl(mapProvider, new Definition[] { PERSON })));
+
+		int count = 2000;
+		for (int id = 0; id < count; id += 2)
+			filtered.put(Id.PERSON.value(id), Name.PERSON.value("Person " + id));
+		assertTrue(absent(mapProvider, count) > count / 4);
+		assertNull(filtered.get(Id.PERSON.value(1)));
+		assertEquals("Person 2", filtered.get(Id.PERSON.value(2)).get(Name.PERSON));
+		List<Entry> entries = filtered.getAll(Arrays.asList(
+				new Field<?>[] { Id.PERSON.value(3) },
+				new Field<?>[] { Id.PERSON.value(4) }));
+		assertNull(entries.get(0));
+		assertEquals("Person 4", entries.get(1).get(Name.PERSON));
+		PreparedQuery person = filtered.prepare(Id.PERSON);
+		assertNull(person.get(5));
+		assertEquals("Person 6", person.get(6).get(Name.PERSON));
+
+		// Filters of regions not in memory are saved
+		DiskMapProvider reopenedProvider = new DiskMapProvider(filterDir);
+		reopenedProvider.prepare(PERSON.toKeyUuid());
+		assertTrue(absent(reopenedProvider, count) > count / 4);
+		for (int id = 0; id < count; id += 2)
+			assertTrue(reopenedProvider.mightContain(PERSON.toKeyUuid(),
+					new Entry(Id.PERSON.value(id)).getBytes(Id.PERSON)));
+	}
+
+	private static int absent(DiskMapProvider mapProvider, int count) {
+		int absent = 0;
+		for (int id = 1; id < count; id += 2)
+			if (!mapProvider.mightContain(PERSON.toKeyUuid(), new Entry(
+					Id.PERSON.value(id)).getBytes(Id.PERSON)))
+				absent++;
+		return absent;
+	}
+
+	private static void assertMembers(Store store, int count) {
+		Set<Integer> members = new HashSet<Integer>();
+		for (Entry member : store.iterate(Id.COMPANY.value(1), Id.PERSON)) {
+			int id = member.get(Id.PERSON);
+			assertTrue(id % 10 != 0);
+			assertTrue(members.add(id));
+		}
+		assertEquals(count - count / 10, members.size());
+	}
+
 }
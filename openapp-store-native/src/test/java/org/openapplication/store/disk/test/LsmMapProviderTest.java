@@ -0,0 +1,181 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.disk.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openapplication.store.Definition;
+import org.openapplication.store.StoreClient;
+import org.openapplication.store.StoreImpl;
+import org.openapplication.store.disk.LsmMap;
+import org.openapplication.store.disk.LsmMapProvider;
+import org.openapplication.store.test.StoreImplTest;
+
+public class LsmMapProviderTest extends StoreImplTest {
+
+	private static File testDir = new File("target/test-lsm-dir");
+
+	private LsmMapProvider mapProvider;
+
+	@Before
+	public void setUp() throws Exception {
+		delete(testDir);
+		mapProvider = new LsmMapProvider(testDir);
+		mapProvider.setMemtableSize(16 * 1024);
+		store = new StoreClient(new StoreImpl(mapProvider, new Definition[] {
+				PERSON, COMPANY, MEMBER, MEMBER_OF }));
+	}
+
+	@After
+	public void tearDown() {
+		mapProvider.close();
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private static byte[] key(int i) {
+		return new byte[] { (byte) (i >>> 8), (byte) i };
+	}
+
+	@Test
+	public void testFlushAndReopen() {
+		File dir = new File(testDir, "map");
+		LsmMap map = new LsmMap(dir, 1024);
+		for (int i = 0; i < 1000; i++)
+			map.put(key(i), new byte[] { (byte) i });
+		map.remove(key(500));
+		map.flush();
+		assertTrue(map.getSegmentCount() > 0);
+		map.put(key(1000), new byte[0]);
+		map.close();
+
+		LsmMap reopened = new LsmMap(dir, 1024);
+		assertEquals(1000, reopened.size());
+		assertNull(reopened.get(key(500)));
+		assertArrayEquals(new byte[] { (byte) 7 }, reopened.get(key(7)));
+		assertArrayEquals(new byte[0], reopened.get(key(1000)));
+		reopened.close();
+	}
+
+	@Test
+	public void testNavigation() {
+		LsmMap map = new LsmMap(new File(testDir, "map"), 64);
+		for (int i = 9; i >= 0; i--)
+			map.put(new byte[] { (byte) (i * 2) }, new byte[] { (byte) i });
+		map.flush();
+		map.put(new byte[] { 6 }, new byte[] { 33 });
+		map.remove(new byte[] { 10 });
+
+		assertEquals(9, map.size());
+		assertArrayEquals(new byte[] { 33 }, map.get(new byte[] { 6 }));
+		assertNull(map.get(new byte[] { 10 }));
+		assertArrayEquals(new byte[] { 12 }, map.ceilingKey(new byte[] { 9 }));
+		assertArrayEquals(new byte[] { 6 }, map.lowerKey(new byte[] { 7 }));
+
+		ConcurrentNavigableMap<byte[], byte[]> sub = map.subMap(
+				new byte[] { 4 }, true, new byte[] { 14 }, false).descendingMap();
+		assertEquals(4, sub.size());
+		assertArrayEquals(new byte[] { 12 }, sub.firstKey());
+		assertArrayEquals(new byte[] { 4 }, sub.lastKey());
+		assertArrayEquals(new byte[] { 6 }, sub.higherKey(new byte[] { 8 }));
+
+		Iterator<Map.Entry<byte[], byte[]>> entries = sub.entrySet().iterator();
+		entries.next();
+		entries.remove();
+		assertNull(map.get(new byte[] { 12 }));
+		assertEquals(8, map.size());
+		map.close();
+	}
+
+	@Test
+	public void testBlindWrites() {
+		LsmMap map = new LsmMap(new File(testDir, "map"), 1024);
+		assertNull(map.put(key(1), new byte[] { 1 }));
+		assertNull(map.put(key(1), new byte[] { 2 }));
+		assertArrayEquals(new byte[] { 2 },
+				map.putIfAbsent(key(1), new byte[] { 3 }));
+		assertArrayEquals(new byte[] { 2 },
+				map.replace(key(1), new byte[] { 4 }));
+		assertNull(map.remove(key(2)));
+		assertNull(map.remove(key(1)));
+		assertNull(map.get(key(1)));
+		assertNull(map.putIfAbsent(key(1), new byte[] { 5 }));
+		map.close();
+
+		LsmMap reopened = new LsmMap(new File(testDir, "map"), 1024);
+		assertEquals(1, reopened.size());
+		assertArrayEquals(new byte[] { 5 }, reopened.get(key(1)));
+		reopened.close();
+	}
+
+	@Test
+	public void testCompaction() {
+		LsmMap map = new LsmMap(new File(testDir, "map"), 1024);
+		for (int round = 0; round < 8; round++) {
+			for (int i = 0; i < 100; i++)
+				map.put(key(i), new byte[] { (byte) round });
+			map.flush();
+		}
+		assertTrue(map.getSegmentCount() < 8);
+
+		for (int i = 0; i < 50; i++)
+			map.remove(key(i));
+		map.flush();
+		map.compact();
+		assertEquals(1, map.getSegmentCount());
+		assertEquals(50, map.size());
+		assertNull(map.get(key(0)));
+		assertNull(map.get(key(1000)));
+		assertArrayEquals(new byte[] { 7 }, map.get(key(99)));
+		map.close();
+
+		LsmMap reopened = new LsmMap(new File(testDir, "map"), 1024);
+		assertEquals(1, reopened.getSegmentCount());
+
+		assertEquals(50, reopened.size());
+
+		// An iterator keeps reading the segments merged away under it
+		for (int i = 0; i < 50; i++)
+			reopened.put(key(i), new byte[] { 8 });
+		reopened.flush();
+		Iterator<byte[]> keys = reopened.keySet().iterator();
+		assertArrayEquals(key(0), keys.next());
+		reopened.compact();
+		assertEquals(1, reopened.getSegmentCount());
+		int remaining = 0;
+		while (keys.hasNext()) {
+			keys.next();
+			remaining++;
+		}
+		assertEquals(99, remaining);
+		reopened.close();
+	}
+
+}
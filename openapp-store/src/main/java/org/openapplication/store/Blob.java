@@ -33,18 +33,36 @@ public final class Blob {
 
 	private final StreamEncoding encoding;
 
+	// Blocks at which decoding can start afresh, and the unencoded position
+	// of their first byte
+	private final int[] restartIndex;
+
+	private final long[] restartPosition;
+
+	// Saved stream digest of a blob that can be appended to, or null
+	private final byte[] digestState;
+
+	// Encoded offset of each block, computed on first use and published
+	// only once complete
+	private volatile long[] offsets;
+
 	public Blob() {
-		this(new long[] {}, new long[] {}, new byte[][] {}, 0, null, null);
+		this(new long[] {}, new long[] {}, new byte[][] {}, 0, null, null,
+				new int[] {}, new long[] {}, null);
 	}
 
 	private Blob(long[] block, long[] blockSize, byte[][] blockHash,
-			long blobSize, byte[] blobHash, StreamEncoding encoding) {
+			long blobSize, byte[] blobHash, StreamEncoding encoding,
+			int[] restartIndex, long[] restartPosition, byte[] digestState) {
 		this.block = block;
 		this.blockSize = blockSize;
 		this.blockHash = blockHash;
 		this.blobSize = blobSize;
 		this.blobHash = blobHash;
 		this.encoding = encoding;
+		this.restartIndex = restartIndex;
+		this.restartPosition = restartPosition;
+		this.digestState = digestState;
 	}
 
 	public int count() {
@@ -75,15 +93,95 @@ public final class Blob {
 		return encoding;
 	}
 
+	// Encoded offset of the block's first byte
+	public long offset(int index) {
+		return offsets()[index];
+	}
+
+	// Block holding the given encoded offset, or -1 if it is past the end
+	public int indexOf(long offset) {
+		long[] offsets = offsets();
+		int index = Arrays.binarySearch(offsets, 0, block.length, offset);
+		if (index < 0)
+			index = -index - 2;
+		else
+			// Skip empty blocks
+			while (index + 1 < block.length && offsets[index + 1] == offset)
+				index++;
+		return index < 0 || offset >= offsets[block.length] ? -1 : index;
+	}
+
+	public int restarts() {
+		return restartIndex.length;
+	}
+
+	public int restartIndex(int restart) {
+		return restartIndex[restart];
+	}
+
+	public long restartPosition(int restart) {
+		return restartPosition[restart];
+	}
+
+	// Last restart at or before the given unencoded position, or -1 if there
+	// is none
+	public int restartOf(long position) {
+		int restart = Arrays.binarySearch(restartPosition, position);
+		return restart < 0 ? -restart - 2 : restart;
+	}
+
 	public Blob append(long block, long blockSize, byte[] blockHash) {
+		// Block hashes aren't serialised, so read blobs have none
+		byte[][] blockHashes = this.blockHash != null ? this.blockHash
+				: new byte[this.block.length][];
 		return new Blob(merge(this.block, block), merge(this.blockSize,
-				blockSize), merge(this.blockHash, blockHash), blobSize,
-				blobHash, encoding);
+				blockSize), merge(blockHashes, blockHash), blobSize,
+				blobHash, encoding, restartIndex, restartPosition,
+				digestState);
 	}
 
 	public Blob append(long blobSize, byte[] blobHash, StreamEncoding encoding) {
 		return new Blob(block, blockSize, blockHash, blobSize, blobHash,
-				encoding);
+				encoding, restartIndex, restartPosition, digestState);
+	}
+
+	// Marks the next appended block as starting an independently encoded
+	// part, holding the unencoded stream from the given position on
+	public Blob appendRestart(long position) {
+		int[] restartIndex = Arrays.copyOf(this.restartIndex,
+				this.restartIndex.length + 1);
+		restartIndex[this.restartIndex.length] = block.length;
+		return new Blob(block, blockSize, blockHash, blobSize, blobHash,
+				encoding, restartIndex, merge(restartPosition, position),
+				digestState);
+	}
+
+	byte[] digestState() {
+		return digestState;
+	}
+
+	Blob appendDigestState(byte[] digestState) {
+		return new Blob(block, blockSize, blockHash, blobSize, blobHash,
+				encoding, restartIndex, restartPosition, digestState);
+	}
+
+	// The same blob with one block moved elsewhere
+	Blob relocate(int index, long block) {
+		long[] relocated = this.block.clone();
+		relocated[index] = block;
+		return new Blob(relocated, blockSize, blockHash, blobSize, blobHash,
+				encoding, restartIndex, restartPosition, digestState);
+	}
+
+	private long[] offsets() {
+		long[] offsets = this.offsets;
+		if (offsets == null) {
+			offsets = new long[block.length + 1];
+			for (int i = 0; i < block.length; i++)
+				offsets[i + 1] = offsets[i] + blockSize[i];
+			this.offsets = offsets;
+		}
+		return offsets;
 	}
 
 	private static long[] merge(long[] a1, long l2) {
@@ -119,6 +217,10 @@ public final class Blob {
 
 	public static final class BlobField implements Field<Blob> {
 
+		private static final int RESTARTS = 0x80;
+
+		private static final int DIGEST_STATE = 0x40;
+
 		private final UUID uuid;
 
 		public BlobField(UUID uuid) {
@@ -157,8 +259,10 @@ public final class Blob {
 
 		@Override
 		public ByteBuffer toBytes(Object value) {
-			ByteBuffer buffer = ByteBuffer
-					.allocate(9 + ((Blob) value).count() * 12);
+			Blob blob = (Blob) value;
+			ByteBuffer buffer = ByteBuffer.allocate(9 + blob.count() * 12
+					+ (blob.restarts() == 0 ? 0 : 4 + blob.restarts() * 12)
+					+ (blob.digestState == null ? 0 : blob.digestState.length));
 			put(buffer, value);
 			return buffer;
 		}
@@ -167,7 +271,20 @@ public final class Blob {
 		public void put(ByteBuffer buffer, Object value) {
 			Blob blob = (Blob) value;
 			buffer.putLong(blob.blobSize);
-			buffer.put(blob.encoding.toByte());
+			// The high bits of the encoding flag a restart table and a
+			// digest state following it
+			int flags = (blob.restarts() == 0 ? 0 : RESTARTS)
+					| (blob.digestState == null ? 0 : DIGEST_STATE);
+			buffer.put((byte) (blob.encoding.toByte() | flags));
+			if (blob.restarts() != 0) {
+				buffer.putInt(blob.restarts());
+				for (int i = 0; i < blob.restarts(); i++) {
+					buffer.putInt(blob.restartIndex[i]);
+					buffer.putLong(blob.restartPosition[i]);
+				}
+			}
+			if (blob.digestState != null)
+				buffer.put(blob.digestState);
 			for (int i = 0; i < blob.count(); i++) {
 				buffer.putLong(blob.block[i]);
 				buffer.putInt((int) blob.blockSize[i]);
@@ -177,7 +294,27 @@ public final class Blob {
 		@Override
 		public Blob get(ByteBuffer buffer) {
 			long blobSize = buffer.getLong();
-			StreamEncoding encoding = StreamEncoding.fromByte(buffer.get());
+			byte encodingByte = buffer.get();
+			StreamEncoding encoding = StreamEncoding.fromByte((byte) (encodingByte
+					& ~(RESTARTS | DIGEST_STATE)));
+			int[] restartIndex = new int[(encodingByte & RESTARTS) == 0 ? 0
+					: buffer.getInt()];
+			long[] restartPosition = new long[restartIndex.length];
+			for (int i = 0; i < restartIndex.length; i++) {
+				restartIndex[i] = buffer.getInt();
+				restartPosition[i] = buffer.getLong();
+			}
+			byte[] digestState = null;
+			byte[] blobHash = null;
+			if ((encodingByte & DIGEST_STATE) != 0) {
+				// The stream size tells how much of the last digest block
+				// is kept
+				digestState = new byte[Sha256.FIXED_STATE_SIZE
+						+ (int) (blobSize & 63)];
+				buffer.get(digestState);
+				blobHash = StoreImpl.sha256Hash(new Sha256(digestState)
+						.digest());
+			}
 			int count = buffer.remaining() / 12;
 			long[] block = new long[count];
 			long[] blockSize = new long[count];
@@ -185,7 +322,8 @@ public final class Blob {
 				block[i] = buffer.getLong();
 				blockSize[i] = buffer.getInt() & 0xFfffFfff;
 			}
-			return new Blob(block, blockSize, null, blobSize, null, encoding);
+			return new Blob(block, blockSize, null, blobSize, blobHash,
+					encoding, restartIndex, restartPosition, digestState);
 		}
 
 		@Override
@@ -0,0 +1,350 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+// Finds the blocks still referenced through blob fields in the maps, and
+// moves them out of volumes that are mostly garbage so that those can be
+// written to again
+final class BlobCompactor {
+
+	// Volumes whose live blocks fill less than this share of their used
+	// space are compacted
+	private static final double THRESHOLD = 0.5;
+
+	private static final long DEFAULT_GRACE_PERIOD = 60 * 1000;
+
+	private final DefinitionIndex definitionIndex;
+
+	private final MapProvider mapProvider;
+
+	private final BlobVolumes volumes;
+
+	// Blobs are written before the entries referring to them are put, and
+	// read after they are got, so volumes are left alone for this long
+	// after their last write, and cleared only this long after compaction
+	// and once no stream reads from them
+	private volatile long gracePeriod = DEFAULT_GRACE_PERIOD;
+
+	// Compacted volumes and when their blocks were moved
+	private final Map<Integer, Long> quarantined = new HashMap<Integer, Long>();
+
+	// Volume that relocated blocks are currently copied into, or -1
+	private int target = -1;
+
+	BlobCompactor(DefinitionIndex definitionIndex, MapProvider mapProvider,
+			BlobVolumes volumes) {
+		this.definitionIndex = definitionIndex;
+		this.mapProvider = mapProvider;
+		this.volumes = volumes;
+	}
+
+	void setGracePeriod(long gracePeriod) {
+		this.gracePeriod = gracePeriod;
+	}
+
+	synchronized List<MapKeyValue> compact(BlockIndex blockIndex,
+			Collection<MultipartUpload> uploads, CompactionGuard guard) {
+		long now = System.currentTimeMillis();
+		long idleSince = now - gracePeriod;
+
+		final long[] live = new long[volumes.count()];
+		scan(new BlobVisitor() {
+			@Override
+			Blob visit(Blob blob) {
+				for (int i = 0; i < blob.count(); i++) {
+					int node = (int) Blob.asNode(blob.block(i));
+					if (node < live.length)
+						live[node] += blob.size(i);
+				}
+				return blob;
+			}
+		}, null);
+
+		// Parts of unfinished uploads stay where they are
+		Set<Integer> pinned = new HashSet<Integer>();
+		for (MultipartUpload upload : uploads)
+			for (Blob part : upload.parts())
+				for (int i = 0; i < part.count(); i++)
+					pinned.add((int) Blob.asNode(part.block(i)));
+
+		// Blobs got before their volume was compacted may have been put
+		// again since, or appended to or completed from; such volumes have
+		// their blocks moved again rather than being cleared
+		final Set<Integer> victims = new HashSet<Integer>();
+		Iterator<Map.Entry<Integer, Long>> expired = quarantined.entrySet()
+				.iterator();
+		while (expired.hasNext()) {
+			Map.Entry<Integer, Long> entry = expired.next();
+			int node = entry.getKey();
+			if (entry.getValue() > idleSince || pinned.contains(node)
+					|| volumes.isPinned(node))
+				continue;
+			if (live[node] == 0) {
+				if (blockIndex != null)
+					blockIndex.discard(node);
+				volumes.reuse(node);
+			} else
+				victims.add(node);
+			expired.remove();
+		}
+
+		for (int node = 0; node < live.length; node++) {
+			if (pinned.contains(node) || victims.contains(node))
+				continue;
+			int used = volumes.used(node);
+			if (used > 16 && live[node] < used * THRESHOLD
+					&& !quarantined.containsKey(node)
+					&& volumes.retire(node, idleSince))
+				victims.add(node);
+		}
+		if (victims.isEmpty())
+			return new ArrayList<MapKeyValue>();
+
+		final Map<Long, Long> moved = new HashMap<Long, Long>();
+		final BlockIndex index = blockIndex;
+		List<MapKeyValue> ops;
+		try {
+			ops = scan(new BlobVisitor() {
+				@Override
+				Blob visit(Blob blob) {
+					for (int i = 0; i < blob.count(); i++) {
+						long block = blob.block(i);
+						if (!victims.contains((int) Blob.asNode(block)))
+							continue;
+						Long to = moved.get(block);
+						if (to == null) {
+							to = copy(block, (int) blob.size(i));
+							moved.put(block, to);
+							if (index != null)
+								index.relocate(block, to);
+						}
+						blob = blob.relocate(i, to);
+					}
+					return blob;
+				}
+			}, guard);
+		} finally {
+			if (target != -1) {
+				volumes.release(target);
+				target = -1;
+			}
+		}
+
+		for (Integer node : victims)
+			quarantined.put(node, now);
+		return ops;
+	}
+
+	// Indexes the blocks of the blobs of every entry, hashing them anew as
+	// block hashes aren't stored with the blobs
+	synchronized void index(final BlockIndex blockIndex) {
+		final MessageDigest digest = StoreImpl.sha256();
+		scan(new BlobVisitor() {
+			@Override
+			Blob visit(Blob blob) {
+				for (int i = 0; i < blob.count(); i++) {
+					long block = blob.block(i);
+					int size = (int) blob.size(i);
+					int offset = (int) Blob.asOffset(block);
+					ByteBuffer stored = volumes.get((int) Blob.asNode(block))
+							.asReadOnlyBuffer();
+					stored.limit(offset + size);
+					stored.position(offset);
+					digest.update(stored);
+					blockIndex.restore(StoreImpl.blockHash(digest.digest()),
+							block, size);
+				}
+				return blob;
+			}
+		}, null);
+	}
+
+	private long copy(long block, int size) {
+		int offset = (int) Blob.asOffset(block);
+		ByteBuffer source = volumes.get((int) Blob.asNode(block))
+				.asReadOnlyBuffer();
+		source.limit(offset + size);
+		source.position(offset);
+
+		// Volumes too full for the block are kept until one fits, so that
+		// they aren't handed out again
+		List<Integer> full = new ArrayList<Integer>();
+		try {
+			for (;;) {
+				if (target == -1)
+					target = volumes.acquire();
+				ByteBuffer buffer = volumes.get(target);
+				int padding = (16 - buffer.position() % 16) % 16;
+				if (buffer.remaining() >= padding + size) {
+					for (int i = 0; i < padding; i++)
+						buffer.put((byte) 0);
+					long to = Blob.asBlock(target, buffer.position());
+					buffer.put(source);
+					return to;
+				}
+				full.add(target);
+				target = -1;
+			}
+		} finally {
+			for (Integer node : full)
+				volumes.release(node);
+		}
+	}
+
+	// Visits the blobs of every entry, and writes back entries whose blobs
+	// the visitor changed
+	private List<MapKeyValue> scan(BlobVisitor visitor, CompactionGuard guard) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (UUID keyUuid : definitionIndex.getKeyUuids()) {
+			List<Definition> definitions = definitionIndex.get(keyUuid);
+
+			// The whole key range, visited region by region
+			Encoder encoder = new Encoder(definitions.get(0).keyFields());
+			Object[] absent = new Object[definitions.get(0).keyFields().length];
+			Arrays.fill(absent, Encoder.ABSENT);
+			byte[] regionKey = encoder.encode(absent, true, false);
+			byte[] lastKey = encoder.encode(absent, true, true);
+			for (ConcurrentNavigableMap<byte[], byte[]> map = mapProvider.get(
+					keyUuid, regionKey, null); map != null; map = mapProvider
+					.get(keyUuid, regionKey, lastKey)) {
+				List<Rewrite> rewrites = new ArrayList<Rewrite>();
+				for (Map.Entry<byte[], byte[]> mapEntry : map.entrySet()) {
+					byte[] value = mapEntry.getValue();
+					Definition definition = definition(definitions, value);
+					byte[] rewritten = definition != null ? visit(visitor,
+							definition, value) : null;
+					if (rewritten != null)
+						rewrites.add(new Rewrite(mapEntry.getKey(), value,
+								definition, rewritten));
+				}
+				regionKey = StoreImpl.regionKey(map, regionKey);
+				if (!rewrites.isEmpty())
+					write(visitor, guard, keyUuid, definitions, rewrites, ops);
+			}
+		}
+		return ops;
+	}
+
+	// Blocks are copied before entering the guard, which is held only
+	// while the entries are replaced; each key's map is looked up anew, as
+	// the region may have been dropped or split meanwhile
+	private void write(BlobVisitor visitor, CompactionGuard guard,
+			UUID keyUuid, List<Definition> definitions, List<Rewrite> rewrites,
+			List<MapKeyValue> ops) {
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>();
+		if (guard != null)
+			guard.enter();
+		try {
+			for (Rewrite rewrite : rewrites) {
+				byte[] key = rewrite.key, value = rewrite.value;
+				Definition definition = rewrite.definition;
+				byte[] rewritten = rewrite.rewritten;
+				ConcurrentNavigableMap<byte[], byte[]> map = mapProvider.get(
+						keyUuid, key, null);
+				while (rewritten != null) {
+					// Values got from the map are replaced (see MapProvider)
+					if (map.replace(key, value, rewritten)) {
+						applied.add(new MapKeyValue(keyUuid, definition, key,
+								rewritten));
+						break;
+					}
+					// Changed meanwhile; visit the new value instead
+					if ((value = map.get(key)) == null
+							|| (definition = definition(definitions, value)) == null)
+						break;
+					rewritten = visit(visitor, definition, value);
+				}
+			}
+		} finally {
+			if (guard != null)
+				guard.exit(applied);
+			ops.addAll(applied);
+		}
+	}
+
+	private static Definition definition(List<Definition> definitions,
+			byte[] value) {
+		for (Definition candidate : definitions)
+			if (candidate.matchesValue(value))
+				return candidate;
+		return null;
+	}
+
+	private static byte[] visit(BlobVisitor visitor, Definition definition,
+			byte[] value) {
+		Field<?>[] fields = definition.valueFields();
+		Entry entry = null;
+		boolean changed = false;
+		for (Field<?> field : fields) {
+			if (!(field.toField() instanceof Blob.BlobField))
+				continue;
+			if (entry == null)
+				entry = new Entry(value, fields);
+			Blob blob = (Blob) entry.get(field.toField());
+			if (blob == null)
+				continue;
+			Blob visited = visitor.visit(blob);
+			if (visited != blob) {
+				entry = new Entry(entry, new Entry(
+						((Blob.BlobField) field.toField()).value(visited)));
+				changed = true;
+			}
+		}
+		return changed ? entry.getBytes(fields) : null;
+	}
+
+	private static final class Rewrite {
+
+		final byte[] key;
+
+		final byte[] value;
+
+		final Definition definition;
+
+		final byte[] rewritten;
+
+		Rewrite(byte[] key, byte[] value, Definition definition,
+				byte[] rewritten) {
+			this.key = key;
+			this.value = value;
+			this.definition = definition;
+			this.rewritten = rewritten;
+		}
+
+	}
+
+	private abstract static class BlobVisitor {
+
+		// Returns the blob to keep in the entry
+		abstract Blob visit(Blob blob);
+
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class BlobVolumes {
+
+	private final VolumeProvider volumes;
+
+	private final int minRemaining;
+
+	// Volumes with free space that no writer has checked out
+	private final Queue<Integer> available;
+
+	private final Set<Integer> checkedOut;
+
+	// Volumes being compacted, which writers must not get
+	private final Set<Integer> retired;
+
+	// When each volume was last written to
+	private final Map<Integer, Long> released;
+
+	// Streams reading from each volume, which keep it from being cleared
+	private final ConcurrentMap<Integer, AtomicInteger> readers;
+
+	BlobVolumes(VolumeProvider volumes, int minRemaining) {
+		this.volumes = volumes;
+		this.minRemaining = minRemaining;
+		available = new ConcurrentLinkedQueue<Integer>();
+		checkedOut = new HashSet<Integer>();
+		retired = new HashSet<Integer>();
+		released = new ConcurrentHashMap<Integer, Long>();
+		readers = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+		long now = System.currentTimeMillis();
+		for (int node = 0; node < volumes.count(); node++) {
+			released.put(node, now);
+			if (hasSpace(volumes.get(node)))
+				available.offer(node);
+		}
+	}
+
+	int count() {
+		return volumes.count();
+	}
+
+	ByteBuffer get(int node) {
+		return volumes.get(node);
+	}
+
+	int used(int node) {
+		return volumes.used(node);
+	}
+
+	// The caller owns the volume, including its position, until released
+	int acquire() {
+		synchronized (this) {
+			Integer node = available.poll();
+			if (node != null) {
+				checkedOut.add(node);
+				volumes.acquire(node);
+				return node;
+			}
+		}
+		int node = volumes.create();
+		synchronized (this) {
+			checkedOut.add(node);
+		}
+		return node;
+	}
+
+	void release(int node) {
+		volumes.release(node);
+		released.put(node, System.currentTimeMillis());
+		synchronized (this) {
+			checkedOut.remove(node);
+			if (hasSpace(volumes.get(node)))
+				available.offer(node);
+		}
+	}
+
+	// Takes a volume nobody has written to since the given time away from
+	// writers
+	synchronized boolean retire(int node, long idleSince) {
+		Long last = released.get(node);
+		if (last == null || last > idleSince || checkedOut.contains(node)
+				|| !retired.add(node))
+			return false;
+		available.remove(node);
+		return true;
+	}
+
+	// Empties a retired volume and hands it back to writers
+	void reuse(int node) {
+		volumes.clear(node);
+		released.put(node, System.currentTimeMillis());
+		synchronized (this) {
+			retired.remove(node);
+			available.offer(node);
+		}
+	}
+
+	void pin(int node) {
+		AtomicInteger count = readers.get(node);
+		if (count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = readers.putIfAbsent(node, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	void unpin(int node) {
+		readers.get(node).decrementAndGet();
+	}
+
+	boolean isPinned(int node) {
+		AtomicInteger count = readers.get(node);
+		return count != null && count.get() > 0;
+	}
+
+	private boolean hasSpace(ByteBuffer volume) {
+		int misalignment = volume.position() % 16;
+		return volume.remaining() > minRemaining
+				+ (misalignment == 0 ? 0 : 16 - misalignment);
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+final class BlockIndex {
+
+	private final Map<ByteBuffer, Location> byHash = new HashMap<ByteBuffer, Location>();
+
+	private final Map<Long, Location> byBlock = new HashMap<Long, Location>();
+
+	// Returns the stored block holding the same bytes, referencing it once
+	// more, or -1 if there is none
+	synchronized long reference(byte[] hash, ByteBuffer written,
+			BlobVolumes volumes) {
+		Location location = byHash.get(ByteBuffer.wrap(hash));
+		if (location == null || location.size != written.remaining())
+			return -1;
+
+		ByteBuffer stored = volumes.get((int) Blob.asNode(location.block))
+				.asReadOnlyBuffer();
+		int offset = (int) Blob.asOffset(location.block);
+		stored.limit(offset + location.size);
+		stored.position(offset);
+		if (!stored.equals(written))
+			return -1;
+
+		location.references++;
+		return location.block;
+	}
+
+	synchronized void add(byte[] hash, long block, int size) {
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		if (byHash.containsKey(key))
+			return;
+		Location location = new Location(key, block, size);
+		byHash.put(key, location);
+		byBlock.put(block, location);
+	}
+
+	// Indexes a block of a stored blob, or references it once more
+	synchronized void restore(byte[] hash, long block, int size) {
+		Location location = byBlock.get(block);
+		if (location != null)
+			location.references++;
+		else
+			add(hash, block, size);
+	}
+
+	synchronized void release(long block) {
+		Location location = byBlock.get(block);
+		if (location != null && --location.references == 0) {
+			byHash.remove(location.hash);
+			byBlock.remove(block);
+		}
+	}
+
+	synchronized void relocate(long from, long to) {
+		Location location = byBlock.remove(from);
+		if (location == null)
+			return;
+		Location moved = new Location(location.hash, to, location.size);
+		moved.references = location.references;
+		byHash.put(location.hash, moved);
+		byBlock.put(to, moved);
+	}
+
+	// Forgets the blocks left in a volume about to be cleared
+	synchronized void discard(int node) {
+		Iterator<Location> locations = byBlock.values().iterator();
+		while (locations.hasNext()) {
+			Location location = locations.next();
+			if (Blob.asNode(location.block) == node) {
+				locations.remove();
+				byHash.remove(location.hash);
+			}
+		}
+	}
+
+	private static final class Location {
+
+		final ByteBuffer hash;
+
+		final long block;
+
+		final int size;
+
+		int references = 1;
+
+		Location(ByteBuffer hash, long block, int size) {
+			this.hash = hash;
+			this.block = block;
+			this.size = size;
+		}
+
+	}
+
+}
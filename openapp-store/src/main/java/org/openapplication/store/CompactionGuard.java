@@ -0,0 +1,29 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.util.List;
+
+// Brackets the rewriting of the entries of each region during compaction,
+// for stores that have to lock and log their writes
+public interface CompactionGuard {
+
+	void enter();
+
+	// The operations applied since entering, possibly none
+	void exit(List<MapKeyValue> ops);
+
+}
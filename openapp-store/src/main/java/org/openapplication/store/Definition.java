@@ -47,6 +47,14 @@ public final class Definition {
 		return valueFields.clone();
 	}
 
+	Field<?>[] keyFields() {
+		return keyFields;
+	}
+
+	Field<?>[] valueFields() {
+		return valueFields;
+	}
+
 	public UUID toKeyUuid() {
 		return keyUuid;
 	}
@@ -82,16 +90,17 @@ public final class Definition {
 					position += 1;
 					break;
 				case Field.SIZE_VARIABLE_BYTE:
-					position += ByteBuffer.wrap(value, position, 1).get() & 0xff;
-					position += 1;
+					position += (value[position] & 0xff) + 1;
 					break;
 				case Field.SIZE_VARIABLE_SHORT:
-					position += ByteBuffer.wrap(value, position, 2).getShort() & 0xffff;
-					position += 2;
+					position += ((value[position] & 0xff) << 8
+							| value[position + 1] & 0xff) + 2;
 					break;
 				case Field.SIZE_VARIABLE_INTEGER:
-					position += ByteBuffer.wrap(value, position, 4).getInt() & 0xffffffff;
-					position += 4;
+					position += ((value[position] & 0xff) << 24
+							| (value[position + 1] & 0xff) << 16
+							| (value[position + 2] & 0xff) << 8
+							| value[position + 3] & 0xff) + 4;
 					break;
 				}
 				if (position >= value.length)
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class DefinitionIndex {
+
+	// Upper bound on the number of distinct field combinations remembered
+	private static final int CACHE_LIMIT = 4096;
+
+	private final List<Definition> definitionList;
+
+	private final Map<UUID, List<Definition>> definitionMap;
+
+	private final Map<Field<?>, Integer> fieldBits;
+
+	private final Compiled[] compiled;
+
+	private final Map<FieldSet, Compiled[]> putCache;
+
+	private final Map<FieldSet, Compiled[]> removeCache;
+
+	public DefinitionIndex(List<Definition> definitions) {
+		definitionList = new ArrayList<Definition>(definitions);
+		definitionMap = new HashMap<UUID, List<Definition>>();
+		fieldBits = new IdentityHashMap<Field<?>, Integer>();
+		putCache = new ConcurrentHashMap<FieldSet, Compiled[]>();
+		removeCache = new ConcurrentHashMap<FieldSet, Compiled[]>();
+
+		for (Definition definition : definitionList) {
+			UUID keyUuid = definition.toKeyUuid();
+			if (!definitionMap.containsKey(keyUuid))
+				definitionMap.put(keyUuid, new ArrayList<Definition>());
+			definitionMap.get(keyUuid).add(definition);
+
+			for (Field<?> field : definition.keyFields())
+				if (!fieldBits.containsKey(field.toField()))
+					fieldBits.put(field.toField(), fieldBits.size());
+			for (Field<?> field : definition.valueFields())
+				if (!fieldBits.containsKey(field.toField()))
+					fieldBits.put(field.toField(), fieldBits.size());
+		}
+
+		int words = (fieldBits.size() + 63) / 64;
+		compiled = new Compiled[definitionList.size()];
+		for (int i = 0; i < compiled.length; i++)
+			compiled[i] = new Compiled(definitionList.get(i), words);
+	}
+
+	public List<Definition> getDefinitions() {
+		return Collections.unmodifiableList(definitionList);
+	}
+
+	public Set<UUID> getKeyUuids() {
+		return Collections.unmodifiableSet(definitionMap.keySet());
+	}
+
+	public List<Definition> get(UUID keyUuid) {
+		return definitionMap.get(keyUuid);
+	}
+
+	public List<MapKeyValue> putOperations(Entry entry) {
+		FieldSet present = fieldSet(entry);
+		Compiled[] candidates = putCache.get(present);
+		if (candidates == null) {
+			List<Compiled> matching = new ArrayList<Compiled>();
+			for (Compiled definition : compiled)
+				if (present.containsAll(definition.keyValueBits))
+					matching.add(definition);
+			candidates = cache(putCache, present, matching);
+		}
+
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>(candidates.length);
+		for (Compiled candidate : candidates)
+			if (candidate.matchesValues(entry))
+				ops.add(new MapKeyValue(candidate.keyUuid,
+						candidate.definition, candidate.keyEncoder
+								.encode(entry), candidate.valueEncoder
+								.encode(entry)));
+		return ops;
+	}
+
+	public List<MapKeyValue> removeOperations(Entry entry) {
+		FieldSet present = fieldSet(entry);
+		Compiled[] candidates = removeCache.get(present);
+		if (candidates == null) {
+			List<Compiled> matching = new ArrayList<Compiled>();
+			for (Compiled definition : compiled)
+				if (present.containsAll(definition.keyBits))
+					matching.add(definition);
+			candidates = cache(removeCache, present, matching);
+		}
+
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>(candidates.length);
+		for (Compiled candidate : candidates)
+			ops.add(new MapKeyValue(candidate.keyUuid, candidate.definition,
+					candidate.keyEncoder.encode(entry), null));
+		return ops;
+	}
+
+	public static Entry decode(List<Definition> definitions, Entry keyEntry,
+			byte[] value) {
+		for (Definition definition : definitions)
+			if (definition.matchesValue(value))
+				return new Entry(keyEntry, new Entry(value,
+						definition.valueFields()));
+
+		return keyEntry;
+	}
+
+	public static Entry decode(List<Definition> definitions, byte[] key,
+			byte[] value) {
+		for (Definition definition : definitions)
+			if (definition.matchesValue(value))
+				return new Entry(key, definition.keyFields(), value,
+						definition.valueFields());
+
+		return new Entry(key, definitions.get(0).keyFields());
+	}
+
+	private static Compiled[] cache(Map<FieldSet, Compiled[]> cache,
+			FieldSet present, List<Compiled> matching) {
+		Compiled[] candidates = matching.toArray(new Compiled[matching.size()]);
+		if (cache.size() < CACHE_LIMIT)
+			cache.put(present, candidates);
+		return candidates;
+	}
+
+	private FieldSet fieldSet(Entry entry) {
+		long[] bits = new long[(fieldBits.size() + 63) / 64];
+		for (Field<?> field : entry.fields()) {
+			Integer bit = fieldBits.get(field);
+			if (bit != null)
+				bits[bit >>> 6] |= 1L << bit;
+		}
+		return new FieldSet(bits);
+	}
+
+	private static final class FieldSet {
+
+		private final long[] bits;
+
+		private final int hashCode;
+
+		FieldSet(long[] bits) {
+			this.bits = bits;
+			this.hashCode = Arrays.hashCode(bits);
+		}
+
+		boolean containsAll(long[] required) {
+			for (int i = 0; i < required.length; i++)
+				if ((bits[i] & required[i]) != required[i])
+					return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return Arrays.equals(bits, ((FieldSet) obj).bits);
+		}
+
+	}
+
+	private final class Compiled {
+
+		final Definition definition;
+
+		final UUID keyUuid;
+
+		final Field<?>[] keyFields;
+
+		final Field<?>[] valueFields;
+
+		final Encoder keyEncoder;
+
+		final Encoder valueEncoder;
+
+		final long[] keyBits;
+
+		final long[] keyValueBits;
+
+		// Fields given as FieldValue in the definition, whose value in an
+		// entry has to match
+		final FieldValue<?>[] constraints;
+
+		Compiled(Definition definition, int words) {
+			this.definition = definition;
+			this.keyUuid = definition.toKeyUuid();
+			this.keyFields = definition.keyFields();
+			this.valueFields = definition.valueFields();
+			this.keyEncoder = new Encoder(keyFields);
+			this.valueEncoder = new Encoder(valueFields);
+			this.keyBits = new long[words];
+			this.keyValueBits = new long[words];
+
+			List<FieldValue<?>> constraints = new ArrayList<FieldValue<?>>();
+			for (Field<?> field : keyFields) {
+				int bit = fieldBits.get(field.toField());
+				keyBits[bit >>> 6] |= 1L << bit;
+				keyValueBits[bit >>> 6] |= 1L << bit;
+				if (field instanceof FieldValue<?>)
+					constraints.add((FieldValue<?>) field);
+			}
+			for (Field<?> field : valueFields) {
+				int bit = fieldBits.get(field.toField());
+				keyValueBits[bit >>> 6] |= 1L << bit;
+				if (field instanceof FieldValue<?>)
+					constraints.add((FieldValue<?>) field);
+			}
+			this.constraints = constraints
+					.toArray(new FieldValue<?>[constraints.size()]);
+		}
+
+		boolean matchesValues(Entry entry) {
+			for (FieldValue<?> constraint : constraints) {
+				Object expected = constraint.toValue();
+				Object actual = entry.get(constraint.toField());
+				if (expected != actual
+						&& (expected == null || !expected.equals(actual)))
+					return false;
+			}
+			return true;
+		}
+
+	}
+
+}
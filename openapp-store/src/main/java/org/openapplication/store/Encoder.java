@@ -0,0 +1,157 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.nio.ByteBuffer;
+
+final class Encoder {
+
+	// Marks a field without a value, which ranges fill with min/max bytes
+	static final Object ABSENT = new Object();
+
+	private final Field<?>[] fields;
+
+	private final Field<?>[] keys;
+
+	private final int[] sizes;
+
+	Encoder(Field<?>[] fields) {
+		this.fields = fields;
+		this.keys = new Field<?>[fields.length];
+		this.sizes = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			keys[i] = fields[i].toField();
+			sizes[i] = fields[i].size();
+		}
+	}
+
+	Field<?>[] getFields() {
+		return fields;
+	}
+
+	Object[] values(Entry entry) {
+		Object[] values = new Object[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			values[i] = entry.has(keys[i]) ? entry.value(keys[i]) : ABSENT;
+		return values;
+	}
+
+	Object[] values(Object[] base, Entry overlay) {
+		Object[] values = base.clone();
+		for (int i = 0; i < keys.length; i++)
+			if (overlay.has(keys[i]))
+				values[i] = overlay.value(keys[i]);
+		return values;
+	}
+
+	byte[] encode(Entry entry) {
+		return encode(values(entry), false, false);
+	}
+
+	byte[] encode(Object[] values, boolean range, boolean stop) {
+		ByteBuffer[] parts = new ByteBuffer[fields.length];
+		int length = range && stop ? 1 : 0;
+		for (int i = 0; i < fields.length; i++) {
+			Object value = values[i];
+			if (value == ABSENT)
+				if (range) {
+					parts[i] = bound(i, stop);
+					length += parts[i].limit();
+					continue;
+				} else
+					value = null;
+
+			if (sizes[i] >= 0) {
+				length += sizes[i];
+				continue;
+			}
+
+			parts[i] = (ByteBuffer) fields[i].toBytes(value).rewind();
+			length += parts[i].limit();
+			if (i < fields.length - 1)
+				switch (sizes[i]) {
+				case Field.SIZE_NULL_TERMINATED:
+				case Field.SIZE_VARIABLE_BYTE:
+					length += 1;
+					break;
+				case Field.SIZE_VARIABLE_SHORT:
+					length += 2;
+					break;
+				case Field.SIZE_VARIABLE_INTEGER:
+					length += 4;
+					break;
+				}
+		}
+
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		for (int i = 0; i < fields.length; i++)
+			if (values[i] == ABSENT && range)
+				buffer.put(parts[i]);
+			else if (sizes[i] >= 0)
+				fields[i].put(buffer, values[i] == ABSENT ? null : values[i]);
+			else if (i == fields.length - 1)
+				buffer.put(parts[i]);
+			else
+				switch (sizes[i]) {
+				case Field.SIZE_NULL_TERMINATED:
+					ByteBuffer src = parts[i];
+					byte srcByte;
+					int srcLength = src.limit();
+					for (int j = 0; j < srcLength; j++)
+						if (0 != (srcByte = src.get()))
+							buffer.put(srcByte);
+						else
+							throw new IllegalArgumentException(
+									"Null character within null-terminated value of field: "
+											+ fields[i]);
+					buffer.put((byte) 0);
+					break;
+				case Field.SIZE_VARIABLE_BYTE:
+					buffer.put((byte) parts[i].limit());
+					buffer.put(parts[i]);
+					break;
+				case Field.SIZE_VARIABLE_SHORT:
+					buffer.putShort((short) parts[i].limit());
+					buffer.put(parts[i]);
+					break;
+				case Field.SIZE_VARIABLE_INTEGER:
+					buffer.putInt(parts[i].limit());
+					buffer.put(parts[i]);
+					break;
+				}
+		if (range && stop)
+			buffer.put((byte) 0);
+
+		return bytes;
+	}
+
+	private ByteBuffer bound(int i, boolean stop) {
+		if (fields[i] instanceof FieldRange<?>) {
+			FieldRange<?> range = (FieldRange<?>) fields[i];
+			Object bound = stop ? range.getMax() : range.getMin();
+			if (bound != null)
+				return (ByteBuffer) fields[i].toBytes(bound).rewind();
+		}
+
+		byte[] fill = new byte[Math.max(sizes[i], 0)];
+		if (stop)
+			for (int j = 0; j < fill.length; j++)
+				fill[j] = (byte) -1;
+		return ByteBuffer.wrap(fill);
+	}
+
+}
@@ -16,95 +16,95 @@
 package org.openapplication.store;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public final class Entry {
 
-	private final Map<Field<?>, Object> values;
+	// Each part is either a Map of decoded values or a Segment of stored
+	// bytes that is decoded on demand; later parts take precedence
+	private final Object[] parts;
 
 	public Entry(Field<?>... fields) {
-		values = new IdentityHashMap<Field<?>, Object>(fields.length);
+		Map<Field<?>, Object> values = new IdentityHashMap<Field<?>, Object>(
+				fields.length);
 		for (Field<?> field : fields)
 			if (field instanceof FieldValue<?>) {
 				FieldValue<?> fieldValue = (FieldValue<?>) field;
 				values.put(fieldValue.toField(), fieldValue.toValue());
 			}
+		parts = new Object[] { values };
 	}
 
+	@SuppressWarnings("unchecked")
 	public Entry(Entry e1, Entry e2) {
-		values = new IdentityHashMap<Field<?>, Object>(e1.values.size()
-				+ e2.values.size());
-		values.putAll(e1.values);
-		values.putAll(e2.values);
+		if (e1.parts.length == 1 && e1.parts[0] instanceof Map<?, ?>
+				&& e2.parts.length == 1 && e2.parts[0] instanceof Map<?, ?>) {
+			Map<Field<?>, Object> values1 = (Map<Field<?>, Object>) e1.parts[0];
+			Map<Field<?>, Object> values2 = (Map<Field<?>, Object>) e2.parts[0];
+			Map<Field<?>, Object> values = new IdentityHashMap<Field<?>, Object>(
+					values1.size() + values2.size());
+			values.putAll(values1);
+			values.putAll(values2);
+			parts = new Object[] { values };
+		} else {
+			parts = new Object[e1.parts.length + e2.parts.length];
+			System.arraycopy(e1.parts, 0, parts, 0, e1.parts.length);
+			System.arraycopy(e2.parts, 0, parts, e1.parts.length,
+					e2.parts.length);
+		}
 	}
 
 	public Entry(byte[] bytes, Field<?>... fields) {
-		values = new IdentityHashMap<Field<?>, Object>(fields.length);
-		for (int i = 0, position = 0; i < fields.length; i++) {
-			Field<?> field = fields[i];
-
-			int fieldSize = field.size(), valueStart = position, valueSize = fieldSize;
-			if (fieldSize < 0)
-				if (i == fields.length - 1)
-					fieldSize = (valueSize = bytes.length - position);
-				else
-					switch (fieldSize) {
-					case Field.SIZE_NULL_TERMINATED:
-						int test = position;
-						while (bytes[test] != 0)
-							test++;
-						valueSize = test - position;
-						fieldSize = valueSize + 1;
-						break;
-					case Field.SIZE_VARIABLE_BYTE:
-						valueSize = ByteBuffer.wrap(bytes, position, 1).get() & 0xff;
-						valueStart = position + 1;
-						fieldSize = valueSize + 1;
-						break;
-					case Field.SIZE_VARIABLE_SHORT:
-						valueSize = ByteBuffer.wrap(bytes, position, 2)
-								.getShort() & 0xffff;
-						valueStart = position + 2;
-						fieldSize = valueSize + 2;
-						break;
-					case Field.SIZE_VARIABLE_INTEGER:
-						valueSize = ByteBuffer.wrap(bytes, position, 4)
-								.getInt() & 0xffffffff;
-						valueStart = position + 4;
-						fieldSize = valueSize + 4;
-						break;
-					}
-
-			values.put(field.toField(), field.get(ByteBuffer.wrap(bytes,
-					valueStart, valueSize).asReadOnlyBuffer()));
-			position += fieldSize;
-		}
+		parts = new Object[] { new Segment(bytes, fields) };
+	}
+
+	Entry(byte[] key, Field<?>[] keyFields, byte[] value, Field<?>[] valueFields) {
+		parts = new Object[] { new Segment(key, keyFields),
+				new Segment(value, valueFields) };
 	}
 
 	@SuppressWarnings("unchecked")
 	public <T> T get(Field<T> field) {
-		return (T) values.get(field.toField());
+		return (T) value(field.toField());
+	}
+
+	@SuppressWarnings("unchecked")
+	Collection<Field<?>> fields() {
+		if (parts.length == 1 && parts[0] instanceof Map<?, ?>)
+			return ((Map<Field<?>, ?>) parts[0]).keySet();
+
+		Collection<Field<?>> fields = new ArrayList<Field<?>>();
+		for (Object part : parts)
+			if (part instanceof Segment)
+				for (Field<?> field : ((Segment) part).fields)
+					fields.add(field.toField());
+			else
+				fields.addAll(((Map<Field<?>, ?>) part).keySet());
+		return fields;
 	}
 
 	public boolean containsFields(Field<?>... fields) {
 		for (Field<?> field : fields)
-			if (!values.containsKey(field.toField()))
+			if (!has(field.toField()))
 				return false;
 		return true;
 	}
 
 	public boolean containsFieldValues(Field<?>... fields) {
 		for (Field<?> field : fields)
-			if (values.containsKey(field.toField()))
+			if (has(field.toField()))
 				if (field instanceof FieldValue<?>)
 					if (((FieldValue<?>) field).toValue() == null)
-						if (values.get(field.toField()) != null)
+						if (value(field.toField()) != null)
 							return false;
 						else
 							continue;
 					else if (!((FieldValue<?>) field).toValue().equals(
-							values.get(field.toField())))
+							value(field.toField())))
 						return false;
 					else
 						continue;
@@ -115,6 +115,31 @@ public final class Entry {
 		return true;
 	}
 
+	boolean has(Field<?> field) {
+		for (int i = parts.length - 1; i >= 0; i--)
+			if (parts[i] instanceof Segment) {
+				if (((Segment) parts[i]).indexOf(field) >= 0)
+					return true;
+			} else if (((Map<?, ?>) parts[i]).containsKey(field))
+				return true;
+		return false;
+	}
+
+	Object value(Field<?> field) {
+		for (int i = parts.length - 1; i >= 0; i--)
+			if (parts[i] instanceof Segment) {
+				Segment segment = (Segment) parts[i];
+				int index = segment.indexOf(field);
+				if (index >= 0)
+					return segment.get(index);
+			} else {
+				Map<?, ?> values = (Map<?, ?>) parts[i];
+				if (values.containsKey(field))
+					return values.get(field);
+			}
+		return null;
+	}
+
 	public byte[] getBytes(Field<?>... fields) {
 		return getBytes(fields, false, false);
 	}
@@ -124,88 +149,96 @@ public final class Entry {
 	}
 
 	private byte[] getBytes(Field<?>[] fields, boolean range, boolean stop) {
-		int varCount = 0;
-		for (Field<?> field : fields)
-			if (field.size() < 0)
-				varCount++;
-
-		ByteBuffer[] vars = new ByteBuffer[varCount];
-		for (int i = 0, varIndex = 0; i < fields.length; i++)
-			if (fields[i].size() < 0)
-				vars[varIndex++] = (ByteBuffer) fields[i].toBytes(
-						values.get(fields[i].toField())).rewind();
-
-		int length = 0;
-		for (int i = 0, size, varIndex = 0; i < fields.length; i++)
-			if ((size = fields[i].size()) >= 0)
-				length += size;
-			else if (i == fields.length - 1)
-				length += vars[varIndex++].limit();
-			else
-				switch (size) {
-				case Field.SIZE_NULL_TERMINATED:
-				case Field.SIZE_VARIABLE_BYTE:
-					length += vars[varIndex++].limit() + 1;
-					break;
-				case Field.SIZE_VARIABLE_SHORT:
-					length += vars[varIndex++].limit() + 2;
-					break;
-				case Field.SIZE_VARIABLE_INTEGER:
-					length += vars[varIndex++].limit() + 4;
-					break;
-				}
-		if (range && stop)
-			length++;
-
-		byte[] bytes = new byte[length];
-		ByteBuffer buffer = ByteBuffer.wrap(bytes);
-		for (int i = 0, size, varIndex = 0; i < fields.length; i++)
-			if (range && !values.containsKey(fields[i].toField()))
-				if (!stop && fields[i] instanceof FieldRange<?>
-						&& ((FieldRange<?>) fields[i]).getMin() != null)
-					fields[i].put(buffer, ((FieldRange<?>) fields[i]).getMin());
-				else if (stop && fields[i] instanceof FieldRange<?>
-						&& ((FieldRange<?>) fields[i]).getMax() != null)
-					fields[i].put(buffer, ((FieldRange<?>) fields[i]).getMax());
-				else
-					for (int j = fields[i].size(); j > 0; j--)
-						buffer.put(stop ? (byte) -1 : 0);
-			else if ((size = fields[i].size()) >= 0)
-				fields[i].put(buffer, values.get(fields[i].toField()));
-			else if (i == fields.length - 1)
-				buffer.put(vars[varIndex++]);
-			else
-				switch (size) {
-				case Field.SIZE_NULL_TERMINATED:
-					ByteBuffer src = vars[varIndex++];
-					byte srcByte;
-					int srcLength = src.limit();
-					for (int j = 0; j < srcLength; j++)
-						if (0 != (srcByte = src.get()))
-							buffer.put(srcByte);
-						else
-							throw new IllegalArgumentException(
-									"Null character within null-terminated value of field: "
-											+ fields[i]);
-					buffer.put((byte) 0);
-					break;
-				case Field.SIZE_VARIABLE_BYTE:
-					buffer.put((byte) vars[varIndex].limit());
-					buffer.put(vars[varIndex++]);
-					break;
-				case Field.SIZE_VARIABLE_SHORT:
-					buffer.putShort((short) vars[varIndex].limit());
-					buffer.put(vars[varIndex++]);
-					break;
-				case Field.SIZE_VARIABLE_INTEGER:
-					buffer.putInt(vars[varIndex].limit());
-					buffer.put(vars[varIndex++]);
-					break;
-				}
-		if (range && stop)
-			buffer.put((byte) 0);
-
-		return bytes;
+		Encoder encoder = new Encoder(fields);
+		return encoder.encode(encoder.values(this), range, stop);
+	}
+
+	private static final class Segment {
+
+		final byte[] bytes;
+
+		final Field<?>[] fields;
+
+		// Stands for a decoded null value
+		private static final Object NULL = new Object();
+
+		// Start and size of each field's value
+		private final int[] offsets;
+
+		// Values decoded so far, on first access; segments are shared
+		// between threads as entries are
+		private final AtomicReferenceArray<Object> decoded;
+
+		Segment(byte[] bytes, Field<?>[] fields) {
+			this.bytes = bytes;
+			this.fields = fields;
+			offsets = offsets(bytes, fields);
+			decoded = new AtomicReferenceArray<Object>(fields.length);
+		}
+
+		int indexOf(Field<?> field) {
+			for (int i = 0; i < fields.length; i++)
+				if (fields[i].toField() == field)
+					return i;
+			return -1;
+		}
+
+		Object get(int index) {
+			Object value = decoded.get(index);
+			if (value == null) {
+				value = fields[index].get(ByteBuffer.wrap(bytes,
+						offsets[index * 2], offsets[index * 2 + 1])
+						.asReadOnlyBuffer());
+				decoded.set(index, value != null ? value : NULL);
+			}
+			return value != NULL ? value : null;
+		}
+
+		private static int[] offsets(byte[] bytes, Field<?>[] fields) {
+			int[] offsets = new int[fields.length * 2];
+			for (int i = 0, position = 0; i < fields.length; i++) {
+				int fieldSize = fields[i].size(), valueStart = position;
+				int valueSize = fieldSize;
+				if (fieldSize < 0)
+					if (i == fields.length - 1)
+						fieldSize = (valueSize = bytes.length - position);
+					else
+						switch (fieldSize) {
+						case Field.SIZE_NULL_TERMINATED:
+							int test = position;
+							while (bytes[test] != 0)
+								test++;
+							valueSize = test - position;
+							fieldSize = valueSize + 1;
+							break;
+						case Field.SIZE_VARIABLE_BYTE:
+							valueSize = bytes[position] & 0xff;
+							valueStart = position + 1;
+							fieldSize = valueSize + 1;
+							break;
+						case Field.SIZE_VARIABLE_SHORT:
+							valueSize = (bytes[position] & 0xff) << 8
+									| bytes[position + 1] & 0xff;
+							valueStart = position + 2;
+							fieldSize = valueSize + 2;
+							break;
+						case Field.SIZE_VARIABLE_INTEGER:
+							valueSize = (bytes[position] & 0xff) << 24
+									| (bytes[position + 1] & 0xff) << 16
+									| (bytes[position + 2] & 0xff) << 8
+									| bytes[position + 3] & 0xff;
+							valueStart = position + 4;
+							fieldSize = valueSize + 4;
+							break;
+						}
+
+				offsets[i * 2] = valueStart;
+				offsets[i * 2 + 1] = valueSize;
+				position += fieldSize;
+			}
+			return offsets;
+		}
+
 	}
 
 }
@@ -0,0 +1,413 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// LZ4 frame format with independent 64 KiB blocks and no checksums besides
+// the header checksum; readable by the reference lz4 tool
+final class Lz4 {
+
+	private static final int MAGIC = 0x184D2204;
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private static final int MIN_MATCH = 4;
+
+	// Matches must start this many bytes before the end of a block
+	private static final int MF_LIMIT = 12;
+
+	// The last bytes of a block are always literals
+	private static final int LAST_LITERALS = 5;
+
+	private static final int HASH_LOG = 12;
+
+	private Lz4() {
+	}
+
+	static final class Lz4OutputStream extends FilterOutputStream {
+
+		private final byte[] buffer = new byte[BLOCK_SIZE];
+
+		private final byte[] compressed = new byte[4 + maxCompressedLength(
+				BLOCK_SIZE)];
+
+		private final int[] table = new int[1 << HASH_LOG];
+
+		private int count = 0;
+
+		private boolean closed = false;
+
+		Lz4OutputStream(OutputStream out) throws IOException {
+			super(out);
+			byte[] header = new byte[7];
+			writeInt(header, 0, MAGIC);
+			header[4] = 0x60; // Version 01, independent blocks
+			header[5] = 0x40; // 64 KiB maximum block size
+			header[6] = (byte) (xxh32(header, 4, 2) >>> 8);
+			out.write(header);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length)
+				writeBlock();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length)
+					writeBlock();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			if (count > 0)
+				writeBlock();
+			out.write(new byte[4]); // End mark
+			out.close();
+		}
+
+		private void writeBlock() throws IOException {
+			int size = compress(buffer, count, compressed, 4, table);
+			if (size < count) {
+				writeInt(compressed, 0, size);
+				out.write(compressed, 0, 4 + size);
+			} else {
+				writeInt(compressed, 0, count | 0x80000000);
+				out.write(compressed, 0, 4);
+				out.write(buffer, 0, count);
+			}
+			count = 0;
+		}
+
+	}
+
+	static final class Lz4InputStream extends InputStream {
+
+		private final InputStream in;
+
+		private byte[] compressed;
+
+		private byte[] buffer;
+
+		private int pos = 0;
+
+		private int limit = 0;
+
+		private boolean blockChecksums;
+
+		private boolean contentChecksum;
+
+		private boolean eof = false;
+
+		Lz4InputStream(InputStream in) throws IOException {
+			this.in = in;
+			if (!readFrameHeader(true))
+				throw new EOFException();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == limit && !readBlock())
+				return -1;
+			return buffer[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pos == limit && !readBlock())
+				return -1;
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(buffer, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return limit - pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private boolean readFrameHeader(boolean first) throws IOException {
+			byte[] header = new byte[15];
+			int read = readFully(header, 0, 4, !first);
+			if (read == 0)
+				return false;
+			int magic = readInt(header, 0);
+			if (magic != MAGIC)
+				throw new IOException("Not an LZ4 frame");
+			readFully(header, 4, 2, false);
+			int flags = header[4] & 0xff;
+			if ((flags & 0xc0) != 0x40)
+				throw new IOException("Unsupported LZ4 frame version");
+			int length = 2 + ((flags & 0x08) != 0 ? 8 : 0)
+					+ ((flags & 0x01) != 0 ? 4 : 0);
+			readFully(header, 6, length - 2 + 1, false);
+			if ((byte) (xxh32(header, 4, length) >>> 8) != header[4 + length])
+				throw new IOException("Corrupt LZ4 frame header");
+			if ((flags & 0x20) == 0)
+				throw new IOException("Dependent LZ4 blocks are unsupported");
+			blockChecksums = (flags & 0x10) != 0;
+			contentChecksum = (flags & 0x04) != 0;
+			int maxSize = 1 << (8 + 2 * ((header[5] >>> 4) & 0x07));
+			if (maxSize < BLOCK_SIZE)
+				throw new IOException("Invalid LZ4 block size");
+			if (buffer == null || buffer.length < maxSize) {
+				buffer = new byte[maxSize];
+				compressed = new byte[maxSize];
+			}
+			return true;
+		}
+
+		private boolean readBlock() throws IOException {
+			byte[] word = new byte[4];
+			for (;;) {
+				if (eof)
+					return false;
+				readFully(word, 0, 4, false);
+				int size = readInt(word, 0);
+				if (size == 0) {
+					// End mark; another frame may follow
+					if (contentChecksum)
+						readFully(word, 0, 4, false);
+					if (!readFrameHeader(false)) {
+						eof = true;
+						return false;
+					}
+					continue;
+				}
+				boolean stored = (size & 0x80000000) != 0;
+				size &= 0x7fffffff;
+				if (size > buffer.length)
+					throw new IOException("Corrupt LZ4 block");
+				if (stored) {
+					readFully(buffer, 0, size, false);
+					limit = size;
+				} else {
+					readFully(compressed, 0, size, false);
+					limit = decompress(compressed, size, buffer);
+				}
+				if (blockChecksums)
+					readFully(word, 0, 4, false);
+				pos = 0;
+				if (limit > 0)
+					return true;
+			}
+		}
+
+		private int readFully(byte[] b, int off, int len, boolean eofAllowed)
+				throws IOException {
+			int total = 0;
+			while (total < len) {
+				int read = in.read(b, off + total, len - total);
+				if (read == -1) {
+					if (eofAllowed && total == 0)
+						return 0;
+					throw new EOFException();
+				}
+				total += read;
+			}
+			return total;
+		}
+
+	}
+
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	static int compress(byte[] src, int length, byte[] dst, int dstOff,
+			int[] table) {
+		int op = dstOff;
+		int anchor = 0;
+		if (length > MF_LIMIT) {
+			Arrays.fill(table, -1);
+			int limit = length - MF_LIMIT;
+			int matchLimit = length - LAST_LITERALS;
+			int ip = 0;
+			while (ip < limit) {
+				int sequence = readInt(src, ip);
+				int h = hash(sequence);
+				int ref = table[h];
+				table[h] = ip;
+				if (ref < 0 || ip - ref > 0xffff
+						|| readInt(src, ref) != sequence) {
+					// Step faster through data that does not compress
+					ip += 1 + ((ip - anchor) >>> 6);
+					continue;
+				}
+
+				while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit
+						&& src[ip + matchLength] == src[ref + matchLength])
+					matchLength++;
+
+				op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref,
+						matchLength);
+				ip += matchLength;
+				anchor = ip;
+				if (ip < limit)
+					table[hash(readInt(src, ip - 2))] = ip - 2;
+			}
+		}
+		return writeSequence(src, anchor, length - anchor, dst, op, 0, 0)
+				- dstOff;
+	}
+
+	private static int writeSequence(byte[] src, int literalOff,
+			int literalLength, byte[] dst, int op, int offset, int matchLength) {
+		int token = op++;
+		if (literalLength >= 15) {
+			dst[token] = (byte) 0xf0;
+			op = writeLength(dst, op, literalLength - 15);
+		} else
+			dst[token] = (byte) (literalLength << 4);
+		System.arraycopy(src, literalOff, dst, op, literalLength);
+		op += literalLength;
+		if (matchLength == 0)
+			return op;
+
+		dst[op++] = (byte) offset;
+		dst[op++] = (byte) (offset >>> 8);
+		matchLength -= MIN_MATCH;
+		if (matchLength >= 15) {
+			dst[token] |= 0x0f;
+			op = writeLength(dst, op, matchLength - 15);
+		} else
+			dst[token] |= matchLength;
+		return op;
+	}
+
+	private static int writeLength(byte[] dst, int op, int length) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	static int decompress(byte[] src, int length, byte[] dst)
+			throws IOException {
+		int ip = 0;
+		int op = 0;
+		try {
+			for (;;) {
+				int token = src[ip++] & 0xff;
+				int literalLength = token >>> 4;
+				if (literalLength == 15) {
+					int b;
+					do
+						literalLength += (b = src[ip++] & 0xff);
+					while (b == 255);
+				}
+				if (ip + literalLength > length)
+					throw new IOException("Corrupt LZ4 block");
+				System.arraycopy(src, ip, dst, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+				if (ip == length)
+					return op;
+
+				int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+				ip += 2;
+				int matchLength = token & 0x0f;
+				if (matchLength == 15) {
+					int b;
+					do
+						matchLength += (b = src[ip++] & 0xff);
+					while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				int ref = op - offset;
+				if (offset == 0 || ref < 0 || op + matchLength > dst.length)
+					throw new IOException("Corrupt LZ4 block");
+				if (offset >= matchLength)
+					System.arraycopy(dst, ref, dst, op, matchLength);
+				else
+					// Overlapping copy repeats the last offset bytes
+					for (int i = 0; i < matchLength; i++)
+						dst[op + i] = dst[ref + i];
+				op += matchLength;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt LZ4 block");
+		}
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+				| (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+	}
+
+	private static void writeInt(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >>> 8);
+		b[off + 2] = (byte) (value >>> 16);
+		b[off + 3] = (byte) (value >>> 24);
+	}
+
+	// xxHash32 with seed 0, for inputs shorter than 16 bytes (frame headers)
+	static int xxh32(byte[] b, int off, int len) {
+		int h = 0x165667B1 + len;
+		int end = off + len;
+		for (; off + 4 <= end; off += 4)
+			h = Integer.rotateLeft(h + readInt(b, off) * 0xC2B2AE3D, 17)
+					* 0x27D4EB2F;
+		for (; off < end; off++)
+			h = Integer.rotateLeft(h + (b[off] & 0xff) * 0x165667B1, 11)
+					* 0x9E3779B1;
+		h ^= h >>> 15;
+		h *= 0x85EBCA77;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE3D;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
@@ -61,15 +61,8 @@ public final class MapEntryIterable implements Entries {
 			public Entry next() {
 				Map.Entry<byte[], byte[]> keyValue = mapEntryIter.next();
 
-				for (Definition definition : definitions)
-					if (definition.matchesValue(keyValue.getValue()))
-						return new Entry(new Entry(keyValue.getKey(),
-								definition.getKeyFields()), new Entry(
-								keyValue.getValue(),
-								definition.getValueFields()));
-
-				return new Entry(keyValue.getKey(), definitions.get(0)
-						.getKeyFields());
+				return DefinitionIndex.decode(definitions, keyValue.getKey(),
+						keyValue.getValue());
 			}
 
 			@Override
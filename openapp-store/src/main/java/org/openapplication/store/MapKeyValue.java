@@ -15,6 +15,12 @@
  */
 package org.openapplication.store;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class MapKeyValue {
@@ -34,4 +40,29 @@ public class MapKeyValue {
 		this.value = value;
 	}
 
+	public static final Comparator<MapKeyValue> KEY_ORDER = new Comparator<MapKeyValue>() {
+		@Override
+		public int compare(MapKeyValue o1, MapKeyValue o2) {
+			return ByteArrayComparator.INSTANCE.compare(o1.key, o2.key);
+		}
+	};
+
+	public static Map<UUID, List<MapKeyValue>> groupByMap(
+			List<MapKeyValue> operations) {
+		Map<UUID, List<MapKeyValue>> groups = new LinkedHashMap<UUID, List<MapKeyValue>>();
+		for (MapKeyValue operation : operations) {
+			List<MapKeyValue> group = groups.get(operation.map);
+			if (group == null)
+				groups.put(operation.map, group = new ArrayList<MapKeyValue>());
+			group.add(operation);
+		}
+
+		// The sort is stable, so later operations on the same key are still
+		// applied after earlier ones
+		for (List<MapKeyValue> group : groups.values())
+			Collections.sort(group, KEY_ORDER);
+
+		return groups;
+	}
+
 }
\ No newline at end of file
@@ -18,6 +18,10 @@ package org.openapplication.store;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentNavigableMap;
 
+// The maps must replace a value with replace(key, oldValue, newValue)
+// given the oldValue just got for the key, either by comparing values by
+// content or by handing out the stored arrays themselves; compaction
+// rewrites entries that way
 public interface MapProvider {
 
 	void prepare(UUID keyUuid);
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public final class MultiGet {
+
+	private final UUID[] maps;
+
+	private final byte[][] keys;
+
+	private final Entry[] entries;
+
+	public MultiGet(List<Field<?>[]> queries) {
+		maps = new UUID[queries.size()];
+		keys = new byte[queries.size()][];
+		entries = new Entry[queries.size()];
+
+		int index = 0;
+		for (Field<?>[] fields : queries) {
+			maps[index] = Key.asUuid(fields);
+			keys[index++] = new Entry(fields).getBytes(fields);
+		}
+	}
+
+	public Map<UUID, int[]> groupByMap() {
+		Map<UUID, List<Integer>> groups = new LinkedHashMap<UUID, List<Integer>>();
+		for (int i = 0; i < maps.length; i++) {
+			List<Integer> group = groups.get(maps[i]);
+			if (group == null)
+				groups.put(maps[i], group = new ArrayList<Integer>());
+			group.add(i);
+		}
+
+		Comparator<Integer> keyOrder = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return ByteArrayComparator.INSTANCE.compare(keys[o1], keys[o2]);
+			}
+		};
+
+		Map<UUID, int[]> sorted = new LinkedHashMap<UUID, int[]>();
+		for (Map.Entry<UUID, List<Integer>> group : groups.entrySet()) {
+			List<Integer> indexes = group.getValue();
+			Collections.sort(indexes, keyOrder);
+			int[] order = new int[indexes.size()];
+			for (int i = 0; i < order.length; i++)
+				order[i] = indexes.get(i);
+			sorted.put(group.getKey(), order);
+		}
+		return sorted;
+	}
+
+	public byte[] getKey(int index) {
+		return keys[index];
+	}
+
+	public void set(int index, List<Definition> definitions, byte[] value) {
+		entries[index] = value != null ? DefinitionIndex.decode(definitions,
+				keys[index], value) : null;
+	}
+
+	public List<Entry> getEntries() {
+		return Arrays.asList(entries);
+	}
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// A blob written as numbered parts, possibly concurrently, which are joined
+// in part number order on completion. With an encoding other than IDENTITY,
+// each part is encoded on its own (and, if passed through, has to be a
+// complete encoded stream by itself).
+public final class MultipartUpload {
+
+	private final StoreImpl store;
+
+	private final StreamEncoding inEncoding;
+
+	private final StreamEncoding outEncoding;
+
+	private final ConcurrentNavigableMap<Integer, Blob> parts = new ConcurrentSkipListMap<Integer, Blob>();
+
+	private volatile boolean closed = false;
+
+	MultipartUpload(StoreImpl store, StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		if (!outEncoding.isConcatenable())
+			throw new IllegalArgumentException(outEncoding
+					+ " streams cannot be joined");
+		this.store = store;
+		this.inEncoding = inEncoding;
+		this.outEncoding = outEncoding;
+	}
+
+	public StreamEncoding encoding() {
+		return outEncoding;
+	}
+
+	// Writing a part number again replaces the part
+	public void write(int part, InputStream stream) {
+		if (closed)
+			throw new IllegalStateException("Upload is closed");
+		Blob blob = store.writePart(stream, inEncoding, outEncoding);
+		Blob replaced;
+		synchronized (this) {
+			if (closed)
+				replaced = blob;
+			else
+				replaced = parts.put(part, blob);
+		}
+		if (replaced != null)
+			store.release(replaced);
+		if (replaced == blob)
+			throw new IllegalStateException("Upload is closed");
+	}
+
+	public Blob complete() {
+		List<Blob> blobs;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Upload is closed");
+			closed = true;
+			blobs = new ArrayList<Blob>(parts.values());
+		}
+		try {
+			return store.join(blobs, outEncoding);
+		} finally {
+			store.closeUpload(this);
+		}
+	}
+
+	public void abort() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		for (Blob blob : parts.values())
+			store.release(blob);
+		store.closeUpload(this);
+	}
+
+	Collection<Blob> parts() {
+		return parts.values();
+	}
+
+}
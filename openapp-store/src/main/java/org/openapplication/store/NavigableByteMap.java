@@ -0,0 +1,740 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+public abstract class NavigableByteMap extends AbstractMap<byte[], byte[]>
+		implements ConcurrentNavigableMap<byte[], byte[]> {
+
+	protected static final int LT = 0;
+
+	protected static final int LE = 1;
+
+	protected static final int GE = 2;
+
+	protected static final int GT = 3;
+
+	private final NavigableByteMap root;
+
+	private final byte[] lo;
+
+	private final boolean loInclusive;
+
+	private final byte[] hi;
+
+	private final boolean hiInclusive;
+
+	private final boolean descending;
+
+	protected NavigableByteMap() {
+		this(null, null, false, null, false, false);
+	}
+
+	private NavigableByteMap(NavigableByteMap root, byte[] lo,
+			boolean loInclusive, byte[] hi, boolean hiInclusive,
+			boolean descending) {
+		this.root = root != null ? root : this;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descending = descending;
+	}
+
+	// The primitives below always operate on the whole map, in ascending
+	// order; views apply their bounds and direction on top of them
+
+	protected abstract byte[] getValue(byte[] key);
+
+	protected abstract byte[] putValue(byte[] key, byte[] value,
+			boolean onlyIfAbsent);
+
+	protected abstract byte[] replaceValue(byte[] key, byte[] value);
+
+	protected abstract boolean replaceValue(byte[] key, byte[] expect,
+			byte[] value);
+
+	protected abstract byte[] removeValue(byte[] key);
+
+	protected abstract boolean removeValue(byte[] key, byte[] expect);
+
+	// A null key stands for the first (GE) or last (LE) entry
+	protected abstract Map.Entry<byte[], byte[]> findEntry(byte[] key,
+			int relation);
+
+	protected abstract Iterator<Map.Entry<byte[], byte[]>> entryIterator(
+			byte[] lo, boolean loInclusive, byte[] hi, boolean hiInclusive,
+			boolean descending);
+
+	protected abstract int count();
+
+	private boolean tooLow(byte[] key) {
+		int c;
+		return lo != null
+				&& ((c = ByteArrayComparator.INSTANCE.compare(key, lo)) < 0 || c == 0
+						&& !loInclusive);
+	}
+
+	private boolean tooHigh(byte[] key) {
+		int c;
+		return hi != null
+				&& ((c = ByteArrayComparator.INSTANCE.compare(key, hi)) > 0 || c == 0
+						&& !hiInclusive);
+	}
+
+	private boolean inRange(byte[] key) {
+		return !tooLow(key) && !tooHigh(key);
+	}
+
+	private boolean isView() {
+		return root != this || lo != null || hi != null;
+	}
+
+	private static byte[] checkKey(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		return (byte[]) key;
+	}
+
+	private byte[] checkInRange(byte[] key, byte[] value) {
+		if (value == null)
+			throw new NullPointerException();
+		if (!inRange(key))
+			throw new IllegalArgumentException("Key out of range");
+		return key;
+	}
+
+	private Map.Entry<byte[], byte[]> lowest() {
+		Map.Entry<byte[], byte[]> entry = lo == null ? root
+				.findEntry(null, GE) : root.findEntry(lo, loInclusive ? GE
+				: GT);
+		return entry != null && !tooHigh(entry.getKey()) ? entry : null;
+	}
+
+	private Map.Entry<byte[], byte[]> highest() {
+		Map.Entry<byte[], byte[]> entry = hi == null ? root
+				.findEntry(null, LE) : root.findEntry(hi, hiInclusive ? LE
+				: LT);
+		return entry != null && !tooLow(entry.getKey()) ? entry : null;
+	}
+
+	private Map.Entry<byte[], byte[]> find(byte[] key, int relation) {
+		if (descending)
+			relation = GT - relation;
+		if (tooLow(key))
+			return relation >= GE ? lowest() : null;
+		if (tooHigh(key))
+			return relation <= LE ? highest() : null;
+		Map.Entry<byte[], byte[]> entry = root.findEntry(key, relation);
+		return entry != null && inRange(entry.getKey()) ? entry : null;
+	}
+
+	private static byte[] key(Map.Entry<byte[], byte[]> entry) {
+		return entry != null ? entry.getKey() : null;
+	}
+
+	private static byte[] keyOrThrow(Map.Entry<byte[], byte[]> entry) {
+		if (entry == null)
+			throw new NoSuchElementException();
+		return entry.getKey();
+	}
+
+	@Override
+	public int size() {
+		if (!isView())
+			return root.count();
+
+		int size = 0;
+		for (Iterator<?> iterator = entrySet().iterator(); iterator.hasNext(); iterator
+				.next())
+			size++;
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return lowest() == null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public byte[] get(Object key) {
+		byte[] k = checkKey(key);
+		return inRange(k) ? root.getValue(k) : null;
+	}
+
+	@Override
+	public byte[] put(byte[] key, byte[] value) {
+		return root.putValue(checkInRange(checkKey(key), value), value, false);
+	}
+
+	@Override
+	public byte[] putIfAbsent(byte[] key, byte[] value) {
+		return root.putValue(checkInRange(checkKey(key), value), value, true);
+	}
+
+	@Override
+	public byte[] replace(byte[] key, byte[] value) {
+		return root.replaceValue(checkInRange(checkKey(key), value), value);
+	}
+
+	@Override
+	public boolean replace(byte[] key, byte[] oldValue, byte[] newValue) {
+		if (oldValue == null)
+			throw new NullPointerException();
+		return root.replaceValue(checkInRange(checkKey(key), newValue),
+				oldValue, newValue);
+	}
+
+	@Override
+	public byte[] remove(Object key) {
+		byte[] k = checkKey(key);
+		return inRange(k) ? root.removeValue(k) : null;
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		byte[] k = checkKey(key);
+		return value != null && inRange(k)
+				&& root.removeValue(k, (byte[]) value);
+	}
+
+	@Override
+	public void clear() {
+		for (Iterator<?> iterator = entrySet().iterator(); iterator.hasNext();) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	@Override
+	public Comparator<? super byte[]> comparator() {
+		return descending ? Collections
+				.reverseOrder(ByteArrayComparator.INSTANCE)
+				: ByteArrayComparator.INSTANCE;
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> lowerEntry(byte[] key) {
+		return find(checkKey(key), LT);
+	}
+
+	@Override
+	public byte[] lowerKey(byte[] key) {
+		return key(lowerEntry(key));
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+		return find(checkKey(key), LE);
+	}
+
+	@Override
+	public byte[] floorKey(byte[] key) {
+		return key(floorEntry(key));
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> ceilingEntry(byte[] key) {
+		return find(checkKey(key), GE);
+	}
+
+	@Override
+	public byte[] ceilingKey(byte[] key) {
+		return key(ceilingEntry(key));
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> higherEntry(byte[] key) {
+		return find(checkKey(key), GT);
+	}
+
+	@Override
+	public byte[] higherKey(byte[] key) {
+		return key(higherEntry(key));
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> firstEntry() {
+		return descending ? highest() : lowest();
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> lastEntry() {
+		return descending ? lowest() : highest();
+	}
+
+	@Override
+	public byte[] firstKey() {
+		return keyOrThrow(firstEntry());
+	}
+
+	@Override
+	public byte[] lastKey() {
+		return keyOrThrow(lastEntry());
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> pollFirstEntry() {
+		Map.Entry<byte[], byte[]> entry;
+		while ((entry = firstEntry()) != null)
+			if (root.removeValue(entry.getKey(), entry.getValue()))
+				return entry;
+		return null;
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> pollLastEntry() {
+		Map.Entry<byte[], byte[]> entry;
+		while ((entry = lastEntry()) != null)
+			if (root.removeValue(entry.getKey(), entry.getValue()))
+				return entry;
+		return null;
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> subMap(byte[] fromKey,
+			boolean fromInclusive, byte[] toKey, boolean toInclusive) {
+		return view(checkKey(fromKey), fromInclusive, checkKey(toKey),
+				toInclusive);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> headMap(byte[] toKey,
+			boolean inclusive) {
+		return view(null, false, checkKey(toKey), inclusive);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> tailMap(byte[] fromKey,
+			boolean inclusive) {
+		return view(checkKey(fromKey), inclusive, null, false);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> subMap(byte[] fromKey,
+			byte[] toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> headMap(byte[] toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> tailMap(byte[] fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> descendingMap() {
+		return new View(root, lo, loInclusive, hi, hiInclusive, !descending);
+	}
+
+	private NavigableByteMap view(byte[] from, boolean fromInclusive,
+			byte[] to, boolean toInclusive) {
+		if (descending) {
+			byte[] key = from;
+			from = to;
+			to = key;
+			boolean inclusive = fromInclusive;
+			fromInclusive = toInclusive;
+			toInclusive = inclusive;
+		}
+
+		byte[] newLo = lo, newHi = hi;
+		boolean newLoInclusive = loInclusive, newHiInclusive = hiInclusive;
+		if (from != null) {
+			checkBound(from, fromInclusive);
+			newLo = from;
+			newLoInclusive = fromInclusive;
+		}
+		if (to != null) {
+			checkBound(to, toInclusive);
+			newHi = to;
+			newHiInclusive = toInclusive;
+		}
+		if (newLo != null && newHi != null
+				&& ByteArrayComparator.INSTANCE.compare(newLo, newHi) > 0)
+			throw new IllegalArgumentException("Inconsistent range");
+
+		return new View(root, newLo, newLoInclusive, newHi, newHiInclusive,
+				descending);
+	}
+
+	private void checkBound(byte[] key, boolean inclusive) {
+		if (inRange(key))
+			return;
+		if (!inclusive && lo != null && !loInclusive
+				&& ByteArrayComparator.INSTANCE.compare(key, lo) == 0)
+			return;
+		if (!inclusive && hi != null && !hiInclusive
+				&& ByteArrayComparator.INSTANCE.compare(key, hi) == 0)
+			return;
+		throw new IllegalArgumentException("Key out of range");
+	}
+
+	@Override
+	public NavigableSet<byte[]> keySet() {
+		return new KeySet(this);
+	}
+
+	@Override
+	public NavigableSet<byte[]> navigableKeySet() {
+		return new KeySet(this);
+	}
+
+	@Override
+	public NavigableSet<byte[]> descendingKeySet() {
+		return new KeySet(descendingMap());
+	}
+
+	@Override
+	public Collection<byte[]> values() {
+		return new AbstractCollection<byte[]>() {
+			@Override
+			public Iterator<byte[]> iterator() {
+				final Iterator<Map.Entry<byte[], byte[]>> entries = new EntryIterator();
+				return new Iterator<byte[]>() {
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					@Override
+					public byte[] next() {
+						return entries.next().getValue();
+					}
+
+					@Override
+					public void remove() {
+						entries.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return NavigableByteMap.this.size();
+			}
+
+			@Override
+			public void clear() {
+				NavigableByteMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<byte[], byte[]>> entrySet() {
+		return new AbstractSet<Map.Entry<byte[], byte[]>>() {
+			@Override
+			public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return NavigableByteMap.this.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry<?, ?>))
+					return false;
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+				if (!(entry.getKey() instanceof byte[])
+						|| !(entry.getValue() instanceof byte[]))
+					return false;
+				return Arrays.equals(get(entry.getKey()),
+						(byte[]) entry.getValue());
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (!(o instanceof Map.Entry<?, ?>))
+					return false;
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+				return entry.getKey() instanceof byte[]
+						&& NavigableByteMap.this.remove(entry.getKey(),
+								entry.getValue());
+			}
+
+			@Override
+			public void clear() {
+				NavigableByteMap.this.clear();
+			}
+		};
+	}
+
+	private final class EntryIterator implements
+			Iterator<Map.Entry<byte[], byte[]>> {
+
+		private final Iterator<Map.Entry<byte[], byte[]>> source = root
+				.entryIterator(lo, loInclusive, hi, hiInclusive, descending);
+
+		private Map.Entry<byte[], byte[]> last;
+
+		@Override
+		public boolean hasNext() {
+			return source.hasNext();
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			return last = source.next();
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			root.removeValue(last.getKey());
+			last = null;
+		}
+
+	}
+
+	private static final class View extends NavigableByteMap {
+
+		private final NavigableByteMap map;
+
+		View(NavigableByteMap root, byte[] lo, boolean loInclusive,
+				byte[] hi, boolean hiInclusive, boolean descending) {
+			super(root, lo, loInclusive, hi, hiInclusive, descending);
+			this.map = root;
+		}
+
+		@Override
+		protected byte[] getValue(byte[] key) {
+			return map.getValue(key);
+		}
+
+		@Override
+		protected byte[] putValue(byte[] key, byte[] value,
+				boolean onlyIfAbsent) {
+			return map.putValue(key, value, onlyIfAbsent);
+		}
+
+		@Override
+		protected byte[] replaceValue(byte[] key, byte[] value) {
+			return map.replaceValue(key, value);
+		}
+
+		@Override
+		protected boolean replaceValue(byte[] key, byte[] expect,
+				byte[] value) {
+			return map.replaceValue(key, expect, value);
+		}
+
+		@Override
+		protected byte[] removeValue(byte[] key) {
+			return map.removeValue(key);
+		}
+
+		@Override
+		protected boolean removeValue(byte[] key, byte[] expect) {
+			return map.removeValue(key, expect);
+		}
+
+		@Override
+		protected Map.Entry<byte[], byte[]> findEntry(byte[] key,
+				int relation) {
+			return map.findEntry(key, relation);
+		}
+
+		@Override
+		protected Iterator<Map.Entry<byte[], byte[]>> entryIterator(
+				byte[] lo, boolean loInclusive, byte[] hi,
+				boolean hiInclusive, boolean descending) {
+			return map.entryIterator(lo, loInclusive, hi, hiInclusive,
+					descending);
+		}
+
+		@Override
+		protected int count() {
+			return map.count();
+		}
+
+	}
+
+	private static final class KeySet extends AbstractSet<byte[]> implements
+			NavigableSet<byte[]> {
+
+		private final ConcurrentNavigableMap<byte[], byte[]> map;
+
+		KeySet(ConcurrentNavigableMap<byte[], byte[]> map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<byte[]> iterator() {
+			final Iterator<Map.Entry<byte[], byte[]>> entries = map.entrySet()
+					.iterator();
+			return new Iterator<byte[]>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public byte[] next() {
+					return entries.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					entries.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return map.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return map.remove(o) != null;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public Comparator<? super byte[]> comparator() {
+			return map.comparator();
+		}
+
+		@Override
+		public byte[] first() {
+			return map.firstKey();
+		}
+
+		@Override
+		public byte[] last() {
+			return map.lastKey();
+		}
+
+		@Override
+		public byte[] lower(byte[] e) {
+			return map.lowerKey(e);
+		}
+
+		@Override
+		public byte[] floor(byte[] e) {
+			return map.floorKey(e);
+		}
+
+		@Override
+		public byte[] ceiling(byte[] e) {
+			return map.ceilingKey(e);
+		}
+
+		@Override
+		public byte[] higher(byte[] e) {
+			return map.higherKey(e);
+		}
+
+		@Override
+		public byte[] pollFirst() {
+			return key(map.pollFirstEntry());
+		}
+
+		@Override
+		public byte[] pollLast() {
+			return key(map.pollLastEntry());
+		}
+
+		@Override
+		public NavigableSet<byte[]> descendingSet() {
+			return new KeySet(map.descendingMap());
+		}
+
+		@Override
+		public Iterator<byte[]> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<byte[]> subSet(byte[] fromElement,
+				boolean fromInclusive, byte[] toElement, boolean toInclusive) {
+			return new KeySet(map.subMap(fromElement, fromInclusive,
+					toElement, toInclusive));
+		}
+
+		@Override
+		public NavigableSet<byte[]> headSet(byte[] toElement,
+				boolean inclusive) {
+			return new KeySet(map.headMap(toElement, inclusive));
+		}
+
+		@Override
+		public NavigableSet<byte[]> tailSet(byte[] fromElement,
+				boolean inclusive) {
+			return new KeySet(map.tailMap(fromElement, inclusive));
+		}
+
+		@Override
+		public SortedSet<byte[]> subSet(byte[] fromElement, byte[] toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<byte[]> headSet(byte[] toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<byte[]> tailSet(byte[] fromElement) {
+			return tailSet(fromElement, true);
+		}
+
+	}
+
+}
@@ -0,0 +1,442 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class OffHeapMap extends NavigableByteMap {
+
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private final int chunkSize;
+
+	private final File directory;
+
+	// Writers share the read lock; compaction takes the write lock while it
+	// copies the live records into a fresh arena
+	private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+
+	private final AtomicLong garbage = new AtomicLong();
+
+	private volatile State state;
+
+	public OffHeapMap() {
+		this(DEFAULT_CHUNK_SIZE, null);
+	}
+
+	public OffHeapMap(int chunkSize, File directory) {
+		this.chunkSize = chunkSize;
+		this.directory = directory;
+		this.state = new State(new Arena(chunkSize, directory));
+	}
+
+	public long getReservedBytes() {
+		return state.arena.getReserved();
+	}
+
+	public long getAllocatedBytes() {
+		return state.arena.getAllocated();
+	}
+
+	public long getGarbageBytes() {
+		return garbage.get();
+	}
+
+	public void compact() {
+		compactionLock.writeLock().lock();
+		try {
+			State current = state;
+			State compacted = new State(new Arena(chunkSize, directory));
+			for (Long address : current.index.values()) {
+				Long copy = compacted.arena.write(current.arena.key(address),
+						current.arena.value(address));
+				compacted.index.put(copy, copy);
+			}
+			state = compacted;
+			garbage.set(0);
+		} finally {
+			compactionLock.writeLock().unlock();
+		}
+	}
+
+	private boolean needsCompaction() {
+		long garbageBytes = garbage.get();
+		return garbageBytes > chunkSize
+				&& garbageBytes > state.arena.getAllocated() / 2;
+	}
+
+	private void release(State current, Long address) {
+		garbage.addAndGet(current.arena.size(address));
+	}
+
+	private void written() {
+		compactionLock.readLock().unlock();
+		if (needsCompaction() && compactionLock.writeLock().tryLock())
+			try {
+				if (needsCompaction())
+					compact();
+			} finally {
+				compactionLock.writeLock().unlock();
+			}
+	}
+
+	@Override
+	protected byte[] getValue(byte[] key) {
+		State current = state;
+		Long address = current.index.get(key);
+		return address != null ? current.arena.value(address) : null;
+	}
+
+	@Override
+	protected byte[] putValue(byte[] key, byte[] value, boolean onlyIfAbsent) {
+		compactionLock.readLock().lock();
+		try {
+			State current = state;
+			Long previous;
+			if (onlyIfAbsent) {
+				if ((previous = current.index.get(key)) != null)
+					return current.arena.value(previous);
+				Long address = current.arena.write(key, value);
+				if ((previous = current.index.putIfAbsent(address, address)) == null)
+					return null;
+				release(current, address);
+			} else {
+				Long address = current.arena.write(key, value);
+				if ((previous = current.index.put(address, address)) == null)
+					return null;
+				release(current, previous);
+			}
+			return current.arena.value(previous);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	protected byte[] replaceValue(byte[] key, byte[] value) {
+		compactionLock.readLock().lock();
+		try {
+			State current = state;
+			Long previous;
+			while ((previous = current.index.get(key)) != null) {
+				Long address = current.arena.write(key, value);
+				if (current.index.replace(key, previous, address)) {
+					release(current, previous);
+					return current.arena.value(previous);
+				}
+				release(current, address);
+			}
+			return null;
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	protected boolean replaceValue(byte[] key, byte[] expect, byte[] value) {
+		compactionLock.readLock().lock();
+		try {
+			State current = state;
+			Long previous;
+			while ((previous = current.index.get(key)) != null
+					&& Arrays.equals(expect, current.arena.value(previous))) {
+				Long address = current.arena.write(key, value);
+				if (current.index.replace(key, previous, address)) {
+					release(current, previous);
+					return true;
+				}
+				release(current, address);
+			}
+			return false;
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	protected byte[] removeValue(byte[] key) {
+		compactionLock.readLock().lock();
+		try {
+			State current = state;
+			Long previous = current.index.remove(key);
+			if (previous == null)
+				return null;
+			release(current, previous);
+			return current.arena.value(previous);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	protected boolean removeValue(byte[] key, byte[] expect) {
+		compactionLock.readLock().lock();
+		try {
+			State current = state;
+			Long previous;
+			while ((previous = current.index.get(key)) != null
+					&& Arrays.equals(expect, current.arena.value(previous)))
+				if (current.index.remove(key, previous)) {
+					release(current, previous);
+					return true;
+				}
+			return false;
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	protected Map.Entry<byte[], byte[]> findEntry(byte[] key, int relation) {
+		State current = state;
+		Map.Entry<Object, Long> entry;
+		if (key == null)
+			entry = relation == GE ? current.index.firstEntry() : current.index
+					.lastEntry();
+		else
+			switch (relation) {
+			case LT:
+				entry = current.index.lowerEntry(key);
+				break;
+			case LE:
+				entry = current.index.floorEntry(key);
+				break;
+			case GE:
+				entry = current.index.ceilingEntry(key);
+				break;
+			default:
+				entry = current.index.higherEntry(key);
+				break;
+			}
+		return entry != null ? current.entry(entry.getValue()) : null;
+	}
+
+	@Override
+	protected Iterator<Map.Entry<byte[], byte[]>> entryIterator(byte[] lo,
+			boolean loInclusive, byte[] hi, boolean hiInclusive,
+			boolean descending) {
+		final State current = state;
+		ConcurrentNavigableMap<Object, Long> range = current.index;
+		if (lo != null && hi != null)
+			range = range.subMap(lo, loInclusive, hi, hiInclusive);
+		else if (lo != null)
+			range = range.tailMap(lo, loInclusive);
+		else if (hi != null)
+			range = range.headMap(hi, hiInclusive);
+		if (descending)
+			range = range.descendingMap();
+
+		final Iterator<Long> addresses = range.values().iterator();
+		return new Iterator<Map.Entry<byte[], byte[]>>() {
+			@Override
+			public boolean hasNext() {
+				return addresses.hasNext();
+			}
+
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				return current.entry(addresses.next());
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	protected int count() {
+		return state.index.size();
+	}
+
+	private static final class State {
+
+		final Arena arena;
+
+		// Keys are either addresses of records in the arena or byte arrays
+		// being looked up; values are addresses of the latest record
+		final ConcurrentSkipListMap<Object, Long> index;
+
+		State(final Arena arena) {
+			this.arena = arena;
+			this.index = new ConcurrentSkipListMap<Object, Long>(
+					new Comparator<Object>() {
+						@Override
+						public int compare(Object o1, Object o2) {
+							if (o1 instanceof byte[])
+								return o2 instanceof byte[] ? ByteArrayComparator.INSTANCE
+										.compare((byte[]) o1, (byte[]) o2)
+										: arena.compare((byte[]) o1, (Long) o2);
+							if (o2 instanceof byte[])
+								return -arena.compare((byte[]) o2, (Long) o1);
+							return arena.compare((Long) o1, (Long) o2);
+						}
+					});
+		}
+
+		Map.Entry<byte[], byte[]> entry(Long address) {
+			return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(
+					arena.key(address), arena.value(address));
+		}
+
+	}
+
+	// Records are laid out as key length, key, value length and value; an
+	// address holds the chunk index in its upper and the offset in its lower
+	// 32 bits
+	private static final class Arena {
+
+		private final int chunkSize;
+
+		private final File directory;
+
+		private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+		private int position;
+
+		private long allocated;
+
+		private long reserved;
+
+		Arena(int chunkSize, File directory) {
+			this.chunkSize = chunkSize;
+			this.directory = directory;
+		}
+
+		synchronized long getAllocated() {
+			return allocated;
+		}
+
+		synchronized long getReserved() {
+			return reserved;
+		}
+
+		private synchronized long allocate(int size) {
+			int last = chunks.length - 1;
+			if (last < 0 || chunks[last].capacity() - position < size) {
+				ByteBuffer chunk = newChunk(Math.max(chunkSize, size));
+				ByteBuffer[] grown = Arrays.copyOf(chunks, ++last + 1);
+				grown[last] = chunk;
+				chunks = grown;
+				position = 0;
+				reserved += chunk.capacity();
+			}
+
+			long address = (long) last << 32 | position;
+			position += size;
+			allocated += size;
+			return address;
+		}
+
+		private ByteBuffer newChunk(int size) {
+			if (directory == null)
+				return ByteBuffer.allocateDirect(size);
+
+			// The mapping outlives the file, which is only there to back it
+			try {
+				File file = File.createTempFile("arena", null, directory);
+				RandomAccessFile access = new RandomAccessFile(file, "rw");
+				try {
+					return access.getChannel().map(MapMode.READ_WRITE, 0, size);
+				} finally {
+					access.close();
+					file.delete();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		Long write(byte[] key, byte[] value) {
+			long address = allocate(8 + key.length + value.length);
+			ByteBuffer buffer = chunks[(int) (address >>> 32)].duplicate();
+			buffer.position((int) address);
+			buffer.putInt(key.length).put(key).putInt(value.length).put(value);
+			return address;
+		}
+
+		int size(long address) {
+			ByteBuffer chunk = chunks[(int) (address >>> 32)];
+			int offset = (int) address;
+			int keyLength = chunk.getInt(offset);
+			return 8 + keyLength + chunk.getInt(offset + 4 + keyLength);
+		}
+
+		byte[] key(long address) {
+			return read(address, 0);
+		}
+
+		byte[] value(long address) {
+			ByteBuffer chunk = chunks[(int) (address >>> 32)];
+			return read(address, 4 + chunk.getInt((int) address));
+		}
+
+		private byte[] read(long address, int skip) {
+			ByteBuffer buffer = chunks[(int) (address >>> 32)].duplicate();
+			buffer.position((int) address + skip);
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return bytes;
+		}
+
+		int compare(byte[] key, long address) {
+			ByteBuffer chunk = chunks[(int) (address >>> 32)];
+			int offset = (int) address;
+			int length = chunk.getInt(offset);
+			int minLength = key.length <= length ? key.length : length;
+
+			for (int i = 0, result; i < minLength; i++)
+				if (0 != (result = (key[i] & 0xff)
+						- (chunk.get(offset + 4 + i) & 0xff)))
+					return result;
+
+			return key.length - length;
+		}
+
+		int compare(long address1, long address2) {
+			ByteBuffer chunk1 = chunks[(int) (address1 >>> 32)];
+			ByteBuffer chunk2 = chunks[(int) (address2 >>> 32)];
+			int offset1 = (int) address1, offset2 = (int) address2;
+			int length1 = chunk1.getInt(offset1), length2 = chunk2
+					.getInt(offset2);
+			int minLength = length1 <= length2 ? length1 : length2;
+
+			for (int i = 0, result; i < minLength; i++)
+				if (0 != (result = (chunk1.get(offset1 + 4 + i) & 0xff)
+						- (chunk2.get(offset2 + 4 + i) & 0xff)))
+					return result;
+
+			return length1 - length2;
+		}
+
+	}
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+public class OffHeapMapProvider extends MapProviderImpl {
+
+	private final int chunkSize;
+
+	private final File directory;
+
+	private final Map<UUID, OffHeapMap> maps;
+
+	public OffHeapMapProvider() {
+		this(OffHeapMap.DEFAULT_CHUNK_SIZE, null);
+	}
+
+	public OffHeapMapProvider(int chunkSize, File directory) {
+		this.chunkSize = chunkSize;
+		this.directory = directory;
+		maps = new ConcurrentHashMap<UUID, OffHeapMap>();
+	}
+
+	@Override
+	public ConcurrentNavigableMap<byte[], byte[]> instantiate(UUID keyUuid) {
+		OffHeapMap map = new OffHeapMap(chunkSize, directory);
+		maps.put(keyUuid, map);
+		return map;
+	}
+
+	public long getMemoryUsage(UUID keyUuid) {
+		OffHeapMap map = maps.get(keyUuid);
+		return map != null ? map.getReservedBytes() : 0;
+	}
+
+	public Map<UUID, Long> getMemoryUsage() {
+		Map<UUID, Long> usage = new LinkedHashMap<UUID, Long>();
+		for (Map.Entry<UUID, OffHeapMap> map : maps.entrySet())
+			usage.put(map.getKey(), map.getValue().getReservedBytes());
+		return usage;
+	}
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Compresses chunks of the stream on an executor, each into a gzip member of
+// its own, and writes the members in order; the concatenation is a valid
+// gzip stream (as in pigz --independent)
+public final class ParallelGZIPOutputStream extends FilterOutputStream {
+
+	public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final Executor executor;
+
+	private final int level;
+
+	// Members being compressed, at most this many at once
+	private final int maxPending;
+
+	private final Deque<Future<byte[]>> pending;
+
+	private byte[] chunk;
+
+	private int count = 0;
+
+	private boolean written = false;
+
+	private boolean closed = false;
+
+	public ParallelGZIPOutputStream(OutputStream out, Executor executor) {
+		this(out, executor, Deflater.DEFAULT_COMPRESSION, DEFAULT_CHUNK_SIZE);
+	}
+
+	public ParallelGZIPOutputStream(OutputStream out, Executor executor,
+			int level, int chunkSize) {
+		super(out);
+		this.executor = executor;
+		this.level = level;
+		maxPending = 2 * Runtime.getRuntime().availableProcessors();
+		pending = new ArrayDeque<Future<byte[]>>(maxPending);
+		chunk = new byte[chunkSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == chunk.length)
+			submit();
+		chunk[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == chunk.length)
+				submit();
+			int n = Math.min(len, chunk.length - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// Writes out the members compressed so far; a partially filled chunk is
+	// kept for the next member
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty())
+			writeMember();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			// An empty stream still needs one (empty) member
+			if (count > 0 || !written)
+				submit();
+			while (!pending.isEmpty())
+				writeMember();
+		} finally {
+			for (Future<byte[]> future : pending)
+				future.cancel(false);
+			out.close();
+		}
+	}
+
+	private void submit() throws IOException {
+		if (pending.size() >= maxPending)
+			writeMember();
+
+		final byte[] bytes = chunk;
+		final int length = count;
+		FutureTask<byte[]> task = new FutureTask<byte[]>(
+				new Callable<byte[]>() {
+					@Override
+					public byte[] call() {
+						return compress(bytes, length, level);
+					}
+				});
+		pending.add(task);
+		written = true;
+		if (executor == null)
+			task.run();
+		else
+			executor.execute(task);
+
+		chunk = new byte[chunk.length];
+		count = 0;
+	}
+
+	private void writeMember() throws IOException {
+		try {
+			out.write(pending.remove().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	static byte[] compress(byte[] bytes, int length, int level) {
+		ByteArrayOutputStream member = new ByteArrayOutputStream(
+				length / 2 + 64);
+		member.write(HEADER, 0, HEADER.length);
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(bytes, 0, length);
+			deflater.finish();
+			byte[] buffer = new byte[Math.max(512, length / 4)];
+			while (!deflater.finished()) {
+				int deflated = deflater.deflate(buffer);
+				member.write(buffer, 0, deflated);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		writeInt(member, (int) crc.getValue());
+		writeInt(member, length);
+		return member.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+}
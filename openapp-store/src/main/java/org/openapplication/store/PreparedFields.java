@@ -0,0 +1,57 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+public final class PreparedFields implements PreparedQuery {
+
+	private final StoreServer server;
+
+	private final Field<?>[] fields;
+
+	public PreparedFields(StoreServer server, Field<?>... fields) {
+		this.server = server;
+		this.fields = fields.clone();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Field<?>[] bind(Object[] values) {
+		if (values.length > fields.length)
+			throw new IllegalArgumentException("Too many values: "
+					+ values.length + " > " + fields.length);
+
+		Field<?>[] bound = fields.clone();
+		for (int i = 0; i < values.length; i++)
+			bound[i] = ((Field<Object>) fields[i].toField()).value(values[i]);
+		return bound;
+	}
+
+	@Override
+	public Entry get(Object... values) {
+		return server.get(bind(values));
+	}
+
+	@Override
+	public Entries iterate(Entry first, Entry last, Object... values) {
+		return server.iterate(first, last, bind(values));
+	}
+
+	@Override
+	public Entries iterateNext(byte[] subsequent, Entry first, Entry last,
+			Object... values) {
+		return server.iterateNext(subsequent, first, last, bind(values));
+	}
+
+}
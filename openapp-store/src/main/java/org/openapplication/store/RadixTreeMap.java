@@ -0,0 +1,689 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+public final class RadixTreeMap extends NavigableByteMap {
+
+	private static final byte[] NO_BYTES = new byte[0];
+
+	private static final Node[] NO_NODES = new Node[0];
+
+	// Nodes are immutable: a writer copies the path it changes and publishes
+	// the new root, so readers never lock and always see a consistent tree
+	private volatile Node root;
+
+	private volatile int size;
+
+	@Override
+	protected byte[] getValue(byte[] key) {
+		Node node = root;
+		int depth = 0;
+		while (node != null) {
+			byte[] prefix = node.prefix;
+			if (key.length - depth < prefix.length)
+				return null;
+			for (int i = 0; i < prefix.length; i++)
+				if (prefix[i] != key[depth + i])
+					return null;
+			depth += prefix.length;
+			if (depth == key.length)
+				return node.value;
+			node = node.child(key[depth++] & 0xff);
+		}
+		return null;
+	}
+
+	@Override
+	protected synchronized byte[] putValue(byte[] key, byte[] value,
+			boolean onlyIfAbsent) {
+		byte[] previous = getValue(key);
+		if (previous == null || !onlyIfAbsent)
+			store(key, value, previous);
+		return previous;
+	}
+
+	@Override
+	protected synchronized byte[] replaceValue(byte[] key, byte[] value) {
+		byte[] previous = getValue(key);
+		if (previous != null)
+			store(key, value, previous);
+		return previous;
+	}
+
+	@Override
+	protected synchronized boolean replaceValue(byte[] key, byte[] expect,
+			byte[] value) {
+		byte[] previous = getValue(key);
+		if (previous == null || !Arrays.equals(expect, previous))
+			return false;
+		store(key, value, previous);
+		return true;
+	}
+
+	@Override
+	protected synchronized byte[] removeValue(byte[] key) {
+		byte[] previous = getValue(key);
+		if (previous != null) {
+			root = remove(root, key, 0);
+			size--;
+		}
+		return previous;
+	}
+
+	@Override
+	protected synchronized boolean removeValue(byte[] key, byte[] expect) {
+		byte[] previous = getValue(key);
+		if (previous == null || !Arrays.equals(expect, previous))
+			return false;
+		root = remove(root, key, 0);
+		size--;
+		return true;
+	}
+
+	@Override
+	protected Map.Entry<byte[], byte[]> findEntry(byte[] key, int relation) {
+		Cursor cursor;
+		if (relation >= GE)
+			cursor = new Cursor(root, key, relation == GE, null, false, false);
+		else
+			cursor = new Cursor(root, null, false, key, relation == LE, true);
+		return cursor.hasNext() ? cursor.next() : null;
+	}
+
+	@Override
+	protected Iterator<Map.Entry<byte[], byte[]>> entryIterator(byte[] lo,
+			boolean loInclusive, byte[] hi, boolean hiInclusive,
+			boolean descending) {
+		return new Cursor(root, lo, loInclusive, hi, hiInclusive, descending);
+	}
+
+	@Override
+	protected int count() {
+		return size;
+	}
+
+	private void store(byte[] key, byte[] value, byte[] previous) {
+		root = put(root, key, 0, value);
+		if (previous == null)
+			size++;
+	}
+
+	private static Node leaf(byte[] key, int from, byte[] value) {
+		return new SortedNode(Arrays.copyOfRange(key, from, key.length),
+				value, NO_BYTES, NO_NODES);
+	}
+
+	private static Node put(Node node, byte[] key, int depth, byte[] value) {
+		if (node == null)
+			return leaf(key, depth, value);
+
+		byte[] prefix = node.prefix;
+		int matched = 0;
+		while (matched < prefix.length && depth + matched < key.length
+				&& prefix[matched] == key[depth + matched])
+			matched++;
+
+		if (matched < prefix.length) {
+			// The key leaves the compressed path, which is split at that point
+			Node tail = node.with(
+					Arrays.copyOfRange(prefix, matched + 1, prefix.length),
+					node.value);
+			depth += matched;
+			Node branch = new SortedNode(Arrays.copyOf(prefix, matched),
+					depth == key.length ? value : null, NO_BYTES, NO_NODES)
+					.withChild(prefix[matched] & 0xff, tail);
+			return depth == key.length ? branch : branch.withChild(
+					key[depth] & 0xff, leaf(key, depth + 1, value));
+		}
+
+		depth += prefix.length;
+		if (depth == key.length)
+			return node.with(prefix, value);
+
+		int b = key[depth] & 0xff;
+		return node.withChild(b, put(node.child(b), key, depth + 1, value));
+	}
+
+	private static Node remove(Node node, byte[] key, int depth) {
+		depth += node.prefix.length;
+		if (depth == key.length)
+			return compress(node.with(node.prefix, null));
+
+		int b = key[depth] & 0xff;
+		Node child = remove(node.child(b), key, depth + 1);
+		return compress(child == null ? node.withoutChild(b) : node.withChild(
+				b, child));
+	}
+
+	private static Node compress(Node node) {
+		if (node.value != null)
+			return node;
+
+		switch (node.childCount()) {
+		case 0:
+			return null;
+		case 1:
+			int b = node.ceilingByte(0);
+			Node child = node.child(b);
+			byte[] prefix = new byte[node.prefix.length + 1
+					+ child.prefix.length];
+			System.arraycopy(node.prefix, 0, prefix, 0, node.prefix.length);
+			prefix[node.prefix.length] = (byte) b;
+			System.arraycopy(child.prefix, 0, prefix, node.prefix.length + 1,
+					child.prefix.length);
+			return child.with(prefix, child.value);
+		default:
+			return node;
+		}
+	}
+
+	private abstract static class Node {
+
+		// Compressed path leading to this node, after the branching byte
+		final byte[] prefix;
+
+		// Value of the key ending at this node, if any
+		final byte[] value;
+
+		Node(byte[] prefix, byte[] value) {
+			this.prefix = prefix;
+			this.value = value;
+		}
+
+		abstract Node child(int b);
+
+		abstract int ceilingByte(int b);
+
+		abstract int floorByte(int b);
+
+		abstract int childCount();
+
+		abstract Node with(byte[] prefix, byte[] value);
+
+		abstract Node withChild(int b, Node child);
+
+		abstract Node withoutChild(int b);
+
+	}
+
+	// Node4 and Node16: up to 16 children under sorted branching bytes
+	private static final class SortedNode extends Node {
+
+		private static final int MAX_CHILDREN = 16;
+
+		private final byte[] keys;
+
+		private final Node[] children;
+
+		SortedNode(byte[] prefix, byte[] value, byte[] keys, Node[] children) {
+			super(prefix, value);
+			this.keys = keys;
+			this.children = children;
+		}
+
+		private int indexOf(int b) {
+			int low = 0, high = keys.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1, key = keys[mid] & 0xff;
+				if (key < b)
+					low = mid + 1;
+				else if (key > b)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -(low + 1);
+		}
+
+		@Override
+		Node child(int b) {
+			int index = indexOf(b);
+			return index >= 0 ? children[index] : null;
+		}
+
+		@Override
+		int ceilingByte(int b) {
+			int index = indexOf(b);
+			if (index < 0)
+				index = -index - 1;
+			return index < keys.length ? keys[index] & 0xff : -1;
+		}
+
+		@Override
+		int floorByte(int b) {
+			int index = indexOf(b);
+			if (index < 0)
+				index = -index - 2;
+			return index >= 0 ? keys[index] & 0xff : -1;
+		}
+
+		@Override
+		int childCount() {
+			return keys.length;
+		}
+
+		@Override
+		Node with(byte[] prefix, byte[] value) {
+			return new SortedNode(prefix, value, keys, children);
+		}
+
+		@Override
+		Node withChild(int b, Node child) {
+			int index = indexOf(b);
+			if (index >= 0) {
+				Node[] replaced = children.clone();
+				replaced[index] = child;
+				return new SortedNode(prefix, value, keys, replaced);
+			}
+
+			if (keys.length == MAX_CHILDREN) {
+				byte[] slots = new byte[256];
+				Node[] grown = Arrays.copyOf(children, keys.length + 1);
+				for (int i = 0; i < keys.length; i++)
+					slots[keys[i] & 0xff] = (byte) (i + 1);
+				slots[b] = (byte) grown.length;
+				grown[keys.length] = child;
+				return new IndexedNode(prefix, value, slots, grown);
+			}
+
+			index = -index - 1;
+			byte[] grownKeys = new byte[keys.length + 1];
+			Node[] grown = new Node[keys.length + 1];
+			System.arraycopy(keys, 0, grownKeys, 0, index);
+			System.arraycopy(children, 0, grown, 0, index);
+			grownKeys[index] = (byte) b;
+			grown[index] = child;
+			System.arraycopy(keys, index, grownKeys, index + 1, keys.length
+					- index);
+			System.arraycopy(children, index, grown, index + 1, keys.length
+					- index);
+			return new SortedNode(prefix, value, grownKeys, grown);
+		}
+
+		@Override
+		Node withoutChild(int b) {
+			int index = indexOf(b);
+			if (index < 0)
+				return this;
+
+			byte[] shrunkKeys = new byte[keys.length - 1];
+			Node[] shrunk = new Node[keys.length - 1];
+			System.arraycopy(keys, 0, shrunkKeys, 0, index);
+			System.arraycopy(children, 0, shrunk, 0, index);
+			System.arraycopy(keys, index + 1, shrunkKeys, index, keys.length
+					- index - 1);
+			System.arraycopy(children, index + 1, shrunk, index, keys.length
+					- index - 1);
+			return new SortedNode(prefix, value, shrunkKeys, shrunk);
+		}
+
+	}
+
+	// Node48: a byte-indexed table of slots into up to 48 children
+	private static final class IndexedNode extends Node {
+
+		private static final int MIN_CHILDREN = 13;
+
+		private static final int MAX_CHILDREN = 48;
+
+		// One-based slot of each branching byte's child, zero if absent
+		private final byte[] slots;
+
+		private final Node[] children;
+
+		IndexedNode(byte[] prefix, byte[] value, byte[] slots, Node[] children) {
+			super(prefix, value);
+			this.slots = slots;
+			this.children = children;
+		}
+
+		@Override
+		Node child(int b) {
+			int slot = slots[b];
+			return slot != 0 ? children[slot - 1] : null;
+		}
+
+		@Override
+		int ceilingByte(int b) {
+			for (int i = b; i < 256; i++)
+				if (slots[i] != 0)
+					return i;
+			return -1;
+		}
+
+		@Override
+		int floorByte(int b) {
+			for (int i = b; i >= 0; i--)
+				if (slots[i] != 0)
+					return i;
+			return -1;
+		}
+
+		@Override
+		int childCount() {
+			return children.length;
+		}
+
+		@Override
+		Node with(byte[] prefix, byte[] value) {
+			return new IndexedNode(prefix, value, slots, children);
+		}
+
+		@Override
+		Node withChild(int b, Node child) {
+			int slot = slots[b];
+			if (slot != 0) {
+				Node[] replaced = children.clone();
+				replaced[slot - 1] = child;
+				return new IndexedNode(prefix, value, slots, replaced);
+			}
+
+			if (children.length == MAX_CHILDREN) {
+				Node[] all = new Node[256];
+				for (int i = 0; i < 256; i++)
+					if (slots[i] != 0)
+						all[i] = children[slots[i] - 1];
+				all[b] = child;
+				return new DirectNode(prefix, value, all, children.length + 1);
+			}
+
+			byte[] grownSlots = slots.clone();
+			Node[] grown = Arrays.copyOf(children, children.length + 1);
+			grown[children.length] = child;
+			grownSlots[b] = (byte) grown.length;
+			return new IndexedNode(prefix, value, grownSlots, grown);
+		}
+
+		@Override
+		Node withoutChild(int b) {
+			int slot = slots[b];
+			if (slot == 0)
+				return this;
+
+			if (children.length - 1 < MIN_CHILDREN) {
+				byte[] keys = new byte[children.length - 1];
+				Node[] shrunk = new Node[children.length - 1];
+				for (int i = 0, j = 0; i < 256; i++)
+					if (slots[i] != 0 && i != b) {
+						keys[j] = (byte) i;
+						shrunk[j++] = children[slots[i] - 1];
+					}
+				return new SortedNode(prefix, value, keys, shrunk);
+			}
+
+			// The last child moves into the freed slot
+			byte[] shrunkSlots = slots.clone();
+			Node[] shrunk = Arrays.copyOf(children, children.length - 1);
+			if (slot != children.length) {
+				shrunk[slot - 1] = children[children.length - 1];
+				for (int i = 0; i < 256; i++)
+					if (slots[i] == children.length) {
+						shrunkSlots[i] = (byte) slot;
+						break;
+					}
+			}
+			shrunkSlots[b] = 0;
+			return new IndexedNode(prefix, value, shrunkSlots, shrunk);
+		}
+
+	}
+
+	// Node256: children indexed directly by branching byte
+	private static final class DirectNode extends Node {
+
+		private static final int MIN_CHILDREN = 37;
+
+		private final Node[] children;
+
+		private final int count;
+
+		DirectNode(byte[] prefix, byte[] value, Node[] children, int count) {
+			super(prefix, value);
+			this.children = children;
+			this.count = count;
+		}
+
+		@Override
+		Node child(int b) {
+			return children[b];
+		}
+
+		@Override
+		int ceilingByte(int b) {
+			for (int i = b; i < 256; i++)
+				if (children[i] != null)
+					return i;
+			return -1;
+		}
+
+		@Override
+		int floorByte(int b) {
+			for (int i = b; i >= 0; i--)
+				if (children[i] != null)
+					return i;
+			return -1;
+		}
+
+		@Override
+		int childCount() {
+			return count;
+		}
+
+		@Override
+		Node with(byte[] prefix, byte[] value) {
+			return new DirectNode(prefix, value, children, count);
+		}
+
+		@Override
+		Node withChild(int b, Node child) {
+			Node[] replaced = children.clone();
+			replaced[b] = child;
+			return new DirectNode(prefix, value, replaced,
+					children[b] == null ? count + 1 : count);
+		}
+
+		@Override
+		Node withoutChild(int b) {
+			if (children[b] == null)
+				return this;
+
+			if (count - 1 < MIN_CHILDREN) {
+				byte[] slots = new byte[256];
+				Node[] shrunk = new Node[count - 1];
+				for (int i = 0, j = 0; i < 256; i++)
+					if (children[i] != null && i != b) {
+						shrunk[j] = children[i];
+						slots[i] = (byte) ++j;
+					}
+				return new IndexedNode(prefix, value, slots, shrunk);
+			}
+
+			Node[] shrunk = children.clone();
+			shrunk[b] = null;
+			return new DirectNode(prefix, value, shrunk, count - 1);
+		}
+
+	}
+
+	private static final class Frame {
+
+		final Frame parent;
+
+		final Node node;
+
+		// Length of the key leading to and including this node's prefix
+		final int length;
+
+		// Whether the key so far still agrees with the start bound
+		final boolean bounded;
+
+		int nextByte;
+
+		boolean valueDone;
+
+		Frame(Frame parent, Node node, int length, boolean bounded,
+				int nextByte) {
+			this.parent = parent;
+			this.node = node;
+			this.length = length;
+			this.bounded = bounded;
+			this.nextByte = nextByte;
+		}
+
+	}
+
+	// Walks the tree in key order from a start bound, pruning subtrees
+	// outside it, until the stop bound is passed
+	private static final class Cursor implements
+			Iterator<Map.Entry<byte[], byte[]>> {
+
+		private final boolean descending;
+
+		private final byte[] start;
+
+		private final boolean startInclusive;
+
+		private final byte[] stop;
+
+		private final boolean stopInclusive;
+
+		private byte[] path = new byte[64];
+
+		private Frame top;
+
+		private Map.Entry<byte[], byte[]> next;
+
+		Cursor(Node root, byte[] lo, boolean loInclusive, byte[] hi,
+				boolean hiInclusive, boolean descending) {
+			this.descending = descending;
+			this.start = descending ? hi : lo;
+			this.startInclusive = descending ? hiInclusive : loInclusive;
+			this.stop = descending ? lo : hi;
+			this.stopInclusive = descending ? loInclusive : hiInclusive;
+			if (root != null)
+				push(root, 0, start != null);
+			next = advance();
+		}
+
+		private void push(Node node, int offset, boolean bounded) {
+			int length = offset + node.prefix.length;
+			if (path.length < length + 1)
+				path = Arrays.copyOf(path, Math.max(path.length * 2,
+						length + 1));
+			System.arraycopy(node.prefix, 0, path, offset, node.prefix.length);
+
+			if (bounded) {
+				int end = Math.min(length, start.length), c = 0;
+				for (int i = offset; i < end && c == 0; i++)
+					c = (path[i] & 0xff) - (start[i] & 0xff);
+				if (c == 0 && length > start.length)
+					c = 1;
+				if (c != 0) {
+					if (descending ? c > 0 : c < 0)
+						return;
+					bounded = false;
+				}
+			}
+
+			int nextByte = descending ? 255 : 0;
+			if (bounded && length < start.length)
+				nextByte = start[length] & 0xff;
+			else if (bounded && descending)
+				nextByte = -1;
+			top = new Frame(top, node, length, bounded, nextByte);
+		}
+
+		private boolean includesValue(Frame frame) {
+			if (frame.node.value == null)
+				return false;
+			if (!frame.bounded || frame.length > start.length)
+				return true;
+			return frame.length == start.length ? startInclusive : descending;
+		}
+
+		private Map.Entry<byte[], byte[]> emit(Frame frame) {
+			byte[] key = Arrays.copyOf(path, frame.length);
+			if (stop != null) {
+				int c = ByteArrayComparator.INSTANCE.compare(key, stop);
+				if (descending ? c < 0 : c > 0) {
+					top = null;
+					return null;
+				}
+				if (c == 0 && !stopInclusive) {
+					top = null;
+					return null;
+				}
+			}
+			return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key,
+					frame.node.value);
+		}
+
+		private Map.Entry<byte[], byte[]> advance() {
+			while (top != null) {
+				Frame frame = top;
+				if (!descending && !frame.valueDone) {
+					frame.valueDone = true;
+					if (includesValue(frame))
+						return emit(frame);
+				}
+
+				int b = frame.nextByte < 0 || frame.nextByte > 255 ? -1
+						: descending ? frame.node.floorByte(frame.nextByte)
+								: frame.node.ceilingByte(frame.nextByte);
+				if (b >= 0) {
+					frame.nextByte = descending ? b - 1 : b + 1;
+					path[frame.length] = (byte) b;
+					push(frame.node.child(b), frame.length + 1, frame.bounded
+							&& frame.length < start.length
+							&& b == (start[frame.length] & 0xff));
+					continue;
+				}
+
+				top = frame.parent;
+				if (descending && includesValue(frame))
+					return emit(frame);
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			Map.Entry<byte[], byte[]> entry = next;
+			next = advance();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.nio.ByteBuffer;
+
+// SHA-256 whose intermediate state can be saved and resumed, so that a
+// digest can be continued as more data is appended to a stream
+final class Sha256 {
+
+	private static final int[] K = { 0x428a2f98, 0x71374491, 0xb5c0fbcf,
+			0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74,
+			0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+			0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc,
+			0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+			0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85,
+			0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb,
+			0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b, 0xc24b8b70,
+			0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3,
+			0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f,
+			0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+			0xc67178f2 };
+
+	private static final int[] INITIAL = { 0x6a09e667, 0xbb67ae85,
+			0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab,
+			0x5be0cd19 };
+
+	// Hash values, 8 ints, followed by the byte count, followed by the bytes
+	// of the last incomplete 64-byte block
+	static final int FIXED_STATE_SIZE = 32 + 8;
+
+	private final int[] hash;
+
+	private final byte[] pending = new byte[64];
+
+	private final int[] w = new int[64];
+
+	private long count;
+
+	Sha256() {
+		hash = INITIAL.clone();
+		count = 0;
+	}
+
+	Sha256(byte[] state) {
+		ByteBuffer buffer = ByteBuffer.wrap(state);
+		hash = new int[8];
+		for (int i = 0; i < hash.length; i++)
+			hash[i] = buffer.getInt();
+		count = buffer.getLong();
+		buffer.get(pending, 0, (int) (count & 63));
+	}
+
+	long count() {
+		return count;
+	}
+
+	void update(byte[] b, int off, int len) {
+		int filled = (int) (count & 63);
+		count += len;
+		if (filled > 0) {
+			int n = Math.min(len, 64 - filled);
+			System.arraycopy(b, off, pending, filled, n);
+			off += n;
+			len -= n;
+			if (filled + n < 64)
+				return;
+			compress(pending, 0);
+		}
+		for (; len >= 64; off += 64, len -= 64)
+			compress(b, off);
+		System.arraycopy(b, off, pending, 0, len);
+	}
+
+	// A single byte goes straight into the pending block
+	void update(byte b) {
+		int filled = (int) (count++ & 63);
+		pending[filled] = b;
+		if (filled == 63)
+			compress(pending, 0);
+	}
+
+	byte[] state() {
+		int filled = (int) (count & 63);
+		ByteBuffer buffer = ByteBuffer.allocate(FIXED_STATE_SIZE + filled);
+		for (int value : hash)
+			buffer.putInt(value);
+		buffer.putLong(count);
+		buffer.put(pending, 0, filled);
+		return buffer.array();
+	}
+
+	// The digest of everything so far, leaving the state as it is
+	byte[] digest() {
+		Sha256 copy = new Sha256(state());
+		int filled = (int) (count & 63);
+		byte[] padding = new byte[filled < 56 ? 64 - filled : 128 - filled];
+		padding[0] = (byte) 0x80;
+		ByteBuffer.wrap(padding).putLong(padding.length - 8, count << 3);
+		copy.update(padding, 0, padding.length);
+
+		ByteBuffer digest = ByteBuffer.allocate(32);
+		for (int value : copy.hash)
+			digest.putInt(value);
+		return digest.array();
+	}
+
+	private void compress(byte[] data, int off) {
+		for (int i = 0; i < 16; i++, off += 4)
+			w[i] = (data[off] << 24) | ((data[off + 1] & 0xff) << 16)
+					| ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+		for (int i = 16; i < 64; i++) {
+			int s0 = Integer.rotateRight(w[i - 15], 7)
+					^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+			int s1 = Integer.rotateRight(w[i - 2], 17)
+					^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+			w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+		}
+
+		int a = hash[0], b = hash[1], c = hash[2], d = hash[3];
+		int e = hash[4], f = hash[5], g = hash[6], h = hash[7];
+		for (int i = 0; i < 64; i++) {
+			int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+					^ Integer.rotateRight(e, 25);
+			int t1 = h + s1 + ((e & f) ^ (~e & g)) + K[i] + w[i];
+			int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+					^ Integer.rotateRight(a, 22);
+			int t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+			h = g;
+			g = f;
+			f = e;
+			e = d + t1;
+			d = c;
+			c = b;
+			b = a;
+			a = t1 + t2;
+		}
+		hash[0] += a;
+		hash[1] += b;
+		hash[2] += c;
+		hash[3] += d;
+		hash[4] += e;
+		hash[5] += f;
+		hash[6] += g;
+		hash[7] += h;
+	}
+
+}
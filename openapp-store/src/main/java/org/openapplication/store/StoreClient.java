@@ -16,6 +16,8 @@
 package org.openapplication.store;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.List;
 
@@ -60,11 +62,50 @@ public class StoreClient implements Store {
 		return server.remove(fields);
 	}
 
+	@Override
+	public final List<MapKeyValue> putAll(List<Field<?>[]> entries) {
+		return server.putAll(entries);
+	}
+
+	@Override
+	public final List<MapKeyValue> removeAll(List<Field<?>[]> entries) {
+		return server.removeAll(entries);
+	}
+
 	@Override
 	public final Entry get(Field<?>... fields) {
 		return server.get(fields);
 	}
 
+	@Override
+	public final List<Entry> getAll(List<Field<?>[]> keys) {
+		return server.getAll(keys);
+	}
+
+	@Override
+	public final PreparedQuery prepare(Field<?>... fields) {
+		final PreparedQuery prepared = server.prepare(fields);
+		return new PreparedQuery() {
+			@Override
+			public Entry get(Object... values) {
+				return prepared.get(values);
+			}
+
+			@Override
+			public Entries iterate(Entry first, Entry last, Object... values) {
+				Entries entries = prepared.iterate(first, last, values);
+				return entries != null ? new EntryIteration(entries, first,
+						last, prepared, values) : null;
+			}
+
+			@Override
+			public Entries iterateNext(byte[] subsequent, Entry first,
+					Entry last, Object... values) {
+				return prepared.iterateNext(subsequent, first, last, values);
+			}
+		};
+	}
+
 	@Override
 	public final Entries iterate(Field<?>... fields) {
 		Entries entries = server.iterate(null, null, fields);
@@ -89,22 +130,47 @@ public class StoreClient implements Store {
 
 		private final Field<?>[] fields;
 
+		private final PreparedQuery prepared;
+
+		private final Object[] values;
+
 		public EntryIteration(Entries source, Entry first, Entry last,
 				Field<?>... fields) {
 			this.source = source;
 			this.first = first;
 			this.last = last;
 			this.fields = fields;
+			this.prepared = null;
+			this.values = null;
+		}
+
+		public EntryIteration(Entries source, Entry first, Entry last,
+				PreparedQuery prepared, Object... values) {
+			this.source = source;
+			this.first = first;
+			this.last = last;
+			this.fields = null;
+			this.prepared = prepared;
+			this.values = values;
 		}
 
 		@Override
 		public byte[] fromKey() {
-			return first.getBytes(fields, false);
+			return prepared != null ? source.fromKey() : first.getBytes(
+					fields, false);
 		}
 
 		@Override
 		public byte[] toKey() {
-			return last.getBytes(fields, true);
+			return prepared != null ? source.toKey() : last.getBytes(fields,
+					true);
+		}
+
+		private Entries continuation(Entries current) {
+			if (prepared != null)
+				return prepared.iterateNext(current.fromKey(), first, last,
+						values);
+			return server.iterateNext(current.fromKey(), first, last, fields);
 		}
 
 		@Override
@@ -119,9 +185,8 @@ public class StoreClient implements Store {
 						return true;
 					else
 						while (currentSource != null
-								&& (currentSource = server.iterateNext(
-										currentSource.fromKey(), first, last,
-										fields)) != null)
+								&& (currentSource = continuation(
+										currentSource)) != null)
 							if ((entryIter = currentSource.iterator())
 									.hasNext())
 								return true;
@@ -146,10 +211,36 @@ public class StoreClient implements Store {
 		return server.read(blob);
 	}
 
+	@Override
+	public final InputStream read(Blob blob, long offset, long length) {
+		return server.read(blob, offset, length);
+	}
+
+	@Override
+	public final long read(Blob blob, WritableByteChannel channel) {
+		return server.read(blob, channel);
+	}
+
+	@Override
+	public final ByteBuffer[] readBuffers(Blob blob) {
+		return server.readBuffers(blob);
+	}
+
 	@Override
 	public final Blob write(InputStream stream, StreamEncoding inEncoding,
 			StreamEncoding outEncoding) {
 		return server.write(stream, inEncoding, outEncoding);
 	}
 
+	@Override
+	public final Blob append(Blob blob, InputStream stream) {
+		return server.append(blob, stream);
+	}
+
+	@Override
+	public final MultipartUpload beginUpload(StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		return server.beginUpload(inEncoding, outEncoding);
+	}
+
 }
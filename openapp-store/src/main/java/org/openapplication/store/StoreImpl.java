@@ -15,31 +15,51 @@
  */
 package org.openapplication.store;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public final class StoreImpl implements StoreServer {
 
-	private final List<Definition> definitionList;
-
-	private final Map<UUID, List<Definition>> definitionMap;
+	private final DefinitionIndex definitionIndex;
 
 	private final MapProvider mapProvider;
 
-	private List<ByteBuffer> blobBuffers;
+	private final BlobVolumes blobVolumes;
+
+	private final BlobCompactor blobCompactor;
 
 	public StoreImpl(Definition... definitions) {
 		this(new MapProviderImpl(), definitions);
@@ -54,36 +74,32 @@ public final class StoreImpl implements StoreServer {
 	}
 
 	public StoreImpl(MapProvider mapProvider, List<Definition> definitions) {
-		definitionList = new ArrayList<Definition>();
-		definitionMap = new HashMap<UUID, List<Definition>>();
-		this.mapProvider = mapProvider;
-
-		// System.out.println("Preparing maps");
-		for (Definition definition : definitions) {
-			UUID keyUuid = definition.toKeyUuid();
+		this(mapProvider, new VolumeProviderImpl(BLOB_VOLUME_SIZE), definitions);
+	}
 
-			definitionList.add(definition);
+	public StoreImpl(MapProvider mapProvider, VolumeProvider volumeProvider,
+			Definition... definitions) {
+		this(mapProvider, volumeProvider, Arrays.asList(definitions));
+	}
 
-			if (!definitionMap.containsKey(keyUuid))
-				definitionMap.put(keyUuid, new ArrayList<Definition>());
-			definitionMap.get(keyUuid).add(definition);
+	public StoreImpl(MapProvider mapProvider, VolumeProvider volumeProvider,
+			List<Definition> definitions) {
+		definitionIndex = new DefinitionIndex(definitions);
+		this.mapProvider = mapProvider;
+		blobVolumes = new BlobVolumes(volumeProvider, BLOB_MIN_REMAINING);
+		blobCompactor = new BlobCompactor(definitionIndex, mapProvider,
+				blobVolumes);
 
-			mapProvider.prepare(keyUuid);
-		}
+		// System.out.println("Preparing maps");
+		for (Definition definition : definitions)
+			mapProvider.prepare(definition.toKeyUuid());
 		// System.out.println("Preparing maps done");
 	}
 
 	@Override
 	public List<MapKeyValue> put(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFieldValues(definition.getKeyFields())
-					&& entry.containsFieldValues(definition.getValueFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), entry
-								.getBytes(definition.getValueFields())));
+		List<MapKeyValue> ops = definitionIndex.putOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			mapProvider.get(operation.map, operation.key, null).put(
@@ -94,13 +110,8 @@ public final class StoreImpl implements StoreServer {
 
 	@Override
 	public List<MapKeyValue> remove(Field<?>... fields) {
-		Entry entry = new Entry(fields);
-		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
-
-		for (Definition definition : definitionList)
-			if (entry.containsFields(definition.getKeyFields()))
-				ops.add(new MapKeyValue(definition.toKeyUuid(), definition,
-						entry.getBytes(definition.getKeyFields()), null));
+		List<MapKeyValue> ops = definitionIndex.removeOperations(new Entry(
+				fields));
 
 		for (MapKeyValue operation : ops)
 			mapProvider.get(operation.map, operation.key, null).remove(
@@ -109,6 +120,40 @@ public final class StoreImpl implements StoreServer {
 		return ops;
 	}
 
+	@Override
+	public List<MapKeyValue> putAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.putOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			for (MapKeyValue operation : group)
+				mapProvider.get(operation.map, operation.key, null).put(
+						operation.key, operation.value);
+			applied.addAll(group);
+		}
+
+		return applied;
+	}
+
+	@Override
+	public List<MapKeyValue> removeAll(List<Field<?>[]> entries) {
+		List<MapKeyValue> ops = new ArrayList<MapKeyValue>();
+		for (Field<?>[] fields : entries)
+			ops.addAll(definitionIndex.removeOperations(new Entry(fields)));
+
+		List<MapKeyValue> applied = new ArrayList<MapKeyValue>(ops.size());
+		for (List<MapKeyValue> group : MapKeyValue.groupByMap(ops).values()) {
+			for (MapKeyValue operation : group)
+				mapProvider.get(operation.map, operation.key, null).remove(
+						operation.key);
+			applied.addAll(group);
+		}
+
+		return applied;
+	}
+
 	@Override
 	public Entry get(Field<?>... fields) {
 		UUID keyUuid = Key.asUuid(fields);
@@ -121,12 +166,55 @@ public final class StoreImpl implements StoreServer {
 		byte[] value = storage.get(key);
 		if (value == null)
 			return null;
-		for (Definition definition : definitionMap.get(keyUuid))
-			if (definition.matchesValue(value))
-				return new Entry(keyEntry, new Entry(value,
-						definition.getValueFields()));
+		return DefinitionIndex.decode(definitionIndex.get(keyUuid), keyEntry,
+				value);
+	}
 
-		return keyEntry;
+	// Steps taken along the current position before seeking anew
+	private static final int GET_ALL_MAX_STEPS = 8;
+
+	@Override
+	public List<Entry> getAll(List<Field<?>[]> keys) {
+		MultiGet lookup = new MultiGet(keys);
+		for (Map.Entry<UUID, int[]> group : lookup.groupByMap().entrySet()) {
+			UUID keyUuid = group.getKey();
+			List<Definition> definitions = definitionIndex.get(keyUuid);
+
+			// Keys are visited in order, so one forward walk over the map
+			// serves the whole group as long as the keys are close together
+			SortedMap<byte[], byte[]> storage = null;
+			Iterator<Map.Entry<byte[], byte[]>> walk = null;
+			Map.Entry<byte[], byte[]> current = null;
+			for (int index : group.getValue()) {
+				byte[] key = lookup.getKey(index);
+				SortedMap<byte[], byte[]> map = mapProvider.get(keyUuid, key,
+						null);
+				if (map == null)
+					break;
+				if (map != storage) {
+					storage = map;
+					walk = null;
+				}
+
+				for (int steps = 0; walk != null && current != null
+						&& ByteArrayComparator.INSTANCE.compare(
+								current.getKey(), key) < 0; steps++)
+					if (steps == GET_ALL_MAX_STEPS)
+						walk = null;
+					else
+						current = walk.hasNext() ? walk.next() : null;
+				if (walk == null) {
+					walk = storage.tailMap(key).entrySet().iterator();
+					current = walk.hasNext() ? walk.next() : null;
+				}
+
+				if (current != null
+						&& ByteArrayComparator.INSTANCE.compare(
+								current.getKey(), key) == 0)
+					lookup.set(index, definitions, current.getValue());
+			}
+		}
+		return lookup.getEntries();
 	}
 
 	@Override
@@ -138,39 +226,123 @@ public final class StoreImpl implements StoreServer {
 	public Entries iterateNext(byte[] subsequent, Entry first, Entry last,
 			Field<?>... fields) {
 		UUID keyUuid = Key.asUuid(fields);
+		Encoder encoder = new Encoder(fields);
+		return iterateNext(keyUuid, definitionIndex.get(keyUuid), encoder,
+				encoder.values(new Entry(fields)), subsequent, first, last);
+	}
 
-		Entry entry = new Entry(fields);
+	private Entries iterateNext(UUID keyUuid, List<Definition> definitions,
+			Encoder encoder, Object[] values, byte[] subsequent, Entry first,
+			Entry last) {
 		byte[] firstKey = null, lastKey = null;
 		if (first != null)
-			firstKey = new Entry(entry, first).getBytes(fields, false);
+			firstKey = encoder.encode(encoder.values(values, first), true,
+					false);
 		if (last != null)
-			lastKey = new Entry(entry, last).getBytes(fields, true);
+			lastKey = encoder.encode(encoder.values(values, last), true, true);
 		if (first == null && last == null) {
-			firstKey = entry.getBytes(fields, false);
-			lastKey = entry.getBytes(fields, true);
+			firstKey = encoder.encode(values, true, false);
+			lastKey = encoder.encode(values, true, true);
 		} else if (first != null && last == null) {
 			lastKey = firstKey;
-			firstKey = entry.getBytes(fields, false);
+			firstKey = encoder.encode(values, true, false);
 		} else if (first == null && last != null) {
 			firstKey = lastKey;
-			lastKey = entry.getBytes(fields, true);
+			lastKey = encoder.encode(values, true, true);
 		}
 
+		// The entries come from one region of the map at a time; each
+		// continuation starts after the region holding the key it was given
 		SortedMap<byte[], byte[]> storage;
-		if (subsequent == null)
+		byte[] regionKey;
+		if (subsequent == null) {
 			storage = mapProvider.get(keyUuid, firstKey, null);
-		else
+			regionKey = firstKey;
+		} else {
 			storage = mapProvider.get(keyUuid, subsequent, lastKey);
+			regionKey = storage == null ? null : regionKey(storage, subsequent);
+		}
 		if (storage == null)
 			return null;
 
 		SortedMap<byte[], byte[]> subMap = storage.subMap(firstKey, lastKey);
-		List<Definition> definitions = definitionMap.get(keyUuid);
 
-		return new MapEntryIterable(subMap.entrySet(), firstKey, lastKey,
+		return new MapEntryIterable(subMap.entrySet(), regionKey, lastKey,
 				definitions);
 	}
 
+	// A key within the region, for continuing after it; a region emptied
+	// meanwhile is skipped by continuing after the previous one again
+	static byte[] regionKey(SortedMap<byte[], byte[]> region, byte[] previous) {
+		try {
+			return region.firstKey();
+		} catch (NoSuchElementException e) {
+			return previous;
+		}
+	}
+
+	@Override
+	public PreparedQuery prepare(Field<?>... fields) {
+		return new Prepared(fields);
+	}
+
+	private final class Prepared implements PreparedQuery {
+
+		private final UUID keyUuid;
+
+		private final List<Definition> definitions;
+
+		private final Encoder encoder;
+
+		private final Object[] template;
+
+		Prepared(Field<?>[] fields) {
+			keyUuid = Key.asUuid(fields);
+			definitions = definitionIndex.get(keyUuid);
+			encoder = new Encoder(fields.clone());
+			template = encoder.values(new Entry(fields));
+		}
+
+		private Object[] bind(Object[] values) {
+			if (values.length > template.length)
+				throw new IllegalArgumentException("Too many values: "
+						+ values.length + " > " + template.length);
+			if (values.length == 0)
+				return template;
+
+			Object[] bound = template.clone();
+			System.arraycopy(values, 0, bound, 0, values.length);
+			return bound;
+		}
+
+		@Override
+		public Entry get(Object... values) {
+			byte[] key = encoder.encode(bind(values), false, false);
+			SortedMap<byte[], byte[]> storage = mapProvider.get(keyUuid, key,
+					null);
+			if (storage == null)
+				return null;
+
+			byte[] value = storage.get(key);
+			if (value == null)
+				return null;
+			return DefinitionIndex.decode(definitions, key, value);
+		}
+
+		@Override
+		public Entries iterate(Entry first, Entry last, Object... values) {
+			return iterateNext(null, first, last, values);
+		}
+
+		@Override
+		public Entries iterateNext(byte[] subsequent, Entry first, Entry last,
+				Object... values) {
+			return StoreImpl.this.iterateNext(keyUuid, definitions, encoder,
+					bind(values), subsequent, first, last);
+		}
+
+	}
+
 	// Must be >=1
 	private static final int BLOB_MIN_REMAINING = 1;
 
@@ -181,23 +353,118 @@ public final class StoreImpl implements StoreServer {
 	private static final int BLOB_VOLUME_SIZE = 1024 * 1024;
 
 	@Override
-	public InputStream read(final Blob blob) {
-		final List<ByteBuffer> blobBuffers = this.blobBuffers;
+	public InputStream read(Blob blob) {
+		return readBlocks(blob, 0, 0);
+	}
+
+	// The unencoded range of the blob, decoded from the closest restart point
+	// (or, for IDENTITY blobs, the block holding the offset) on; compressed
+	// blobs only have restart points if written with a write executor, or
+	// in parts, and are otherwise decoded from their start
+	@Override
+	public InputStream read(Blob blob, long offset, long length) {
+		if (offset < 0 || length < 0)
+			throw new IllegalArgumentException();
+		length = Math.max(0, Math.min(length, blob.size() - offset));
+		try {
+			if (StreamEncoding.IDENTITY.equals(blob.encoding())) {
+				int index = blob.indexOf(offset);
+				if (index == -1)
+					return new ByteArrayInputStream(new byte[0]);
+				return limit(readBlocks(blob, index,
+						offset - blob.offset(index)), length);
+			}
+
+			int restart = blob.restartOf(offset);
+			InputStream stream = blob.encoding().createInputStream(
+					readBlocks(blob, restart == -1 ? 0 : blob
+							.restartIndex(restart), 0));
+			skipFully(stream, restart == -1 ? offset : offset
+					- blob.restartPosition(restart));
+			return limit(stream, length);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void skipFully(InputStream stream, long n)
+			throws IOException {
+		while (n > 0) {
+			long skipped = stream.skip(n);
+			if (skipped <= 0) {
+				if (stream.read() == -1)
+					return;
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static InputStream limit(final InputStream stream,
+			final long length) {
+		return new InputStream() {
+			long remaining = length;
+
+			@Override
+			public int read() throws IOException {
+				if (remaining == 0)
+					return -1;
+				int read = stream.read();
+				if (read != -1)
+					remaining--;
+				return read;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (remaining == 0)
+					return -1;
+				int read = stream.read(b, off, (int) Math.min(len, remaining));
+				if (read != -1)
+					remaining -= read;
+				return read;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(stream.available(), remaining);
+			}
+
+			@Override
+			public void close() throws IOException {
+				stream.close();
+			}
+		};
+	}
+
+	// The encoded blocks from the given one on, starting at the given offset
+	// into it; their volumes are pinned until the stream is read to its end
+	// or closed
+	private InputStream readBlocks(final Blob blob, final int first,
+			final long skip) {
+		pin(blob, first);
 		InputStream stream = new InputStream() {
-			int index = 0;
+			int index = first;
 			ByteBuffer buffer = null;
+			boolean pinned = true;
 
 			private boolean prepare() {
-				if (index >= blob.count())
+				if (index >= blob.count()) {
+					unpin();
 					return true;
+				}
 				long block = blob.block(index);
 				int node = (int) Blob.asNode(block);
 				int offset = (int) Blob.asOffset(block);
 				int size = (int) blob.size(index);
-				index++;
-				buffer = blobBuffers.get(node).asReadOnlyBuffer();
-				buffer.position(offset);
+				buffer = blobVolumes.get(node).asReadOnlyBuffer();
+				buffer.position(offset + (index == first ? (int) skip : 0));
 				buffer.limit(offset + size);
+				index++;
+				if (!buffer.hasRemaining())
+					return prepare();
 				return false;
 			}
 
@@ -223,7 +490,7 @@ public final class StoreImpl implements StoreServer {
 				if (buffer == null && prepare())
 					return -1;
 				int read = Math.min(buffer.remaining(), len);
-				buffer.get(b, 0, read);
+				buffer.get(b, off, read);
 				if (!buffer.hasRemaining())
 					buffer = null;
 				return read;
@@ -235,32 +502,86 @@ public final class StoreImpl implements StoreServer {
 					return 0;
 				return buffer.remaining();
 			}
+
+			@Override
+			public void close() {
+				index = blob.count();
+				buffer = null;
+				unpin();
+			}
+
+			private void unpin() {
+				if (pinned) {
+					pinned = false;
+					StoreImpl.this.unpin(blob, first);
+				}
+			}
 		};
 		return stream;
 	}
 
+	private void pin(Blob blob, int first) {
+		for (int i = first; i < blob.count(); i++)
+			blobVolumes.pin((int) Blob.asNode(blob.block(i)));
+	}
+
+	private void unpin(Blob blob, int first) {
+		for (int i = first; i < blob.count(); i++)
+			blobVolumes.unpin((int) Blob.asNode(blob.block(i)));
+	}
+
+	// Read-only views of the blob's (encoded) blocks, straight from the
+	// volumes; unlike streams, these don't pin the volumes, so they must be
+	// used within the compaction grace period
+	@Override
+	public ByteBuffer[] readBuffers(Blob blob) {
+		ByteBuffer[] buffers = new ByteBuffer[blob.count()];
+		for (int i = 0; i < buffers.length; i++) {
+			long block = blob.block(i);
+			int offset = (int) Blob.asOffset(block);
+			ByteBuffer buffer = blobVolumes.get((int) Blob.asNode(block))
+					.asReadOnlyBuffer();
+			buffer.limit(offset + (int) blob.size(i));
+			buffer.position(offset);
+			buffers[i] = buffer.slice();
+		}
+		return buffers;
+	}
+
 	@Override
-	public synchronized Blob write(InputStream stream,
-			StreamEncoding inEncoding, StreamEncoding outEncoding) {
+	public long read(Blob blob, WritableByteChannel channel) {
+		pin(blob, 0);
+		try {
+			return transfer(readBuffers(blob), channel);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			unpin(blob, 0);
+		}
+	}
+
+	private static long transfer(ByteBuffer[] buffers,
+			WritableByteChannel channel) throws IOException {
+		long written = 0;
+		if (channel instanceof GatheringByteChannel)
+			for (int index = 0; index < buffers.length;) {
+				written += ((GatheringByteChannel) channel).write(buffers,
+						index, buffers.length - index);
+				while (index < buffers.length && !buffers[index].hasRemaining())
+					index++;
+			}
+		else
+			for (ByteBuffer buffer : buffers)
+				while (buffer.hasRemaining())
+					written += channel.write(buffer);
+		return written;
+	}
+
+	@Override
+	public Blob write(InputStream stream, StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
 		StreamEncoding encoding;
-		// if (digest && inEncoding.equals(outEncoding)) {
-		// if (!StreamEncoding.IDENTITY.equals(inEncoding))
-		// // inEncoding == outEncoding, but we need a blob digest, so we
-		// // have to decode anyway to get unencoded data for the digest
-		// // (A possible optimization here would be to decode for purposes
-		// // of calculating the digest, but use the undecoded stream
-		// // directly for the output, rather than decoding and reencoding.
-		// // However, the caller could instead itself filter the input to
-		// // calculate the digest. Therefore, we document that this method
-		// // will perform a decode and an encode if digest == true, even
-		// // if inEncoding == outEncoding.)
-		// try {
-		// stream = inEncoding.createInputStream(stream);
-		// } catch (IOException e) {
-		// throw new RuntimeException(e);
-		// }
-		// encoding = outEncoding;
-		// } else
+		TeeDigest teeDigest = null;
 		if (!inEncoding.equals(outEncoding)) {
 			if (!StreamEncoding.IDENTITY.equals(inEncoding))
 				// inEncoding != outEncoding, so we have to decode and reencode
@@ -270,19 +591,200 @@ public final class StoreImpl implements StoreServer {
 					throw new RuntimeException(e);
 				}
 			encoding = outEncoding;
-		} else
-			// inEncoding == outEncoding, // and we don't need a blob digest,
-			// so let's pretend that we're doing an IDENTITY encode
+		} else {
+			// inEncoding == outEncoding, so let's pretend that we're doing
+			// an IDENTITY encode
 			encoding = StreamEncoding.IDENTITY;
 
-		MessageDigest streamDigest;
-		MessageDigest blockDigest;
+			// The blob digest and size still have to be those of the
+			// unencoded data, so a copy is decoded on the side
+			if (passThroughDigest
+					&& !StreamEncoding.IDENTITY.equals(inEncoding)) {
+				teeDigest = new TeeDigest(inEncoding, DIGESTS);
+				stream = teeDigest.tee(stream);
+			}
+		}
+
+		if (teeDigest == null)
+			return write(stream, encoding, outEncoding, sha256());
+
+		Blob blob;
 		try {
-			streamDigest = MessageDigest.getInstance("SHA-256");
-			blockDigest = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("SHA-256 message digest unavailable");
+			blob = write(stream, encoding, outEncoding, null);
+		} finally {
+			teeDigest.finish();
 		}
+		return blob.append(teeDigest.size(), teeDigest.hash(), outEncoding);
+	}
+
+	private volatile boolean passThroughDigest = false;
+
+	// Stores streams whose encoding is kept as they are, digesting the
+	// decoded content on a separate thread, rather than digesting the
+	// encoded bytes
+	public void setPassThroughDigest(boolean passThroughDigest) {
+		this.passThroughDigest = passThroughDigest;
+	}
+
+	// Pass-through digests wait for the writing thread, so they are run on
+	// threads of their own rather than on the write executor, reused while
+	// writes keep coming
+	private static final ExecutorService DIGESTS = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "TeeDigest");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Uploads begun and neither completed nor aborted, whose parts aren't
+	// referenced by any entry yet
+	private final Set<MultipartUpload> uploads = Collections
+			.newSetFromMap(new ConcurrentHashMap<MultipartUpload, Boolean>());
+
+	@Override
+	public MultipartUpload beginUpload(StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		MultipartUpload upload = new MultipartUpload(this, inEncoding,
+				outEncoding);
+		uploads.add(upload);
+		return upload;
+	}
+
+	void closeUpload(MultipartUpload upload) {
+		uploads.remove(upload);
+	}
+
+	// Parts are stored without their digest, which can only be computed in
+	// part order
+	Blob writePart(InputStream stream, StreamEncoding inEncoding,
+			StreamEncoding outEncoding) {
+		if (inEncoding.equals(outEncoding))
+			return write(stream, StreamEncoding.IDENTITY, outEncoding, null);
+		if (!StreamEncoding.IDENTITY.equals(inEncoding))
+			try {
+				stream = inEncoding.createInputStream(stream);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		return write(stream, outEncoding, outEncoding, null);
+	}
+
+	// Decodes the parts in order for the size and digest of the whole, and
+	// marks where each part (and each restart within it) starts
+	Blob join(List<Blob> parts, StreamEncoding encoding) {
+		MessageDigest streamDigest = sha256();
+		byte[] bytes = new byte[BLOB_STREAM_BUFFER_SIZE];
+		Blob blob = new Blob();
+		long blobSize = 0;
+		for (Blob part : parts) {
+			blob = appendPart(blob, part, blobSize, encoding);
+			try {
+				InputStream stream = encoding.createInputStream(read(part));
+				for (int read; (read = stream.read(bytes)) != -1;) {
+					streamDigest.update(bytes, 0, read);
+					blobSize += read;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return blob.append(blobSize, sha256Hash(streamDigest.digest()),
+				encoding);
+	}
+
+	private static Blob appendPart(Blob blob, Blob part, long position,
+			StreamEncoding encoding) {
+		int restart = 0;
+		for (int i = 0; i < part.count(); i++) {
+			if (!StreamEncoding.IDENTITY.equals(encoding)) {
+				if (i == 0)
+					blob = blob.appendRestart(position);
+				while (restart < part.restarts()
+						&& part.restartIndex(restart) == i) {
+					if (i > 0)
+						blob = blob.appendRestart(position
+								+ part.restartPosition(restart));
+					restart++;
+				}
+			}
+			blob = blob.append(part.block(i), part.size(i), part.hash(i));
+		}
+		return blob;
+	}
+
+	// Writes only the appended stream, as another independently encoded
+	// part of the blob, resuming the digest saved with the blob. Blobs
+	// without a saved digest (that weren't appended to before) are digested
+	// once. An empty Blob() starts an IDENTITY blob.
+	@Override
+	public Blob append(Blob blob, InputStream stream) {
+		StreamEncoding encoding = blob.encoding();
+		if (encoding == null)
+			encoding = StreamEncoding.IDENTITY;
+		if (!encoding.isConcatenable())
+			throw new IllegalArgumentException(encoding
+					+ " streams cannot be appended to");
+
+		final Sha256 streamDigest;
+		if (blob.digestState() != null)
+			streamDigest = new Sha256(blob.digestState());
+		else {
+			streamDigest = new Sha256();
+			byte[] bytes = new byte[BLOB_STREAM_BUFFER_SIZE];
+			try {
+				InputStream existing = encoding.createInputStream(read(blob));
+				for (int read; (read = existing.read(bytes)) != -1;)
+					streamDigest.update(bytes, 0, read);
+				existing.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (streamDigest.count() != blob.size())
+			throw new IllegalArgumentException("Blob size mismatch");
+
+		Blob part = write(new FilterInputStream(stream) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1)
+					streamDigest.update((byte) b);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0)
+					streamDigest.update(b, off, read);
+				return read;
+			}
+		}, encoding, encoding, null);
+		if (part.size() == 0 && blob.count() > 0)
+			// Not even framing is needed
+			part = new Blob();
+
+		return appendPart(blob, part, blob.size(), encoding).append(
+				streamDigest.count(), sha256Hash(streamDigest.digest()),
+				encoding).appendDigestState(streamDigest.state());
+	}
+
+	// A null stream digest leaves the blob digest to the caller
+	private Blob write(InputStream stream, StreamEncoding encoding,
+			StreamEncoding outEncoding, MessageDigest streamDigest) {
+		// Only with a write executor are blobs encoded in independent chunks,
+		// which also gives compressed blobs restart points for ranged reads;
+		// otherwise they are encoded as a single stream
+		ExecutorService writeExecutor = this.writeExecutor;
+		if (blockIndex == null && encoding.isConcatenable()
+				&& writeExecutor != null)
+			return writePipelined(stream, encoding, outEncoding, streamDigest,
+					writeExecutor);
+
+		MessageDigest blockDigest = sha256();
 
 		OutputReader postEncoder = new OutputReader();
 		OutputStream encoder;
@@ -290,28 +792,209 @@ public final class StoreImpl implements StoreServer {
 			// Use the encoding decided above (which in the case of inEncoding
 			// == outEncoding may be IDENTITY regardless of actual output
 			// encoding)
-			encoder = encoding.createOutputStream(postEncoder);
+			encoder = encoding.createOutputStream(postEncoder,
+					compressionLevel, writeExecutor);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 
+		ByteBuffer staging = blockIndex != null ? ByteBuffer
+				.allocate(DEDUP_BLOCK_SIZE) : null;
 		Blob blob = new Blob();
 		long blobSize = 0;
+		long encodedSize = 0;
 		for (;;) {
 			Block block = writeBlock(stream, streamDigest, blockDigest,
-					encoder, postEncoder);
+					encoder, postEncoder, encodedSize, staging);
 			if (block.blockSize > 0)
 				blob = blob.append(block.block, block.blockSize,
-						merge((byte) 2, Arrays.copyOfRange( // 2: sha-256-128
-								blockDigest.digest(), 0, 16)));
+						block.blockHash);
 			blobSize += block.streamRead;
+			encodedSize += block.blockSize;
 			if (block.isLast)
-				return blob.append(blobSize,
-						merge((byte) 1, streamDigest.digest()), // 1: sha-256
+				return blob.append(blobSize, streamDigest == null ? null
+						: merge((byte) 1, streamDigest.digest()), // 1: sha-256
 						outEncoding); // Actual output encoding
 		}
 	}
 
+	// Unencoded bytes per independently encoded chunk of a pipelined write
+	private static final int PIPELINE_CHUNK_SIZE = 256 * 1024;
+
+	// Chunks being encoded ahead of the one being placed
+	private static final int PIPELINE_DEPTH = 2 * Runtime.getRuntime()
+			.availableProcessors();
+
+	private volatile ExecutorService writeExecutor;
+
+	private volatile int compressionLevel = StreamEncoding.DEFAULT_LEVEL;
+
+	// The level written blobs are compressed at (see
+	// StreamEncoding.createOutputStream)
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	// Encodes and hashes chunks of large writes in parallel on the given
+	// executor (e.g. a ForkJoinPool). Compressed blobs are then stored as
+	// independently encoded chunks, with restart points for ranged reads.
+	// With null, blobs are encoded as one stream on the writing thread.
+	public void setWriteExecutor(ExecutorService writeExecutor) {
+		this.writeExecutor = writeExecutor;
+	}
+
+	private Blob writePipelined(InputStream stream,
+			final StreamEncoding encoding, StreamEncoding outEncoding,
+			MessageDigest streamDigest, Executor executor) {
+		final int level = compressionLevel;
+		int depth = executor == null ? 1 : PIPELINE_DEPTH;
+		Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+		Blob blob = new Blob();
+		long blobSize = 0;
+		boolean eof = false;
+		int node = -1;
+		try {
+			for (;;) {
+				// The stream digest is sequential, so it is updated here while
+				// the chunks read before are being encoded
+				while (!eof && pending.size() < depth) {
+					final byte[] bytes = new byte[PIPELINE_CHUNK_SIZE];
+					final int length = readChunk(stream, bytes);
+					eof = length < bytes.length;
+					// An empty stream still gets its encoding's framing
+					if (length == 0 && blobSize > 0)
+						break;
+					if (streamDigest != null)
+						streamDigest.update(bytes, 0, length);
+					final long position = blobSize;
+					blobSize += length;
+					FutureTask<Chunk> task = new FutureTask<Chunk>(
+							new Callable<Chunk>() {
+								@Override
+								public Chunk call() throws IOException {
+									return encodeChunk(encoding, level, bytes,
+											length, position);
+								}
+							});
+					pending.add(task);
+					if (executor == null)
+						task.run();
+					else
+						executor.execute(task);
+					if (length == 0)
+						break;
+				}
+				if (pending.isEmpty())
+					break;
+
+				// Chunks are placed in stream order, so the blocks and their
+				// placement don't depend on which encoding finishes first
+				Chunk chunk = pending.remove().get();
+				if (encoding != StreamEncoding.IDENTITY)
+					blob = blob.appendRestart(chunk.position);
+				for (int off = 0; off < chunk.length;) {
+					if (node == -1)
+						node = blobVolumes.acquire();
+					ByteBuffer buffer = blobVolumes.get(node);
+					int padding = (16 - buffer.position() % 16) % 16;
+					if (buffer.remaining() <= padding) {
+						blobVolumes.release(node);
+						node = -1;
+						continue;
+					}
+					for (int i = 0; i < padding; i++)
+						buffer.put((byte) 0);
+
+					long block = Blob.asBlock(node, buffer.position());
+					int size = Math.min(chunk.length - off, buffer.remaining());
+					buffer.put(chunk.encoded, off, size);
+					blob = blob.append(block, size,
+							size == chunk.length ? chunk.blockHash : blockHash(
+									chunk.encoded, off, size));
+					off += size;
+
+					if (!buffer.hasRemaining()) {
+						blobVolumes.release(node);
+						node = -1;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			for (Future<Chunk> future : pending)
+				future.cancel(false);
+			if (node != -1)
+				blobVolumes.release(node);
+		}
+
+		return blob.append(blobSize, streamDigest == null ? null
+				: merge((byte) 1, streamDigest.digest()), // 1: sha-256
+				outEncoding);
+	}
+
+	private static int readChunk(InputStream stream, byte[] bytes)
+			throws IOException {
+		int length = 0;
+		while (length < bytes.length) {
+			int read = stream.read(bytes, length, bytes.length - length);
+			if (read == -1)
+				break;
+			length += read;
+		}
+		return length;
+	}
+
+	private static Chunk encodeChunk(StreamEncoding encoding, int level,
+			byte[] bytes, int length, long position) throws IOException {
+		if (StreamEncoding.IDENTITY.equals(encoding))
+			return new Chunk(bytes, length, blockHash(bytes, 0, length),
+					position);
+
+		OutputReader postEncoder = new OutputReader();
+		OutputStream encoder = encoding.createOutputStream(postEncoder, level);
+		encoder.write(bytes, 0, length);
+		encoder.close();
+		byte[] encoded = postEncoder.bos.toByteArray();
+		int encodedLength = postEncoder.bos.size();
+		return new Chunk(encoded, encodedLength, blockHash(encoded, 0,
+				encodedLength), position);
+	}
+
+	private static byte[] blockHash(byte[] bytes, int off, int len) {
+		MessageDigest blockDigest = sha256();
+		blockDigest.update(bytes, off, len);
+		return merge((byte) 2, // 2: sha-256-128
+				Arrays.copyOfRange(blockDigest.digest(), 0, 16));
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 message digest unavailable");
+		}
+	}
+
+	private static class Chunk {
+		final byte[] encoded;
+		final int length;
+		final byte[] blockHash;
+		final long position;
+
+		Chunk(byte[] encoded, int length, byte[] blockHash, long position) {
+			this.encoded = encoded;
+			this.length = length;
+			this.blockHash = blockHash;
+			this.position = position;
+		}
+	}
+
 	private static class OutputReader extends OutputStream {
 		private ByteArrayOutputStream bos = new ByteArrayOutputStream(
 				BLOB_STREAM_BUFFER_SIZE) {
@@ -336,6 +1019,15 @@ public final class StoreImpl implements StoreServer {
 		}
 	}
 
+	static byte[] sha256Hash(byte[] digest) {
+		return merge((byte) 1, digest); // 1: sha-256
+	}
+
+	static byte[] blockHash(byte[] digest) {
+		return merge((byte) 2, // 2: sha-256-128
+				Arrays.copyOfRange(digest, 0, 16));
+	}
+
 	private static byte[] merge(byte b1, byte[] a2) {
 		byte[] result = new byte[1 + a2.length];
 		result[0] = b1;
@@ -348,36 +1040,147 @@ public final class StoreImpl implements StoreServer {
 		final long block;
 		final long blockSize;
 		final long streamRead;
+		final byte[] blockHash;
 
-		public Block(boolean isLast, long block, long blockSize, long streamRead) {
+		public Block(boolean isLast, long block, long blockSize,
+				long streamRead, byte[] blockHash) {
 			this.isLast = isLast;
 			this.block = block;
 			this.blockSize = blockSize;
 			this.streamRead = streamRead;
+			this.blockHash = blockHash;
 		}
 	}
 
+	// Blocks written while deduplicating end at multiples of this many
+	// encoded bytes, so that repeated content yields identical blocks
+	private static final int DEDUP_BLOCK_SIZE = 64 * 1024;
+
+	private volatile BlockIndex blockIndex;
+
+	// The index is kept in memory only, and rebuilt from the blobs of the
+	// stored entries when deduplication is turned on
+	public void setDeduplication(boolean deduplication) {
+		BlockIndex blockIndex = null;
+		if (deduplication) {
+			blockIndex = new BlockIndex();
+			blobCompactor.index(blockIndex);
+		}
+		this.blockIndex = blockIndex;
+	}
+
+	public void release(Blob blob) {
+		BlockIndex blockIndex = this.blockIndex;
+		if (blockIndex != null)
+			for (int i = 0; i < blob.count(); i++)
+				blockIndex.release(blob.block(i));
+	}
+
+	// Blocks not referenced through a blob field of any entry are garbage
+	// once the grace period has passed since they were written. Volumes
+	// mostly filled with garbage have their live blocks moved elsewhere,
+	// and the entries referring to them rewritten (returned like puts), and
+	// are cleared for reuse one grace period later.
+	public List<MapKeyValue> compact() {
+		return compact(null);
+	}
+
+	// The guard is entered around the rewrites of each region
+	public List<MapKeyValue> compact(CompactionGuard guard) {
+		return blobCompactor.compact(blockIndex, uploads, guard);
+	}
+
+	// Must be longer than blobs take from being written to being put, and
+	// from being got to being opened for reading (or, with readBuffers, to
+	// being read); open streams keep their volumes regardless
+	public void setCompactionGracePeriod(long gracePeriod, TimeUnit unit) {
+		blobCompactor.setGracePeriod(unit.toMillis(gracePeriod));
+	}
+
+	// Runs compact() periodically; stores that log their writes schedule
+	// their own compaction instead (see DiskStore.scheduleCompaction)
+	public ScheduledFuture<?> scheduleCompaction(
+			ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		}, period, period, unit);
+	}
+
+	// While deduplicating, blocks are encoded and hashed in the staging
+	// buffer first, so that content already stored isn't copied into a
+	// volume at all
 	private Block writeBlock(InputStream stream, MessageDigest streamDigest,
 			MessageDigest blockDigest, OutputStream encoder,
-			OutputReader postEncoder) {
-		ByteBuffer buffer = null;
-		long node = 0;
-		if (blobBuffers == null)
-			blobBuffers = Collections
-					.synchronizedList(new ArrayList<ByteBuffer>());
-		else
-			for (ByteBuffer b : blobBuffers)
-				if (b.remaining() > BLOB_MIN_REMAINING
-						+ (b.position() % 16 == 0 ? 0
-								: (16 - b.position() % 16))) {
-					buffer = b;
-					break;
-				} else
-					node++;
-		if (buffer == null)
-			blobBuffers.add(buffer = ByteBuffer
-					.allocateDirect(BLOB_VOLUME_SIZE));
+			OutputReader postEncoder, long encodedSize, ByteBuffer staging) {
+		BlockIndex blockIndex = this.blockIndex;
+		if (blockIndex != null && staging != null) {
+			staging.clear();
+			staging.limit(DEDUP_BLOCK_SIZE
+					- (int) (encodedSize % DEDUP_BLOCK_SIZE));
+			Block block = writeBlock(stream, streamDigest, blockDigest,
+					encoder, postEncoder, 0, staging);
+			if (block.blockSize == 0)
+				return block;
+
+			staging.flip();
+			long existing = blockIndex.reference(block.blockHash, staging,
+					blobVolumes);
+			if (existing == -1) {
+				existing = place(staging);
+				blockIndex.add(block.blockHash, existing,
+						(int) block.blockSize);
+			}
+			return new Block(block.isLast, existing, block.blockSize,
+					block.streamRead, block.blockHash);
+		}
+
+		// The volume is ours alone until released, so concurrent writers
+		// never contend for its position
+		int node = blobVolumes.acquire();
+		try {
+			return writeBlock(stream, streamDigest, blockDigest, encoder,
+					postEncoder, node, blobVolumes.get(node));
+		} finally {
+			blobVolumes.release(node);
+		}
+	}
 
+	// Copies a staged block into a volume with room for all of it; volumes
+	// too full for it are kept until then, so that they aren't handed out
+	// again
+	private long place(ByteBuffer block) {
+		List<Integer> full = new ArrayList<Integer>();
+		try {
+			for (;;) {
+				int node = blobVolumes.acquire();
+				ByteBuffer buffer = blobVolumes.get(node);
+				int padding = (16 - buffer.position() % 16) % 16;
+				if (buffer.remaining() < padding + block.remaining()) {
+					full.add(node);
+					continue;
+				}
+				try {
+					for (int i = 0; i < padding; i++)
+						buffer.put((byte) 0);
+					long to = Blob.asBlock(node, buffer.position());
+					buffer.put(block);
+					return to;
+				} finally {
+					blobVolumes.release(node);
+				}
+			}
+		} finally {
+			for (Integer node : full)
+				blobVolumes.release(node);
+		}
+	}
+
+	private Block writeBlock(InputStream stream, MessageDigest streamDigest,
+			MessageDigest blockDigest, OutputStream encoder,
+			OutputReader postEncoder, int node, ByteBuffer buffer) {
 		// 16 byte alignment
 		if (buffer.position() % 16 != 0)
 			for (int i = 16 - buffer.position() % 16; i > 0; i--)
@@ -395,7 +1198,11 @@ public final class StoreImpl implements StoreServer {
 			if (encoder != postEncoder) // identity encoding
 				bytes = new byte[BLOB_STREAM_BUFFER_SIZE];
 			for (;;) {
-				if (bytes == null) { // Optimization for identity encoding
+				if (postEncoder.bos.size() > 0) {
+					// We're on a new block, but still have encoded data, so
+					// let's output that before reading more
+					streamRead = 0;
+				} else if (bytes == null) { // Optimization for identity enc.
 					// Read directly into encoded buffer
 					byte[] encoded = postEncoder.bos.toByteArray();
 					streamRead = stream.read(encoded, 0, encoded.length);
@@ -405,18 +1212,13 @@ public final class StoreImpl implements StoreServer {
 						// same array and the same offset)
 						postEncoder.write(encoded, 0, streamRead);
 
-						// Block and stream digests are updated with the same
-						// data as unencoded and encoded data are equivalent
-						blockDigest.update(encoded, 0, streamRead);
+						// Unencoded and encoded data are equivalent; the block
+						// digest is updated below, as the data is output
 						if (streamDigest != null)
 							streamDigest.update(encoded, 0, streamRead);
 
 						totalStreamRead += streamRead;
 					}
-				} else if (postEncoder.bos.size() > 0) {
-					// We're on a new block, but still have encoded data, so
-					// let's output that before encoding more
-					streamRead = 0;
 				} else if (-1 != (streamRead = stream.read(bytes, 0,
 						bytes.length))) {
 					// Feed the encoder
@@ -459,8 +1261,9 @@ public final class StoreImpl implements StoreServer {
 			throw new RuntimeException(e);
 		}
 
+		byte[] blockHash = blockHash(blockDigest.digest());
 		return new Block(streamRead == -1 && postEncoder.bos.size() == 0,
-				block, blockSize, totalStreamRead);
+				block, blockSize, totalStreamRead, blockHash);
 	}
 
 }
@@ -16,6 +16,8 @@
 package org.openapplication.store;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
 public interface StoreServer {
@@ -24,8 +26,16 @@ public interface StoreServer {
 
 	List<MapKeyValue> remove(Field<?>... fields);
 
+	List<MapKeyValue> putAll(List<Field<?>[]> entries);
+
+	List<MapKeyValue> removeAll(List<Field<?>[]> entries);
+
 	Entry get(Field<?>... fields);
 
+	List<Entry> getAll(List<Field<?>[]> keys);
+
+	PreparedQuery prepare(Field<?>... fields);
+
 	Entries iterate(Entry first, Entry last, Field<?>... fields);
 
 	Entries iterateNext(byte[] subsequent, Entry first, Entry last,
@@ -33,7 +43,18 @@ public interface StoreServer {
 
 	InputStream read(Blob blob);
 
+	InputStream read(Blob blob, long offset, long length);
+
+	long read(Blob blob, WritableByteChannel channel);
+
+	ByteBuffer[] readBuffers(Blob blob);
+
 	Blob write(InputStream stream, StreamEncoding inEncoding,
 			StreamEncoding outEncoding);
 
+	Blob append(Blob blob, InputStream stream);
+
+	MultipartUpload beginUpload(StreamEncoding inEncoding,
+			StreamEncoding outEncoding);
+
 }
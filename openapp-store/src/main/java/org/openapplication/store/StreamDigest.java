@@ -15,15 +15,17 @@
  */
 package org.openapplication.store;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 public final class StreamDigest {
 
+	private static final int BUFFER_SIZE = 8 * 1024;
+
 	private final MessageDigest digest;
 
 	public StreamDigest() {
@@ -50,87 +52,109 @@ public final class StreamDigest {
 		if (StreamEncoding.IDENTITY.equals(encoding))
 			return new DigestInputStream(in, digest);
 
-		final ByteArrayOutputStream bos = new ByteArrayOutputStream() {
-			@Override
-			public byte[] toByteArray() {
-				return buf;
-			}
-		};
-		final InputStream digestIn = encoding
-				.createInputStream(new InputStream() {
-					@Override
-					public int read() throws IOException {
-						int read = in.read();
-						if (read != -1)
-							bos.write(read);
-						return read;
-					}
-				});
-		return new InputStream() {
-			int pos = 0;
-
-			@Override
-			public int read() throws IOException {
-				if (bos.size() > 0) {
-					byte[] buf = bos.toByteArray();
-					int read = buf[pos] & 0xff;
-					if (pos + 1 == bos.size()) {
-						bos.reset();
-						pos = 0;
-					} else
-						pos++;
-					return read;
-				} else {
-					int digestRead;
-					while (bos.size() == 0)
-						if (-1 != (digestRead = digestIn.read()))
-							digest.update((byte) digestRead);
-						else
-							break;
-					if (bos.size() == 0)
-						return -1;
-					byte[] buf = bos.toByteArray();
-					int read = buf[0] & 0xff;
-					if (1 == bos.size())
-						bos.reset();
-					else
-						pos++;
+		return new DecodingDigestInputStream(in, encoding);
+	}
+
+	// Passes the encoded stream through, while decoding a copy of it to feed
+	// the digest
+	private final class DecodingDigestInputStream extends InputStream {
+
+		// Encoded bytes read by the decoder but not yet returned
+		private byte[] pending = new byte[BUFFER_SIZE];
+
+		private int pendingPos = 0;
+
+		private int pendingCount = 0;
+
+		private final byte[] decoded = new byte[BUFFER_SIZE];
+
+		private final InputStream decoder;
+
+		private boolean eof = false;
+
+		DecodingDigestInputStream(final InputStream in,
+				StreamEncoding encoding) throws IOException {
+			decoder = encoding.createInputStream(new InputStream() {
+				@Override
+				public int read() throws IOException {
+					int read = in.read();
+					if (read != -1)
+						append(new byte[] { (byte) read }, 0, 1);
 					return read;
 				}
-			}
 
-			@Override
-			public int read(byte[] b, int off, int len) throws IOException {
-				if (bos.size() > 0) {
-					byte[] buf = bos.toByteArray();
-					int read = Math.min(len, bos.size() - pos);
-					System.arraycopy(buf, pos, b, off, read);
-					if (pos + read == bos.size()) {
-						bos.reset();
-						pos = 0;
-					} else
-						pos += read;
-					return read;
-				} else {
-					int digestRead;
-					while (bos.size() < len)
-						if (-1 != (digestRead = digestIn.read()))
-							digest.update((byte) digestRead);
-						else
-							break;
-					if (bos.size() == 0)
-						return -1;
-					byte[] buf = bos.toByteArray();
-					int read = Math.min(len, bos.size());
-					System.arraycopy(buf, 0, b, off, read);
-					if (read == bos.size())
-						bos.reset();
-					else
-						pos += read;
+				@Override
+				public int read(byte[] b, int off, int len)
+						throws IOException {
+					int read = in.read(b, off, len);
+					if (read > 0)
+						append(b, off, read);
 					return read;
 				}
+
+				@Override
+				public int available() throws IOException {
+					return in.available();
+				}
+			});
+		}
+
+		private void append(byte[] b, int off, int len) {
+			if (pendingCount + len > pending.length)
+				pending = Arrays.copyOf(pending, Math.max(
+						pending.length * 2, pendingCount + len));
+			System.arraycopy(b, off, pending, pendingCount, len);
+			pendingCount += len;
+		}
+
+		// Decodes until there are encoded bytes to return
+		private boolean fill() throws IOException {
+			while (pendingPos == pendingCount) {
+				if (eof)
+					return false;
+				int read = decoder.read(decoded, 0, decoded.length);
+				if (read == -1)
+					eof = true;
+				else
+					digest.update(decoded, 0, read);
 			}
-		};
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			int read = pending[pendingPos++] & 0xff;
+			if (pendingPos == pendingCount)
+				pendingPos = pendingCount = 0;
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int read = Math.min(len, pendingCount - pendingPos);
+			System.arraycopy(pending, pendingPos, b, off, read);
+			pendingPos += read;
+			if (pendingPos == pendingCount)
+				pendingPos = pendingCount = 0;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return pendingCount - pendingPos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			decoder.close();
+		}
+
 	}
 
 }
@@ -18,17 +18,50 @@ package org.openapplication.store;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.github.luben.zstd.util.Native;
 
 public enum StreamEncoding {
 
-	IDENTITY((byte) 0), GZIP((byte) 1);
+	IDENTITY((byte) 0), GZIP((byte) 1),
+
+	// zlib streams at different compression levels; all three decode the
+	// same way, so the level only matters when writing, and any level can
+	// be given to createOutputStream
+	DEFLATE((byte) 2, Deflater.DEFAULT_COMPRESSION),
+
+	DEFLATE_FAST((byte) 3, Deflater.BEST_SPEED),
+
+	DEFLATE_BEST((byte) 4, Deflater.BEST_COMPRESSION),
+
+	LZ4((byte) 5),
+
+	// Requires zstd-jni (com.github.luben:zstd-jni), an optional dependency,
+	// on the class path
+	ZSTD((byte) 6);
+
+	// Stands for the encoding's own level
+	public static final int DEFAULT_LEVEL = Integer.MIN_VALUE;
 
 	private final byte id;
 
+	private final int level;
+
 	private StreamEncoding(byte id) {
+		this(id, DEFAULT_LEVEL);
+	}
+
+	private StreamEncoding(byte id, int level) {
 		this.id = id;
+		this.level = level;
 	}
 
 	public byte toByte() {
@@ -41,28 +74,151 @@ public enum StreamEncoding {
 			return IDENTITY;
 		case 1:
 			return GZIP;
+		case 2:
+			return DEFLATE;
+		case 3:
+			return DEFLATE_FAST;
+		case 4:
+			return DEFLATE_BEST;
+		case 5:
+			return LZ4;
+		case 6:
+			return ZSTD;
 		}
 		throw new IllegalArgumentException();
 	}
 
+	// Whether separately encoded parts, concatenated, decode as one stream
+	boolean isConcatenable() {
+		switch (this) {
+		case DEFLATE:
+		case DEFLATE_FAST:
+		case DEFLATE_BEST:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	public boolean isAvailable() {
+		if (this != ZSTD)
+			return true;
+		try {
+			Zstd.load();
+			return true;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
 	public InputStream createInputStream(InputStream in) throws IOException {
 		switch (this) {
 		case IDENTITY:
 			return in;
 		case GZIP:
 			return new GZIPInputStream(in);
+		case DEFLATE:
+		case DEFLATE_FAST:
+		case DEFLATE_BEST:
+			return new InflaterInputStream(in);
+		case LZ4:
+			return new Lz4.Lz4InputStream(in);
+		case ZSTD:
+			try {
+				return Zstd.createInputStream(in);
+			} catch (LinkageError e) {
+				throw new IOException("Zstandard codec unavailable", e);
+			}
 		}
 		throw new RuntimeException();
 	}
 
 	public OutputStream createOutputStream(OutputStream out) throws IOException {
+		return createOutputStream(out, DEFAULT_LEVEL);
+	}
+
+	// The level applies to GZIP and DEFLATE (0-9) and ZSTD (1-22); the other
+	// encodings have none
+	public OutputStream createOutputStream(OutputStream out, int level)
+			throws IOException {
+		if (level == DEFAULT_LEVEL)
+			level = this.level;
 		switch (this) {
 		case IDENTITY:
 			return out;
 		case GZIP:
-			return new GZIPOutputStream(out);
+			if (level == DEFAULT_LEVEL)
+				return new GZIPOutputStream(out);
+			final int gzipLevel = level;
+			return new GZIPOutputStream(out) {
+				{
+					// Takes effect as nothing has been compressed yet
+					def.setLevel(gzipLevel);
+				}
+			};
+		case DEFLATE:
+		case DEFLATE_FAST:
+		case DEFLATE_BEST:
+			final Deflater deflater = new Deflater(level);
+			return new DeflaterOutputStream(out, deflater) {
+				@Override
+				public void close() throws IOException {
+					// A deflater passed in is not ended by close()
+					try {
+						super.close();
+					} finally {
+						deflater.end();
+					}
+				}
+			};
+		case LZ4:
+			return new Lz4.Lz4OutputStream(out);
+		case ZSTD:
+			try {
+				return Zstd.createOutputStream(out, level);
+			} catch (LinkageError e) {
+				throw new IOException("Zstandard codec unavailable", e);
+			}
 		}
 		throw new RuntimeException();
 	}
 
+	// GZIP output is compressed in parallel on the executor, if one is given
+	public OutputStream createOutputStream(OutputStream out, Executor executor)
+			throws IOException {
+		return createOutputStream(out, DEFAULT_LEVEL, executor);
+	}
+
+	public OutputStream createOutputStream(OutputStream out, int level,
+			Executor executor) throws IOException {
+		if (this == GZIP && executor != null)
+			return new ParallelGZIPOutputStream(out, executor,
+					level != DEFAULT_LEVEL ? level
+							: Deflater.DEFAULT_COMPRESSION,
+					ParallelGZIPOutputStream.DEFAULT_CHUNK_SIZE);
+		return createOutputStream(out, level);
+	}
+
+	// Refers to zstd-jni, so that it is only loaded once ZSTD is used; a
+	// LinkageError is thrown if it isn't on the class path
+	private static final class Zstd {
+
+		static void load() {
+			Native.load();
+		}
+
+		static InputStream createInputStream(InputStream in)
+				throws IOException {
+			return new ZstdInputStream(in);
+		}
+
+		static OutputStream createOutputStream(OutputStream out, int level)
+				throws IOException {
+			if (level == DEFAULT_LEVEL)
+				return new ZstdOutputStream(out);
+			return new ZstdOutputStream(out, level);
+		}
+
+	}
+
 }
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+// Digests the decoded content of an encoded stream on an executor, from
+// whatever is read from the stream. The stream is read into buffers of
+// this digest, which are handed over to the decoder as they are and reused
+// once decoded.
+final class TeeDigest implements Runnable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Buffers read or being decoded at most
+	private static final int BUFFERS = 8;
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	// Buffers read but not yet decoded, in order, then END
+	private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(
+			BUFFERS + 1);
+
+	// Buffers decoded, to be read into again
+	private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(
+			BUFFERS);
+
+	private final StreamEncoding encoding;
+
+	private final MessageDigest digest;
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private Tee tee;
+
+	private long size = 0;
+
+	private Exception failure;
+
+	// The decoder waits for the stream to be read, so the executor must not
+	// be one the reader waits for
+	TeeDigest(StreamEncoding encoding, Executor executor) {
+		this.encoding = encoding;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 message digest unavailable");
+		}
+		executor.execute(this);
+	}
+
+	InputStream tee(InputStream in) {
+		return tee = new Tee(in);
+	}
+
+	// Ends the copied stream (also when writing failed) and waits for the
+	// digest
+	void finish() {
+		boolean interrupted = false;
+		if (tee != null)
+			try {
+				tee.handOver(tee.pos);
+			} catch (IOException e) {
+				interrupted = true;
+			}
+		for (;;)
+			try {
+				filled.put(END);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		for (;;)
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	// Unencoded size
+	long size() {
+		check();
+		return size;
+	}
+
+	byte[] hash() {
+		check();
+		byte[] hash = digest.digest();
+		byte[] result = new byte[1 + hash.length];
+		result[0] = 1; // 1: sha-256
+		System.arraycopy(hash, 0, result, 1, hash.length);
+		return result;
+	}
+
+	private void check() {
+		if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	@Override
+	public void run() {
+		InputStream copy = new InputStream() {
+			ByteBuffer buffer = null;
+
+			private boolean next() throws IOException {
+				while (buffer == null || !buffer.hasRemaining()) {
+					if (buffer == END)
+						return false;
+					if (buffer != null)
+						free.add(buffer.array());
+					try {
+						buffer = filled.take();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public int read() throws IOException {
+				return next() ? buffer.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (!next())
+					return -1;
+				int read = Math.min(len, buffer.remaining());
+				buffer.get(b, off, read);
+				return read;
+			}
+		};
+
+		try {
+			InputStream decoder = encoding.createInputStream(copy);
+			byte[] buffer = new byte[8 * 1024];
+			int read;
+			while ((read = decoder.read(buffer, 0, buffer.length)) != -1) {
+				digest.update(buffer, 0, read);
+				size += read;
+			}
+		} catch (Exception e) {
+			failure = e;
+		} finally {
+			// Keep the reader from waiting for a free buffer
+			try {
+				byte[] buffer = new byte[8 * 1024];
+				while (copy.read(buffer, 0, buffer.length) != -1)
+					;
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+			done.countDown();
+		}
+	}
+
+	// Reads the stream into a buffer, serves reads from it, and hands it
+	// over to the decoder once all of it has been read
+	private final class Tee extends InputStream {
+
+		private final InputStream in;
+
+		private byte[] buffer;
+
+		private int length;
+
+		int pos;
+
+		private int allocated = 0;
+
+		Tee(InputStream in) {
+			this.in = in;
+		}
+
+		private boolean fill() throws IOException {
+			if (buffer != null && pos < length)
+				return true;
+			handOver(length);
+			if ((buffer = free.poll()) == null)
+				if (allocated < BUFFERS) {
+					buffer = new byte[BUFFER_SIZE];
+					allocated++;
+				} else
+					try {
+						buffer = free.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException(e);
+					}
+			pos = 0;
+			length = in.read(buffer, 0, buffer.length);
+			if (length > 0)
+				return true;
+			length = 0;
+			return false;
+		}
+
+		// The first bytes of the buffer, if any; the buffer is then no
+		// longer this stream's
+		void handOver(int count) throws IOException {
+			if (buffer == null)
+				return;
+			if (count == 0)
+				free.add(buffer);
+			else
+				try {
+					filled.put(ByteBuffer.wrap(buffer, 0, count));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			buffer = null;
+			length = pos = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? buffer[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int read = Math.min(len, length - pos);
+			System.arraycopy(buffer, pos, b, off, read);
+			pos += read;
+			return read;
+		}
+
+	}
+
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.nio.ByteBuffer;
+
+public interface VolumeProvider {
+
+	int count();
+
+	// The returned buffer's position is the volume's allocation point
+	ByteBuffer get(int node);
+
+	// The volume's allocation point, without having to read the volume in
+	int used(int node);
+
+	// Created volumes start out acquired
+	int create();
+
+	// The volume is about to be written to, and has to stay the same buffer
+	// until released
+	void acquire(int node);
+
+	void release(int node);
+
+	// Frees all of the volume's space; its contents are no longer read
+	void clear(int node);
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class VolumeProviderImpl implements VolumeProvider {
+
+	private final int volumeSize;
+
+	private final List<ByteBuffer> volumes;
+
+	public VolumeProviderImpl(int volumeSize) {
+		this.volumeSize = volumeSize;
+		volumes = new CopyOnWriteArrayList<ByteBuffer>();
+	}
+
+	@Override
+	public int count() {
+		return volumes.size();
+	}
+
+	@Override
+	public ByteBuffer get(int node) {
+		return volumes.get(node);
+	}
+
+	@Override
+	public int used(int node) {
+		return volumes.get(node).position();
+	}
+
+	@Override
+	public synchronized int create() {
+		volumes.add(ByteBuffer.allocateDirect(volumeSize));
+		return volumes.size() - 1;
+	}
+
+	@Override
+	public void acquire(int node) {
+	}
+
+	@Override
+	public void release(int node) {
+	}
+
+	@Override
+	public void clear(int node) {
+		volumes.get(node).clear();
+	}
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.openapplication.store.Entry;
+import org.openapplication.store.Field;
+import org.openapplication.store.test.StoreImplTest.Id;
+import org.openapplication.store.test.StoreImplTest.Name;
+
+public class EntryTest {
+
+	private static final Field<?>[] LAYOUT = new Field<?>[] { Id.PERSON,
+			Name.PERSON, Id.COMPANY, Name.COMPANY };
+
+	@Test
+	public void testLazyEntry() {
+		Entry source = new Entry(Id.PERSON.value(7),
+				Name.PERSON.value("Jane"), Id.COMPANY.value(3),
+				Name.COMPANY.value("Acme"));
+		byte[] bytes = source.getBytes(LAYOUT);
+
+		Entry lazy = new Entry(bytes, LAYOUT);
+		assertEquals("Acme", lazy.get(Name.COMPANY));
+		assertEquals((Integer) 7, lazy.get(Id.PERSON));
+		assertEquals("Jane", lazy.get(Name.PERSON));
+		assertEquals((Integer) 3, lazy.get(Id.COMPANY));
+		assertTrue(lazy.containsFields(LAYOUT));
+		assertTrue(lazy.containsFieldValues(Id.COMPANY.value(3)));
+		assertFalse(lazy.containsFieldValues(Id.COMPANY.value(4)));
+		assertArrayEquals(bytes, lazy.getBytes(LAYOUT));
+	}
+
+	@Test
+	public void testMergedEntry() {
+		Entry key = new Entry(new Entry(Id.PERSON.value(1)).getBytes(Id.PERSON),
+				Id.PERSON);
+		Entry merged = new Entry(new Entry(key, new Entry(
+				Name.PERSON.value("John"))), new Entry(Id.PERSON.value(2)));
+
+		assertEquals((Integer) 2, merged.get(Id.PERSON));
+		assertEquals("John", merged.get(Name.PERSON));
+		assertNull(merged.get(Id.COMPANY));
+		assertFalse(merged.containsFields(Id.COMPANY));
+	}
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openapplication.store.Definition;
+import org.openapplication.store.OffHeapMap;
+import org.openapplication.store.OffHeapMapProvider;
+import org.openapplication.store.StoreClient;
+import org.openapplication.store.StoreImpl;
+
+public class OffHeapMapProviderTest extends StoreImplTest {
+
+	private OffHeapMapProvider mapProvider;
+
+	@Before
+	public void setUp() throws Exception {
+		mapProvider = new OffHeapMapProvider();
+		store = new StoreClient(new StoreImpl(mapProvider, new Definition[] {
+				PERSON, COMPANY, MEMBER, MEMBER_OF }));
+	}
+
+	@Test
+	public void testMemoryUsage() {
+		assertEquals(0, mapProvider.getMemoryUsage(PERSON.toKeyUuid()));
+		store.put(Id.PERSON.value(1), Name.PERSON.value("John"));
+		assertEquals(OffHeapMap.DEFAULT_CHUNK_SIZE,
+				mapProvider.getMemoryUsage(PERSON.toKeyUuid()));
+		assertEquals(4, mapProvider.getMemoryUsage().size());
+	}
+
+	@Test
+	public void testNavigation() {
+		OffHeapMap map = new OffHeapMap(64, null);
+		for (int i = 9; i >= 0; i--)
+			map.put(new byte[] { (byte) (i * 2) }, new byte[] { (byte) i });
+
+		assertEquals(10, map.size());
+		assertArrayEquals(new byte[] { 3 }, map.get(new byte[] { 6 }));
+		assertNull(map.get(new byte[] { 7 }));
+		assertArrayEquals(new byte[] { 8 }, map.ceilingKey(new byte[] { 7 }));
+		assertArrayEquals(new byte[] { 6 }, map.lowerKey(new byte[] { 7 }));
+
+		ConcurrentNavigableMap<byte[], byte[]> sub = map.subMap(
+				new byte[] { 4 }, true, new byte[] { 10 }, false).descendingMap();
+		assertEquals(3, sub.size());
+		assertArrayEquals(new byte[] { 8 }, sub.firstKey());
+		assertArrayEquals(new byte[] { 4 }, sub.lastKey());
+		assertArrayEquals(new byte[] { 6 }, sub.higherKey(new byte[] { 8 }));
+		assertNull(sub.higherKey(new byte[] { 4 }));
+
+		Iterator<Map.Entry<byte[], byte[]>> entries = sub.entrySet().iterator();
+		entries.next();
+		entries.remove();
+		assertNull(map.get(new byte[] { 8 }));
+		assertEquals(9, map.size());
+	}
+
+	@Test
+	public void testCompaction() {
+		OffHeapMap map = new OffHeapMap(64, null);
+		byte[] key = new byte[] { 1 };
+		for (int i = 0; i < 100; i++)
+			map.put(key, new byte[] { (byte) i });
+		assertTrue(map.replace(key, new byte[] { 99 }, new byte[] { 100 }));
+		assertFalse(map.replace(key, new byte[] { 99 }, new byte[] { 101 }));
+
+		assertTrue(map.getAllocatedBytes() < 100 * 10);
+		map.compact();
+		assertEquals(0, map.getGarbageBytes());
+		assertEquals(10, map.getAllocatedBytes());
+		assertArrayEquals(new byte[] { 100 }, map.get(key));
+		assertEquals(1, map.size());
+	}
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openapplication.store.StreamEncoding;
+
+public class ParallelGZIPOutputStreamTest {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(1);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 2 * 1024 * 1024)
+			text.append("word").append(random.nextInt(5000)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		OutputStream out = StreamEncoding.GZIP.createOutputStream(gzipped,
+				executor);
+		out.write(content, 0, 1000);
+		out.flush();
+		for (int i = 1000; i < 2000; i++)
+			out.write(content[i]);
+		out.write(content, 2000, content.length - 2000);
+		out.close();
+		assertTrue(gzipped.size() < content.length / 2);
+
+		assertArrayEquals(content, StoreImplTest.readFully(new GZIPInputStream(
+				new ByteArrayInputStream(gzipped.toByteArray()))));
+		assertArrayEquals(content, StoreImplTest.readFully(StreamEncoding.GZIP
+				.createInputStream(new ByteArrayInputStream(gzipped
+						.toByteArray()))));
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		StreamEncoding.GZIP.createOutputStream(gzipped, executor).close();
+		assertEquals(0, StoreImplTest.readFully(new GZIPInputStream(
+				new ByteArrayInputStream(gzipped.toByteArray()))).length);
+	}
+
+}
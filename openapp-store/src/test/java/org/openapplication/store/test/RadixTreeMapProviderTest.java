@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 Erik Isaksson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openapplication.store.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openapplication.store.ByteArrayComparator;
+import org.openapplication.store.Definition;
+import org.openapplication.store.RadixTreeMap;
+import org.openapplication.store.RadixTreeMapProvider;
+import org.openapplication.store.StoreClient;
+import org.openapplication.store.StoreImpl;
+
+public class RadixTreeMapProviderTest extends StoreImplTest {
+
+	@Before
+	public void setUp() throws Exception {
+		store = new StoreClient(new StoreImpl(new RadixTreeMapProvider(),
+				new Definition[] { PERSON, COMPANY, MEMBER, MEMBER_OF }));
+	}
+
+	@Test
+	public void testAgainstTreeMap() {
+		Random random = new Random(7);
+		RadixTreeMap map = new RadixTreeMap();
+		NavigableMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(
+				ByteArrayComparator.INSTANCE);
+
+		for (int i = 0; i < 20000; i++) {
+			// Short keys over a small alphabet give shared prefixes, prefix
+			// keys and nodes of every size
+			byte[] key = new byte[random.nextInt(4)];
+			for (int j = 0; j < key.length; j++)
+				key[j] = (byte) (random.nextInt(3) == 0 ? random.nextInt(256)
+						: random.nextInt(4));
+			byte[] value = new byte[] { (byte) i };
+
+			if (random.nextInt(3) == 0)
+				assertArrayEquals(expected.remove(key), map.remove(key));
+			else
+				assertArrayEquals(expected.put(key, value), map.put(key, value));
+
+			if (i % 1000 == 0) {
+				assertEquals(expected.size(), map.size());
+				assertSameOrder(expected.entrySet().iterator(), map.entrySet()
+						.iterator());
+				assertSameOrder(expected.descendingMap().entrySet().iterator(),
+						map.descendingMap().entrySet().iterator());
+			}
+
+			byte[] probe = new byte[] { (byte) random.nextInt(5),
+					(byte) random.nextInt(5) };
+			assertArrayEquals(expected.ceilingKey(probe), map.ceilingKey(probe));
+			assertArrayEquals(expected.higherKey(probe), map.higherKey(probe));
+			assertArrayEquals(expected.floorKey(probe), map.floorKey(probe));
+			assertArrayEquals(expected.lowerKey(probe), map.lowerKey(probe));
+			assertSameOrder(
+					expected.subMap(new byte[] { 0 }, false, probe, true)
+							.entrySet().iterator(),
+					map.subMap(new byte[] { 0 }, false, probe, true).entrySet()
+							.iterator());
+		}
+	}
+
+	private static void assertSameOrder(
+			Iterator<Map.Entry<byte[], byte[]>> expected,
+			Iterator<Map.Entry<byte[], byte[]>> actual) {
+		while (expected.hasNext()) {
+			assertTrue(actual.hasNext());
+			Map.Entry<byte[], byte[]> entry = expected.next(), other = actual
+					.next();
+			assertArrayEquals(entry.getKey(), other.getKey());
+			assertArrayEquals(entry.getValue(), other.getValue());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+}
@@ -18,12 +18,26 @@ package org.openapplication.store.test;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -33,6 +47,9 @@ import org.openapplication.store.Entry;
 import org.openapplication.store.Field;
 import org.openapplication.store.FieldRange;
 import org.openapplication.store.FieldValue;
+import org.openapplication.store.MapKeyValue;
+import org.openapplication.store.MultipartUpload;
+import org.openapplication.store.PreparedQuery;
 import org.openapplication.store.Store;
 import org.openapplication.store.StoreClient;
 import org.openapplication.store.StoreImpl;
@@ -219,6 +236,53 @@ public class StoreImplTest {
 		assertNotNull(acme);
 	}
 
+	@Test
+	public void testPutAll() {
+		List<Field<?>[]> entries = new ArrayList<Field<?>[]>();
+		for (int i = 209; i >= 200; i--)
+			entries.add(new Field<?>[] { Id.PERSON.value(i),
+					Name.PERSON.value("Person #" + i) });
+		entries.add(new Field<?>[] { Id.COMPANY.value(200),
+				Name.COMPANY.value("Initech") });
+		entries.add(new Field<?>[] { Id.COMPANY.value(200),
+				Id.PERSON.value(200) });
+		entries.add(new Field<?>[] { Id.PERSON.value(200),
+				Name.PERSON.value("Peter") });
+
+		assertEquals(14, store.putAll(entries).size());
+
+		assertEquals("Peter", store.get(Id.PERSON.value(200))
+				.get(Name.PERSON));
+		assertEquals("Person #209",
+				store.get(Id.PERSON.value(209)).get(Name.PERSON));
+		assertEquals("Initech",
+				store.get(Id.COMPANY.value(200)).get(Name.COMPANY));
+		assertNotNull(store.get(Id.COMPANY.value(200), Id.PERSON.value(200)));
+		assertNotNull(store.get(Id.PERSON.value(200), Id.COMPANY.value(200)));
+	}
+
+	@Test
+	public void testRemoveAll() {
+		store.put(Id.PERSON.value(300), Name.PERSON.value("Bob"));
+		store.put(Id.PERSON.value(301), Name.PERSON.value("Alice"));
+		store.put(Id.PERSON.value(303), Name.PERSON.value("Carol"));
+		store.put(Id.COMPANY.value(300), Id.PERSON.value(300));
+
+		List<Field<?>[]> entries = new ArrayList<Field<?>[]>();
+		entries.add(new Field<?>[] { Id.PERSON.value(301) });
+		entries.add(new Field<?>[] { Id.COMPANY.value(300),
+				Id.PERSON.value(300) });
+		entries.add(new Field<?>[] { Id.PERSON.value(302) });
+		store.removeAll(entries);
+
+		assertNull(store.get(Id.PERSON.value(300)));
+		assertNull(store.get(Id.PERSON.value(301)));
+		assertNull(store.get(Id.COMPANY.value(300), Id.PERSON.value(300)));
+		assertNull(store.get(Id.PERSON.value(300), Id.COMPANY.value(300)));
+		assertEquals("Carol", store.get(Id.PERSON.value(303))
+				.get(Name.PERSON));
+	}
+
 	@Test
 	public void testGet() {
 		store.put(Id.PERSON.value(2), Name.PERSON.value("Jane"));
@@ -228,6 +292,50 @@ public class StoreImplTest {
 		assertEquals("Jane", jane.get(Name.PERSON));
 	}
 
+	@Test
+	public void testGetAll() {
+		for (int i = 500; i < 520; i++)
+			store.put(Id.PERSON.value(i), Name.PERSON.value("Person #" + i));
+		store.put(Id.COMPANY.value(500), Name.COMPANY.value("Umbrella"));
+
+		List<Field<?>[]> keys = new ArrayList<Field<?>[]>();
+		keys.add(new Field<?>[] { Id.PERSON.value(519) });
+		keys.add(new Field<?>[] { Id.COMPANY.value(500) });
+		keys.add(new Field<?>[] { Id.PERSON.value(530) });
+		keys.add(new Field<?>[] { Id.PERSON.value(501) });
+		keys.add(new Field<?>[] { Id.PERSON.value(510) });
+
+		List<Entry> entries = store.getAll(keys);
+		assertEquals(5, entries.size());
+		assertEquals("Person #519", entries.get(0).get(Name.PERSON));
+		assertEquals("Umbrella", entries.get(1).get(Name.COMPANY));
+		assertNull(entries.get(2));
+		assertEquals("Person #501", entries.get(3).get(Name.PERSON));
+		assertEquals((Integer) 510, entries.get(4).get(Id.PERSON));
+	}
+
+	@Test
+	public void testPrepare() {
+		store.put(Id.PERSON.value(400), Name.PERSON.value("Dave"));
+		store.put(Id.COMPANY.value(400), Id.PERSON.value(400));
+		store.put(Id.COMPANY.value(400), Id.PERSON.value(401));
+
+		PreparedQuery person = store.prepare(Id.PERSON);
+		assertEquals("Dave", person.get(400).get(Name.PERSON));
+		assertEquals((Integer) 400, person.get(400).get(Id.PERSON));
+		assertNull(person.get(402));
+
+		PreparedQuery members = store.prepare(Id.COMPANY, Id.PERSON);
+		Iterator<Entry> iterator = members.iterate(null, null, 400)
+				.iterator();
+		assertTrue(iterator.hasNext());
+		assertEquals((Integer) 400, iterator.next().get(Id.PERSON));
+		assertTrue(iterator.hasNext());
+		assertEquals((Integer) 401, iterator.next().get(Id.PERSON));
+		assertFalse(iterator.hasNext());
+		assertFalse(members.iterate(null, null, 402).iterator().hasNext());
+	}
+
 	@Test
 	public void testIterate() {
 		store.put(Id.PERSON.value(1), Name.PERSON.value("John"));
@@ -356,4 +464,558 @@ public class StoreImplTest {
 		// while (testReadWriteCount++ < 10)
 		// testReadWrite();
 	}
+
+	@Test
+	public void testReadChannel() throws IOException {
+		byte[] content = new byte[300 * 1024];
+		new Random(5).nextBytes(content);
+		Blob blob = store.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+
+		ByteArrayOutputStream sliced = new ByteArrayOutputStream();
+		for (ByteBuffer buffer : store.readBuffers(blob)) {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			sliced.write(bytes);
+		}
+		assertArrayEquals(content, sliced.toByteArray());
+
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		assertEquals(content.length,
+				store.read(blob, Channels.newChannel(streamed)));
+		assertArrayEquals(content, streamed.toByteArray());
+
+		// Gathering writes
+		File file = File.createTempFile("blob", null);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				assertEquals(content.length, store.read(blob, raf.getChannel()));
+			} finally {
+				raf.close();
+			}
+			FileInputStream in = new FileInputStream(file);
+			try {
+				assertArrayEquals(content, readFully(in));
+			} finally {
+				in.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testRangedRead() throws IOException {
+		byte[] content = new byte[1500 * 1024];
+		new Random(6).nextBytes(content);
+		Blob blob = store.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		long boundary = blob.count() > 1 ? blob.offset(1) : content.length / 2;
+		assertRange(store, content, blob, 0, 10);
+		assertRange(store, content, blob, boundary - 5, 10);
+		assertRange(store, content, blob, boundary, 1000);
+		assertRange(store, content, blob, content.length - 3, 10);
+		assertEquals(0, readFully(store.read(blob, content.length, 10)).length);
+
+		Random random = new Random(7);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 1500 * 1024)
+			text.append("word").append(random.nextInt(5000)).append(' ');
+		content = text.toString().getBytes(CHARSET);
+		blob = store.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.GZIP);
+		assertEquals(0, blob.restarts());
+		assertRange(store, content, blob, content.length / 2, 100);
+
+		// Compressed blobs written in chunks get restart points
+		StoreImpl storeImpl = new StoreImpl(new Definition[] { PERSON });
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			storeImpl.setWriteExecutor(executor);
+			blob = storeImpl.write(new ByteArrayInputStream(content),
+					StreamEncoding.IDENTITY, StreamEncoding.GZIP);
+		} finally {
+			executor.shutdown();
+		}
+		Store chunked = new StoreClient(storeImpl);
+		assertTrue(blob.restarts() > 1);
+		assertEquals(blob.restarts() - 1,
+				blob.restartOf(content.length - 1));
+
+		// Restart points survive serialisation
+		blob = Blob.BLOB.get((ByteBuffer) Blob.BLOB.toBytes(blob).rewind());
+		assertTrue(blob.restarts() > 1);
+		assertRange(chunked, content, blob, 0, 100);
+		assertRange(chunked, content, blob, blob.restartPosition(1) - 50, 100);
+		assertRange(chunked, content, blob, content.length - 1000, 2000);
+		assertArrayEquals(content, readFully(StreamEncoding.GZIP
+				.createInputStream(chunked.read(blob))));
+	}
+
+	private static void assertRange(Store store, byte[] content, Blob blob,
+			long offset, long length) throws IOException {
+		int end = (int) Math.min(content.length, offset + length);
+		assertArrayEquals(Arrays.copyOfRange(content, (int) offset, end),
+				readFully(store.read(blob, offset, length)));
+	}
+
+	@Test
+	public void testEncodings() throws IOException {
+		// Compressible content: random words drawn from a small vocabulary
+		Random random = new Random(3);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 200 * 1024)
+			text.append("word").append(random.nextInt(500)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+
+		for (StreamEncoding encoding : StreamEncoding.values()) {
+			if (!encoding.isAvailable())
+				continue;
+			Blob blob = store.write(new ByteArrayInputStream(content),
+					StreamEncoding.IDENTITY, encoding);
+			assertEquals(encoding, blob.encoding());
+			assertEquals(content.length, blob.size());
+			long encodedSize = 0;
+			for (int i = 0; i < blob.count(); i++)
+				encodedSize += blob.size(i);
+			if (encoding != StreamEncoding.IDENTITY)
+				assertTrue(encoding.toString(), encodedSize < content.length / 2);
+			assertArrayEquals(encoding.toString(), content,
+					readFully(encoding.createInputStream(store.read(blob))));
+		}
+
+		// Transcoding from one codec to another
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		OutputStream out = StreamEncoding.GZIP.createOutputStream(gzipped);
+		out.write(content);
+		out.close();
+		Blob blob = store.write(new ByteArrayInputStream(gzipped.toByteArray()),
+				StreamEncoding.GZIP, StreamEncoding.LZ4);
+		assertArrayEquals(content, readFully(StreamEncoding.LZ4
+				.createInputStream(store.read(blob))));
+	}
+
+	@Test
+	public void testCompressionLevel() throws IOException {
+		Random random = new Random(4);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 200 * 1024)
+			text.append("word").append(random.nextInt(500)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+
+		StoreImpl storeImpl = new StoreImpl(new Definition[] { PERSON });
+		long[] sizes = new long[2];
+		int[] levels = { 1, 9 };
+		for (int i = 0; i < levels.length; i++) {
+			storeImpl.setCompressionLevel(levels[i]);
+			Blob blob = storeImpl.write(new ByteArrayInputStream(content),
+					StreamEncoding.IDENTITY, StreamEncoding.GZIP);
+			for (int j = 0; j < blob.count(); j++)
+				sizes[i] += blob.size(j);
+			assertArrayEquals(content, readFully(StreamEncoding.GZIP
+					.createInputStream(storeImpl.read(blob))));
+		}
+		assertTrue(sizes[1] < sizes[0]);
+	}
+
+	@Test
+	public void testPassThroughDigest() throws Exception {
+		Random random = new Random(8);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 500 * 1024)
+			text.append("word").append(random.nextInt(5000)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		OutputStream out = StreamEncoding.GZIP.createOutputStream(gzipped);
+		out.write(content);
+		out.close();
+
+		StoreImpl storeImpl = new StoreImpl(new Definition[] { PERSON });
+		storeImpl.setPassThroughDigest(true);
+		Blob blob = storeImpl.write(
+				new ByteArrayInputStream(gzipped.toByteArray()),
+				StreamEncoding.GZIP, StreamEncoding.GZIP);
+
+		// Stored verbatim, but described by the unencoded content
+		assertArrayEquals(gzipped.toByteArray(),
+				readFully(storeImpl.read(blob)));
+		assertEquals(content.length, blob.size());
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+		assertEquals(1, blob.hash()[0]);
+		assertArrayEquals(hash,
+				Arrays.copyOfRange(blob.hash(), 1, hash.length + 1));
+
+		// More encoded bytes than are buffered for the digest at once
+		content = new byte[1024 * 1024];
+		random.nextBytes(content);
+		gzipped.reset();
+		out = StreamEncoding.GZIP.createOutputStream(gzipped);
+		out.write(content);
+		out.close();
+		blob = storeImpl.write(
+				new ByteArrayInputStream(gzipped.toByteArray()),
+				StreamEncoding.GZIP, StreamEncoding.GZIP);
+		assertEquals(content.length, blob.size());
+		hash = MessageDigest.getInstance("SHA-256").digest(content);
+		assertArrayEquals(hash,
+				Arrays.copyOfRange(blob.hash(), 1, hash.length + 1));
+
+		try {
+			storeImpl.write(new ByteArrayInputStream(content),
+					StreamEncoding.GZIP, StreamEncoding.GZIP);
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testConcurrentWrite() throws Exception {
+		final byte[][] contents = new byte[8][];
+		final Blob[] blobs = new Blob[contents.length];
+		Thread[] writers = new Thread[contents.length];
+		for (int i = 0; i < writers.length; i++) {
+			contents[i] = new byte[300 * 1024 + i];
+			new Random(i).nextBytes(contents[i]);
+			final int index = i;
+			writers[i] = new Thread() {
+				@Override
+				public void run() {
+					blobs[index] = store.write(new ByteArrayInputStream(
+							contents[index]), StreamEncoding.IDENTITY,
+							StreamEncoding.IDENTITY);
+				}
+			};
+			writers[i].start();
+		}
+		for (Thread writer : writers)
+			writer.join();
+
+		for (int i = 0; i < blobs.length; i++)
+			assertArrayEquals(contents[i], readFully(store.read(blobs[i])));
+	}
+
+	@Test
+	public void testMultipartUpload() throws Exception {
+		Random random = new Random(30);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 900 * 1024)
+			text.append("part").append(random.nextInt(5000)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+		Blob whole = store.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+
+		for (StreamEncoding encoding : new StreamEncoding[] {
+				StreamEncoding.IDENTITY, StreamEncoding.GZIP }) {
+			final MultipartUpload upload = store.beginUpload(
+					StreamEncoding.IDENTITY, encoding);
+			final byte[][] parts = new byte[4][];
+			Thread[] writers = new Thread[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = Arrays.copyOfRange(content, i * content.length
+						/ parts.length, (i + 1) * content.length / parts.length);
+				final int part = i;
+				writers[i] = new Thread() {
+					@Override
+					public void run() {
+						upload.write(part, new ByteArrayInputStream(
+								parts[part]));
+					}
+				};
+			}
+			// Parts finish in any order
+			for (int i = writers.length - 1; i >= 0; i--)
+				writers[i].start();
+			for (Thread writer : writers)
+				writer.join();
+			Blob blob = upload.complete();
+
+			assertEquals(content.length, blob.size());
+			assertArrayEquals(whole.hash(), blob.hash());
+			assertEquals(encoding, blob.encoding());
+			assertArrayEquals(content, readFully(encoding
+					.createInputStream(store.read(blob))));
+			assertRange(store, content, blob, parts[0].length - 10, 20);
+			assertRange(store, content, blob, content.length - 100, 200);
+		}
+
+		MultipartUpload aborted = store.beginUpload(StreamEncoding.IDENTITY,
+				StreamEncoding.IDENTITY);
+		aborted.write(1, new ByteArrayInputStream(content));
+		aborted.abort();
+		try {
+			aborted.write(2, new ByteArrayInputStream(content));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		Random random = new Random(31);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 400 * 1024)
+			text.append("line").append(random.nextInt(5000)).append('\n');
+		byte[] content = text.toString().getBytes(CHARSET);
+		int[] ends = { 0, 1000, 1063, 300 * 1024, content.length };
+
+		for (StreamEncoding encoding : new StreamEncoding[] {
+				StreamEncoding.IDENTITY, StreamEncoding.GZIP }) {
+			Blob blob = store.write(new ByteArrayInputStream(content, 0,
+					ends[1]), StreamEncoding.IDENTITY, encoding);
+			long firstBlock = blob.block(0);
+			for (int i = 2; i < ends.length; i++) {
+				// The saved digest survives serialisation
+				blob = Blob.BLOB.get((ByteBuffer) Blob.BLOB.toBytes(blob)
+						.rewind());
+				blob = store.append(blob, new ByteArrayInputStream(content,
+						ends[i - 1], ends[i] - ends[i - 1]));
+
+				Blob whole = store.write(new ByteArrayInputStream(content, 0,
+						ends[i]), StreamEncoding.IDENTITY, encoding);
+				assertEquals(ends[i], blob.size());
+				assertArrayEquals(whole.hash(), blob.hash());
+				assertEquals(firstBlock, blob.block(0));
+				assertArrayEquals(Arrays.copyOf(content, ends[i]),
+						readFully(encoding.createInputStream(store.read(blob))));
+			}
+			assertRange(store, content, blob, ends[3] - 10, 20);
+		}
+
+		Blob log = store.append(new Blob(), new ByteArrayInputStream(content));
+		assertEquals(StreamEncoding.IDENTITY, log.encoding());
+		assertArrayEquals(content, readFully(store.read(log)));
+	}
+
+	@Test
+	public void testDeduplication() throws IOException {
+		StoreImpl storeImpl = new StoreImpl(new Definition[] { PERSON });
+		storeImpl.setDeduplication(true);
+
+		byte[] content = new byte[300 * 1024];
+		new Random(2).nextBytes(content);
+		byte[] extended = Arrays.copyOf(content, content.length + 1000);
+
+		Blob first = storeImpl.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		Blob second = storeImpl.write(new ByteArrayInputStream(extended),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+
+		// Only the last block of the second blob needs new storage
+		assertEquals(first.count(), second.count());
+		for (int i = 0; i < first.count() - 1; i++)
+			assertEquals(first.block(i), second.block(i));
+		assertFalse(first.block(first.count() - 1) == second.block(second
+				.count() - 1));
+		assertArrayEquals(content, readFully(storeImpl.read(first)));
+		assertArrayEquals(extended, readFully(storeImpl.read(second)));
+
+		storeImpl.release(first);
+		storeImpl.release(second);
+		Blob third = storeImpl.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		assertFalse(first.block(0) == third.block(0));
+
+		// The index is rebuilt from the blobs of stored entries
+		Definition document = new Definition(new Field<?>[] { Id.PERSON },
+				new Field<?>[] { Blob.BLOB });
+		storeImpl = new StoreImpl(new Definition[] { document });
+		storeImpl.setDeduplication(true);
+		first = storeImpl.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		storeImpl.put(Id.PERSON.value(1), Blob.BLOB.value(first));
+		storeImpl.setDeduplication(false);
+		storeImpl.setDeduplication(true);
+		second = storeImpl.write(new ByteArrayInputStream(extended),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		for (int i = 0; i < first.count() - 1; i++)
+			assertEquals(first.block(i), second.block(i));
+		assertArrayEquals(extended, readFully(storeImpl.read(second)));
+	}
+
+	@Test
+	public void testPipelinedWrite() throws Exception {
+		Random random = new Random(4);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 1500 * 1024)
+			text.append("word").append(random.nextInt(5000)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+
+		StoreImpl sequential = new StoreImpl(new Definition[] { PERSON });
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (StreamEncoding encoding : new StreamEncoding[] {
+					StreamEncoding.IDENTITY, StreamEncoding.GZIP,
+					StreamEncoding.LZ4 }) {
+				StoreImpl first = new StoreImpl(new Definition[] { PERSON });
+				first.setWriteExecutor(executor);
+				StoreImpl second = new StoreImpl(new Definition[] { PERSON });
+				second.setWriteExecutor(executor);
+
+				Blob blob = first.write(new ByteArrayInputStream(content),
+						StreamEncoding.IDENTITY, encoding);
+				assertEquals(encoding, blob.encoding());
+				assertEquals(content.length, blob.size());
+				assertArrayEquals(encoding.toString(), content,
+						readFully(encoding.createInputStream(first.read(blob))));
+
+				// Same placement and block hashes in every run
+				Blob again = second.write(new ByteArrayInputStream(content),
+						StreamEncoding.IDENTITY, encoding);
+				assertEquals(blob.count(), again.count());
+				for (int i = 0; i < blob.count(); i++) {
+					assertEquals(blob.block(i), again.block(i));
+					assertEquals(blob.size(i), again.size(i));
+					assertArrayEquals(blob.hash(i), again.hash(i));
+				}
+
+				// The stream hash is that of the unencoded content either way
+				assertArrayEquals(blob.hash(), sequential.write(
+						new ByteArrayInputStream(content),
+						StreamEncoding.IDENTITY, encoding).hash());
+			}
+
+			// Empty streams still carry their encoding's framing
+			StoreImpl storeImpl = new StoreImpl(new Definition[] { PERSON });
+			storeImpl.setWriteExecutor(executor);
+			Blob empty = storeImpl.write(new ByteArrayInputStream(new byte[0]),
+					StreamEncoding.IDENTITY, StreamEncoding.GZIP);
+			assertEquals(0, readFully(StreamEncoding.GZIP
+					.createInputStream(storeImpl.read(empty))).length);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		Definition document = new Definition(new Field<?>[] { Id.PERSON },
+				new Field<?>[] { Blob.BLOB });
+		StoreImpl storeImpl = new StoreImpl(new Definition[] { document });
+		storeImpl.setCompactionGracePeriod(0, TimeUnit.MILLISECONDS);
+
+		byte[][] contents = new byte[8][];
+		Blob[] blobs = new Blob[contents.length];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = new byte[200 * 1024];
+			new Random(10 + i).nextBytes(contents[i]);
+			blobs[i] = storeImpl.write(new ByteArrayInputStream(contents[i]),
+					StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+			storeImpl.put(Id.PERSON.value(i), Blob.BLOB.value(blobs[i]));
+		}
+		assertTrue(storeImpl.compact().isEmpty());
+
+		// Most of the first volume becomes garbage
+		for (int i = 0; i < 4; i++)
+			storeImpl.remove(Id.PERSON.value(i));
+		List<MapKeyValue> ops = storeImpl.compact();
+		assertFalse(ops.isEmpty());
+		Blob moved = storeImpl.get(Id.PERSON.value(4)).get(Blob.BLOB);
+		assertFalse(blobs[4].block(0) == moved.block(0));
+
+		// Cleared volumes are written over by new blobs
+		storeImpl.compact();
+		byte[] content = new byte[600 * 1024];
+		new Random(20).nextBytes(content);
+		Blob blob = storeImpl.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		boolean reused = false;
+		for (int i = 0; i < blob.count(); i++)
+			reused |= Blob.asNode(blob.block(i)) == Blob.asNode(blobs[0].block(0));
+		assertTrue(reused);
+
+		assertArrayEquals(content, readFully(storeImpl.read(blob)));
+		for (int i = 4; i < contents.length; i++)
+			assertArrayEquals(contents[i], readFully(storeImpl.read(storeImpl
+					.get(Id.PERSON.value(i)).get(Blob.BLOB))));
+	}
+
+	@Test
+	public void testCompactionKeepsReadVolumes() throws IOException {
+		Definition document = new Definition(new Field<?>[] { Id.PERSON },
+				new Field<?>[] { Blob.BLOB });
+		StoreImpl storeImpl = new StoreImpl(new Definition[] { document });
+		storeImpl.setCompactionGracePeriod(0, TimeUnit.MILLISECONDS);
+
+		byte[][] contents = new byte[8][];
+		Blob[] blobs = new Blob[contents.length];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = new byte[200 * 1024];
+			new Random(10 + i).nextBytes(contents[i]);
+			blobs[i] = storeImpl.write(new ByteArrayInputStream(contents[i]),
+					StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+			storeImpl.put(Id.PERSON.value(i), Blob.BLOB.value(blobs[i]));
+		}
+		long node = Blob.asNode(blobs[0].block(0));
+
+		// Still being read after its entry is removed
+		InputStream stream = storeImpl.read(blobs[0]);
+		assertEquals(contents[0][0], (byte) stream.read());
+		for (int i = 0; i < 4; i++)
+			storeImpl.remove(Id.PERSON.value(i));
+		assertFalse(storeImpl.compact().isEmpty());
+		storeImpl.compact();
+		byte[] content = new byte[600 * 1024];
+		new Random(20).nextBytes(content);
+		Blob blob = storeImpl.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		for (int i = 0; i < blob.count(); i++)
+			assertFalse(Blob.asNode(blob.block(i)) == node);
+		assertArrayEquals(Arrays.copyOfRange(contents[0], 1,
+				contents[0].length), readFully(stream));
+
+		// Cleared once the stream is done with it
+		storeImpl.compact();
+		blob = storeImpl.write(new ByteArrayInputStream(content),
+				StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+		boolean reused = false;
+		for (int i = 0; i < blob.count(); i++)
+			reused |= Blob.asNode(blob.block(i)) == node;
+		assertTrue(reused);
+	}
+
+	@Test
+	public void testCompactionKeepsReferencedVolumes() throws IOException {
+		Definition document = new Definition(new Field<?>[] { Id.PERSON },
+				new Field<?>[] { Blob.BLOB });
+		StoreImpl storeImpl = new StoreImpl(new Definition[] { document });
+		storeImpl.setCompactionGracePeriod(0, TimeUnit.MILLISECONDS);
+
+		byte[][] contents = new byte[8][];
+		Blob[] blobs = new Blob[contents.length];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = new byte[200 * 1024];
+			new Random(10 + i).nextBytes(contents[i]);
+			blobs[i] = storeImpl.write(new ByteArrayInputStream(contents[i]),
+					StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+			storeImpl.put(Id.PERSON.value(i), Blob.BLOB.value(blobs[i]));
+		}
+		for (int i = 0; i < 4; i++)
+			storeImpl.remove(Id.PERSON.value(i));
+		assertFalse(storeImpl.compact().isEmpty());
+
+		// A blob got before compaction is put again under another key
+		storeImpl.put(Id.PERSON.value(100), Blob.BLOB.value(blobs[4]));
+		storeImpl.compact();
+		storeImpl.compact();
+		// Enough new blobs to fill any cleared volume
+		for (int i = 0; i < contents.length; i++)
+			storeImpl.write(new ByteArrayInputStream(contents[i]),
+					StreamEncoding.IDENTITY, StreamEncoding.IDENTITY);
+
+		assertArrayEquals(contents[4], readFully(storeImpl.read(storeImpl
+				.get(Id.PERSON.value(100)).get(Blob.BLOB))));
+		for (int i = 4; i < contents.length; i++)
+			assertArrayEquals(contents[i], readFully(storeImpl.read(storeImpl
+					.get(Id.PERSON.value(i)).get(Blob.BLOB))));
+	}
+
+	protected static byte[] readFully(InputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = stream.read(buffer, 0, buffer.length)) != -1)
+			bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
 }
@@ -25,6 +25,8 @@ import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -122,4 +124,86 @@ public class StreamDigestTest {
 		assertArrayEquals(helloWorldActualHash, digest.hash());
 	}
 
+	@Test
+	public void testLargeStream() throws IOException, NoSuchAlgorithmException {
+		Random random = new Random(1);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 500 * 1024)
+			text.append("word").append(random.nextInt(5000)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+
+		for (StreamEncoding encoding : new StreamEncoding[] {
+				StreamEncoding.GZIP, StreamEncoding.DEFLATE,
+				StreamEncoding.LZ4 }) {
+			ByteArrayOutputStream encodedOut = new ByteArrayOutputStream();
+			OutputStream encoder = encoding.createOutputStream(encodedOut);
+			encoder.write(content);
+			encoder.close();
+			byte[] encoded = encodedOut.toByteArray();
+
+			StreamDigest digest = new StreamDigest();
+			InputStream stream = digest.createInputStream(
+					new ByteArrayInputStream(encoded), encoding);
+			ByteArrayOutputStream passed = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1000];
+			int read;
+			while ((read = stream.read(buffer, 0, buffer.length)) != -1)
+				passed.write(buffer, 0, read);
+
+			assertArrayEquals(encoded, passed.toByteArray());
+			assertArrayEquals(hash,
+					Arrays.copyOfRange(digest.hash(), 1, hash.length + 1));
+		}
+	}
+
+	@Test
+	public void testMixedReads() throws IOException, NoSuchAlgorithmException {
+		Random random = new Random(2);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 2 * 1024 * 1024)
+			text.append("word").append(random.nextInt(100000)).append(' ');
+		byte[] content = text.toString().getBytes(CHARSET);
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+
+		// Two concatenated members, as written by appends
+		int half = content.length / 2;
+		ByteArrayOutputStream encodedOut = new ByteArrayOutputStream();
+		OutputStream encoder = StreamEncoding.GZIP
+				.createOutputStream(encodedOut);
+		encoder.write(content, 0, half);
+		encoder.close();
+		encoder = StreamEncoding.GZIP.createOutputStream(encodedOut);
+		encoder.write(content, half, content.length - half);
+		encoder.close();
+		byte[] encoded = encodedOut.toByteArray();
+
+		StreamDigest digest = new StreamDigest();
+		InputStream stream = digest.createInputStream(
+				new ByteArrayInputStream(encoded), StreamEncoding.GZIP);
+		ByteArrayOutputStream passed = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		for (int i = 0;; i++) {
+			assertTrue(stream.available() <= encoded.length - passed.size());
+			if (i % 3 == 0) {
+				int read = stream.read();
+				if (read == -1)
+					break;
+				passed.write(read);
+			} else {
+				int read = stream.read(buffer, 0,
+						1 + random.nextInt(buffer.length));
+				if (read == -1)
+					break;
+				passed.write(buffer, 0, read);
+			}
+		}
+		assertEquals(-1, stream.read());
+		stream.close();
+
+		assertArrayEquals(encoded, passed.toByteArray());
+		assertArrayEquals(hash,
+				Arrays.copyOfRange(digest.hash(), 1, hash.length + 1));
+	}
+
 }